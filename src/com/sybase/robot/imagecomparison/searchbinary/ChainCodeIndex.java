@@ -0,0 +1,203 @@
+package com.sybase.robot.imagecomparison.searchbinary;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import com.sybase.robot.scripting.commands.impl.LiveEdgeMap;
+import com.tplan.robot.util.PixelAccess;
+
+/**
+ * Chain code (run length) index of a black and white image. Every row is
+ * encoded as lengths of alternating white and black runs starting with
+ * a white one (which may be empty), see
+ * {@link SearchBinaryImageComparisonModule#chainCodeTransformLine(int[])}.
+ * <p>
+ * Besides the runs each row keeps start columns of the runs and the run
+ * indices sorted by the run length separately for white and black runs.
+ * Rows which may contain the first template row are found by a walk over
+ * the longest runs only, columns are calculated from the run starts.
+ * </p>
+ * An index of the live desktop edges (see {@link LiveEdgeMap}) is refreshed
+ * by re-encoding just the rows updated since the previous refresh.
+ */
+class ChainCodeIndex {
+
+	final int width;
+	final int height;
+	/** Pixels of the indexed image, row by row. */
+	final int[] pixels;
+	private final Row[] rows;
+
+	private final LiveEdgeMap source;
+	private final Rectangle area;
+	private long version = -1;
+	/** View of the edge image pixels, its buffer is reused by the next refresh. */
+	private PixelAccess.View view;
+
+	/**
+	 * Index an image snapshot.
+	 * @param pixels image pixels, row by row.
+	 * @param width image width.
+	 * @param height image height.
+	 */
+	ChainCodeIndex(int[] pixels, int width, int height) {
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+		this.source = null;
+		this.area = null;
+		rows = new Row[height];
+		for (int y = 0; y < height; y++) {
+			rows[y] = new Row(pixels, y * width, width);
+		}
+	}
+
+	/**
+	 * Create an index of a rectangle of the live desktop edge image. It is
+	 * populated by {@link #refresh()}.
+	 * @param source live edge map.
+	 * @param area indexed rectangle.
+	 */
+	ChainCodeIndex(LiveEdgeMap source, Rectangle area) {
+		this.source = source;
+		this.area = new Rectangle(area);
+		this.width = area.width;
+		this.height = area.height;
+		this.pixels = new int[width * height];
+		rows = new Row[height];
+	}
+
+	boolean isIndexOf(LiveEdgeMap map, Rectangle r) {
+		return source == map && area.equals(r);
+	}
+
+	/**
+	 * Re-encode rows of the live edge image updated since the last refresh.
+	 * The lock of the edge map must be held.
+	 */
+	void refresh() {
+		BufferedImage edges = source.getEdges();
+		long v = source.getVersion();
+		if (v == version) {
+			return;
+		}
+		// The edge image is opaque TYPE_INT_RGB, the view doesn't define the alpha
+		view = PixelAccess.getView(edges, area, view);
+		for (int y = 0; y < height; y++) {
+			if (rows[y] == null || source.getRowVersion(area.y + y) > version) {
+				for (int x = 0, i = y * width, s = view.index(area.x, area.y + y); x < width; x++, i++, s++) {
+					pixels[i] = 0xFF000000 | view.data[s];
+				}
+				rows[y] = new Row(pixels, y * width, width);
+			}
+		}
+		version = v;
+	}
+
+	/**
+	 * Find columns where a row may contain a template row. Every run of the
+	 * template row must fit into the corresponding run of the image row; the
+	 * leading white run is aligned to the end of the image run.
+	 * @param y image row.
+	 * @param template chain code of the template row.
+	 * @return candidate columns in ascending order.
+	 */
+	int[] findColumns(int y, int[] template) {
+		Row row = rows[y];
+		final int[] runs = row.runs;
+		final int length = template.length;
+		if (length > runs.length) {
+			return new int[0];
+		}
+		// Walk the runs which are long enough for the longest template run
+		int key = 0;
+		for (int i = 1; i < length; i++) {
+			if (template[i] > template[key]) {
+				key = i;
+			}
+		}
+		final int[] sorted = (key & 1) == 0 ? row.whiteByLength : row.blackByLength;
+		int[] starts = new int[8];
+		int count = 0;
+		for (int k = sorted.length - 1; k >= 0 && runs[sorted[k]] >= template[key]; k--) {
+			int start = sorted[k] - key;
+			if (start < 0 || start + length > runs.length) {
+				continue;
+			}
+			boolean fits = true;
+			for (int i = 0; i < length; i++) {
+				if (runs[start + i] < template[i]) {
+					fits = false;
+					break;
+				}
+			}
+			if (fits) {
+				if (count == starts.length) {
+					int[] s = new int[count * 2];
+					System.arraycopy(starts, 0, s, 0, count);
+					starts = s;
+				}
+				starts[count++] = start;
+			}
+		}
+		Arrays.sort(starts, 0, count);
+
+		// Columns; a single white template run fits anywhere in the image run
+		if (length == 1) {
+			int total = 0;
+			for (int k = 0; k < count; k++) {
+				total += runs[starts[k]] - template[0] + 1;
+			}
+			int[] columns = new int[total];
+			for (int k = 0, c = 0; k < count; k++) {
+				for (int x = row.starts[starts[k]], end = x + runs[starts[k]] - template[0]; x <= end; x++) {
+					columns[c++] = x;
+				}
+			}
+			return columns;
+		}
+		int[] columns = new int[count];
+		for (int k = 0; k < count; k++) {
+			columns[k] = row.starts[starts[k]] + runs[starts[k]] - template[0];
+		}
+		return columns;
+	}
+
+	/**
+	 * Chain code of a single row.
+	 */
+	private static class Row {
+		final int[] runs;
+		final int[] starts;
+		final int[] whiteByLength;
+		final int[] blackByLength;
+
+		Row(int[] pixels, int offset, int width) {
+			runs = SearchBinaryImageComparisonModule.encodeLine(pixels, offset, width);
+			starts = new int[runs.length];
+			for (int i = 1; i < runs.length; i++) {
+				starts[i] = starts[i - 1] + runs[i - 1];
+			}
+			whiteByLength = sortByLength(runs, 0);
+			blackByLength = sortByLength(runs, 1);
+		}
+
+		/**
+		 * Sort indices of every other run starting with the given one by
+		 * the run length in ascending order.
+		 */
+		private static int[] sortByLength(int[] runs, int first) {
+			long[] keys = new long[(runs.length - first + 1) / 2];
+			for (int i = first, k = 0; i < runs.length; i += 2, k++) {
+				keys[k] = ((long) runs[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+			int[] indices = new int[keys.length];
+			for (int k = 0; k < keys.length; k++) {
+				indices[k] = (int) keys[k];
+			}
+			return indices;
+		}
+	}
+}
@@ -5,7 +5,6 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.PixelGrabber;
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,17 +12,21 @@ import java.util.Map;
 
 import org.apache.commons.lang3.ArrayUtils;
 
+import com.sybase.robot.scripting.commands.impl.DiagnosticImageSink;
 import com.sybase.robot.scripting.commands.impl.ImageUtil;
+import com.sybase.robot.scripting.commands.impl.LiveEdgeMap;
 import com.tplan.robot.imagecomparison.search.SearchImageComparisonModule;
 import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.BandExecutor;
+import com.tplan.robot.util.PixelAccess;
 
 public class SearchBinaryImageComparisonModule extends SearchImageComparisonModule {
-	private static final String MATCH_RESULT_FILE = "c:\\image_match_result.png";
-	List<int[]> tsm;
-	List<int[]> tmm;
+	private static final String MATCH_RESULT = "image_match_result";
 	int[] mm;
 	Rectangle mmArea;
 	boolean debugMode = false;
+	/** Index of the live desktop edges, refreshed in the updated rows only. */
+	private ChainCodeIndex liveIndex;
 
 	public void setDebugMode(boolean b){
 		this.debugMode = b;
@@ -36,31 +39,49 @@ public class SearchBinaryImageComparisonModule extends SearchImageComparisonModu
     public String getUniqueId() {
     	return "Sybase_Search_binary_image_comparison_module";
     }
+
+    public boolean isMethodParamsSupported() {
+    	return false;
+    }
     
     public void setBaseImage(Image img){
-    	BufferedImage image;
-    	if(debugMode){
-    		image = ImageUtil.edgefy(img, new File("c:\\template.png"), 3);
-    	}else{
-    		image = ImageUtil.edgefy(img, null, 3);
-    	}
+    	BufferedImage image = ImageUtil.edgefy(img, null, 3);
+    	DiagnosticImageSink.getInstance().submit("template", image);
     	super.setBaseImage(image);
     }
     
 	public float compareToBaseImage(Image desktopImage, Rectangle area,	String methodParams, ScriptingContext repository, float passRate){
 		BufferedImage desktopimg;
-		if(debugMode){
-			desktopimg = ImageUtil.edgefy(desktopImage, new File("c:\\desktop.png"), 0);
+		Point matchPoint;
+		DiagnosticImageSink diagnostics = DiagnosticImageSink.getInstance();
+		LiveEdgeMap edgeMap = repository == null ? null : LiveEdgeMap.getInstance(repository.getClient(), desktopImage);
+		if(edgeMap != null){
+			// Edges of the live desktop are recalculated just in the updated tiles
+			synchronized (edgeMap) {
+				BufferedImage edges = edgeMap.getEdges();
+				area = clip(edges, area);
+				if (liveIndex == null || !liveIndex.isIndexOf(edgeMap, area)) {
+					liveIndex = new ChainCodeIndex(edgeMap, area);
+				}
+				liveIndex.refresh();
+				diagnostics.submit("desktop", edges);
+				mm = liveIndex.pixels;
+				mmArea = area;
+				matchPoint = search(liveIndex, pixels, r, passRate, false);
+			}
 		}else{
 			desktopimg = ImageUtil.edgefy(desktopImage, null, 0);
+			diagnostics.submit("desktop", desktopimg);
+			matchPoint = compareToBaseImage(desktopimg, area, passRate);
 		}
-		Point matchPoint = compareToBaseImage(desktopimg, area, passRate);
 		Map variables = repository.getVariables();
 		if(matchPoint!=null){
 			variables.put("_SEARCH_X", matchPoint.x);
 			variables.put("_SEARCH_Y", matchPoint.y);
 			System.out.println(matchPoint.toString());
-			drawMatchResultImage((BufferedImage) desktopImage, mmArea, matchPoint.x, matchPoint.y, r, new File(MATCH_RESULT_FILE));
+			if (diagnostics.accept(MATCH_RESULT)) {
+				diagnostics.write(MATCH_RESULT, drawMatchResultImage((BufferedImage) desktopImage, mmArea, matchPoint.x, matchPoint.y, r));
+			}
 			return 1;
 		}else{
 			variables.put("_SEARCH_X", new Integer(-1));
@@ -72,70 +93,103 @@ public class SearchBinaryImageComparisonModule extends SearchImageComparisonModu
 	public Point compareToBaseImage(Image desktopImage, Rectangle area, float passRate){
 //		BufferedImage desktopimg = ImageUtil.edgefy(desktopImage, new File("d:\\desktop.png"), 0);
 		BufferedImage desktopimg = (BufferedImage)desktopImage;
-		Rectangle fullRect = new Rectangle(0, 0, desktopimg.getWidth(), desktopimg.getHeight());
-		if (area == null) {
-			area = fullRect;
-		} else {
-			area = area.intersection(fullRect);
-		}
+		area = clip(desktopimg, area);
 		mm = loadIntArrayFromImage(desktopimg, area);
 		mmArea = area;
 		Point p = compareMatrixFirst(mm, mmArea, pixels, r, passRate);
-		if(p!=null && debugMode){
-			drawMatchResultImage((BufferedImage) desktopimg, area, p.x, p.y, r, new File(MATCH_RESULT_FILE));
+		DiagnosticImageSink diagnostics = DiagnosticImageSink.getInstance();
+		if(p!=null && debugMode && diagnostics.accept(MATCH_RESULT)){
+			diagnostics.write(MATCH_RESULT, drawMatchResultImage((BufferedImage) desktopimg, area, p.x, p.y, r));
 		}
 		return p;
 	}
-	
+
+	private static Rectangle clip(BufferedImage img, Rectangle area) {
+		Rectangle fullRect = new Rectangle(0, 0, img.getWidth(), img.getHeight());
+		return area == null ? fullRect : area.intersection(fullRect);
+	}
+
 	public Point compareMatrixFirst(int[] mainMatrix, Rectangle mr,int[] subMatrix, Rectangle sr,float passRate){
-		List<int[]> tmm = chainCodeTransformMatrix(mainMatrix, mr);
-		List<int[]> tsm = chainCodeTransformMatrix(subMatrix, sr);
-		for(int i=0;i<=mr.height - sr.height;i++){
-			int[] tmmLine = tmm.get(i);
-			int[] tsmLine = tsm.get(0);
-			int[] positions = getSubIndexOfArray(tmmLine, tsmLine);
-			for(int position:positions){
-				int[] ps = getOriginalMatrixColmIndex2(tmmLine, tsmLine, position);
-				for(int x=0; x<ps.length; x++){
-					int misCount = match(ps[x], i, mainMatrix, subMatrix, mr, sr, passRate);
-					if(misCount >= 0){
-						return new Point(ps[x], i);
-					}
-				}
-			}
-		}
-		return null;
+		return search(new ChainCodeIndex(mainMatrix, mr.width, mr.height), subMatrix, sr, passRate, false);
 	}
 	
 	public Point compareMatrixBest(int[] mainMatrix, Rectangle mr,int[] subMatrix, Rectangle sr,float passRate){
-//		List<Point> points = new ArrayList<Point>();
-		Point point = null;
-		int minMissCount = 999999999;
-		List<int[]> tmm = chainCodeTransformMatrix(mainMatrix, mr);
-		List<int[]> tsm = chainCodeTransformMatrix(subMatrix, sr);
-		for(int i=0;i<=mr.height - sr.height;i++){
-			int[] tmmLine = tmm.get(i);
-			int[] tsmLine = tsm.get(0);
-			int[] positions = getSubIndexOfArray(tmmLine, tsmLine);
-			for(int position:positions){
-				int[] ps = getOriginalMatrixColmIndex2(tmmLine, tsmLine, position);
-				for(int x=0; x<ps.length; x++){
-					int misCount = match(ps[x], i, mainMatrix, subMatrix, mr, sr, passRate);
-					if(misCount >= 0 && misCount<minMissCount){
-						if(misCount == 0){
-							return new Point(ps[x], i);
-						}else{
-							minMissCount = misCount;
-							point = new Point(ps[x], i);
+		return search(new ChainCodeIndex(mainMatrix, mr.width, mr.height), subMatrix, sr, passRate, true);
+	}
+
+	/**
+	 * Search the indexed image for the template. Rows are searched in parallel
+	 * bands; the result is the same as of a sequential scan row by row and
+	 * column by column.
+	 * @param best true to find the position with the least mismatching
+	 * pixels, false to find the first position within the pass rate.
+	 * @return location of the template or null if not found.
+	 */
+	private Point search(final ChainCodeIndex index, final int[] subMatrix, final Rectangle sr, float passRate, final boolean best) {
+		final int rowCount = index.height - sr.height + 1;
+		if (rowCount <= 0 || sr.width > index.width) {
+			return null;
+		}
+		final int[] firstRow = encodeLine(subMatrix, 0, sr.width);
+		final int totalMismatch = (int)(sr.width * sr.height * (1-passRate));
+		final SearchResult result = new SearchResult(rowCount, best);
+		BandExecutor.execute(rowCount, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				int bandBest = Integer.MAX_VALUE;
+				Point bandPoint = null;
+				for (int y = from; y < to && y < result.rowLimit; y++) {
+					int[] columns = index.findColumns(y, firstRow);
+					for (int k = 0; k < columns.length; k++) {
+						int misCount = match(columns[k], y, index, subMatrix, sr, totalMismatch, best ? bandBest : Integer.MAX_VALUE);
+						if (misCount >= 0 && misCount < bandBest) {
+							bandBest = misCount;
+							bandPoint = new Point(columns[k], y);
+							if (!best || misCount == 0) {
+								// Nothing in the following rows can be better
+								result.offer(bandPoint, bandBest, true);
+								return;
+							}
 						}
 					}
 				}
+				if (bandPoint != null) {
+					result.offer(bandPoint, bandBest, false);
+				}
+			}
+		});
+		return result.point;
+	}
+
+	/**
+	 * Location found by the search bands. In the best match mode the lower
+	 * mismatch count wins; otherwise, or in case of a tie, the earlier
+	 * location in the row by row order wins.
+	 */
+	private static class SearchResult {
+		final boolean best;
+		/** Rows from this one on needn't be searched. */
+		volatile int rowLimit;
+		Point point;
+		int misCount = Integer.MAX_VALUE;
+
+		SearchResult(int rowCount, boolean best) {
+			rowLimit = rowCount;
+			this.best = best;
+		}
+
+		synchronized void offer(Point p, int count, boolean last) {
+			boolean earlier = point == null || p.y < point.y || (p.y == point.y && p.x < point.x);
+			if (best ? (count < misCount || (count == misCount && earlier)) : earlier) {
+				point = p;
+				misCount = count;
+			}
+			if (last && p.y < rowLimit) {
+				rowLimit = p.y;
 			}
 		}
-		return point;
 	}
 
-	private void drawMatchResultImage(BufferedImage img, Rectangle imageArea, int x, int y, Rectangle matchArea, File file) {
+	private BufferedImage drawMatchResultImage(BufferedImage img, Rectangle imageArea, int x, int y, Rectangle matchArea) {
 		int[] image = loadIntArrayFromImage(img, imageArea);
 		BufferedImage bi = new BufferedImage(imageArea.width, imageArea.height, BufferedImage.TYPE_INT_BGR);
 		for(int i=0;i<image.length;i++){
@@ -152,38 +206,31 @@ public class SearchBinaryImageComparisonModule extends SearchImageComparisonModu
 				bi.setRGB(px, py, img.getRGB(px, py));
 			}
 		}
-		ImageUtil.writeBufferedImageToFile(bi, file);
-		
+		return bi;
 	}
 
-	private int match(int mmRow, int mmColumn, final int[] mm, final int[] sm,Rectangle mr, Rectangle sr, float passRate)
+	/**
+	 * Count pixels of the template which differ from the image at the given
+	 * position. As the search always did, the position is accepted when the
+	 * number of mismatches exceeds the limit just on the very last pixel.
+	 * @param limit count which makes the position uninteresting.
+	 * @return number of mismatches or -1 if it is over the pass rate or the limit.
+	 */
+	private static int match(int x, int y, ChainCodeIndex index, final int[] sm, Rectangle sr, int totalMismatch, int limit)
 	{
-		int totalMismatch = (int)(sr.width * sr.height * (1-passRate));
+		final int[] mm = index.pixels;
+		final int mw = index.width, sw = sr.width, sh = sr.height;
+		final int abort = Math.min(limit, totalMismatch + 2);
 		int mismatchCount = 0;
-		for(int x=0; x<sr.width; x++){
-			for(int y=0;y<sr.height;y++){
-				if(mismatchCount > totalMismatch){
-					return -1;
-				} else if(mmColumn + y >= mr.height){
+		for (int j = 0; j < sh; j++) {
+			for (int i = 0, m = (y + j) * mw + x, s = j * sw; i < sw; i++, m++, s++) {
+				if (mm[m] != sm[s] && ++mismatchCount >= abort) {
 					return -1;
 				}
-				else{
-					int mmValue = mm[(mmColumn+y)*mr.width + mmRow+x];
-//					System.out.print("mm["+(int)(mmRow+x)+","+(int)(mmColumn+y)+"]="+mmValue);
-					int smValue = sm[y*sr.width+x];
-//					System.out.println(" sm["+x+","+y+"]="+mmValue);
-					
-					if((mmValue!=WHITE && mmValue!=BLACK) || (smValue!=WHITE && smValue != BLACK)){
-						System.out.println("invalid color for comparison");
-					}
-					
-					if(mmValue!=smValue){
-						mismatchCount++;
-					}
-				}
 			}
 		}
-		return mismatchCount;
+		int last = mm[(y + sh - 1) * mw + x + sw - 1] != sm[sh * sw - 1] ? 1 : 0;
+		return mismatchCount - last > totalMismatch ? -1 : mismatchCount;
 	}
 
 	private int[] loadIntArrayFromImage(Image img, Rectangle r) {
@@ -192,10 +239,8 @@ public class SearchBinaryImageComparisonModule extends SearchImageComparisonModu
 		int ai[]; // = new int[width * height];
 
 		if (img instanceof BufferedImage) {
-			BufferedImage bi = (BufferedImage) img;
 //			System.out.println(r.toString());
-			ai = ((BufferedImage) img).getRGB(r.x, r.y, width, height,
-					(int[]) null, 0, width);
+			ai = PixelAccess.read(img, r, null);
 
 		} else {
 			ai = new int[width * height];
@@ -279,46 +324,46 @@ public class SearchBinaryImageComparisonModule extends SearchImageComparisonModu
 		int width = r.width;
 		int height = r.height;
 		for (int i = 0; i < height; i++) {
-			int[] list = chainCodeTransformLine(ArrayUtils.subarray(pixels, i* width, (i+1) * width));
-//			int[] list = chainCodeTransformLine(ArrayUtils.subarray(pixels, i* height + width, i * (height + 1)));
-//			System.out.println(list.length);
-			matrix.add(list);
+			matrix.add(encodeLine(pixels, i * width, width));
 		}
 		return matrix;
 	}
 
-	private final int WHITE = -1;
-	private final int BLACK = -16777216;
-	private final int NACOLOR = 250;
+	private static final int BLACK = -16777216;
+	private static final int MIN_BAND_ROWS = 16;
 	
 	public int[] chainCodeTransformLine(int[] line) {
-		List<Integer> list = new ArrayList<Integer>();
-		int previous = NACOLOR;
-		int sameCount = 0;
-		boolean is0 = true;
-		for (int i = 0; i < line.length; i++) {
-//			System.out.println(line[i]);
-			if (previous != line[i]) {
-				if (i == 0) {
-					if (line[i] == BLACK) {
-						list.add(0);
-						// System.out.print(0);
-					}
-				} else {
-					list.add(sameCount);
-					// System.out.print(sameCount);
-				}
-				sameCount = 1;
-				is0 = !is0;
-			} else {
-				sameCount++;
+		return encodeLine(line, 0, line.length);
+	}
+
+	/**
+	 * Encode a line of pixels as lengths of runs of the same color. The first
+	 * run is white, it's empty if the line starts with black.
+	 * @param pixels pixels.
+	 * @param offset index of the first pixel of the line.
+	 * @param length line length.
+	 * @return run lengths.
+	 */
+	static int[] encodeLine(int[] pixels, int offset, int length) {
+		int count = pixels[offset] == BLACK ? 2 : 1;
+		for (int i = offset + 1, end = offset + length; i < end; i++) {
+			if (pixels[i] != pixels[i - 1]) {
+				count++;
+			}
+		}
+		int[] runs = new int[count];
+		int run = 0, start = offset;
+		if (pixels[offset] == BLACK) {
+			runs[run++] = 0;
+		}
+		for (int i = offset + 1, end = offset + length; i < end; i++) {
+			if (pixels[i] != pixels[i - 1]) {
+				runs[run++] = i - start;
+				start = i;
 			}
-			previous = line[i];
 		}
-		list.add(sameCount);
-		// System.out.println(sameCount);
-		return ArrayUtils.toPrimitive(list.toArray(new Integer[list.size()]));
-		// return list;
+		runs[run] = offset + length - start;
+		return runs;
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -1,29 +1,325 @@
 package com.sybase.robot.imagecomparison.searchgrey;
 
 import java.awt.Image;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.sybase.robot.scripting.commands.impl.ImageUtil;
+import com.tplan.robot.imagecomparison.search.BestMatchList;
 import com.tplan.robot.imagecomparison.search.SearchImageComparisonModule;
 import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.PixelAccess;
 
+/**
+ * Search of the template in the greyscale version of the desktop. Luminance
+ * is extracted straight from the image buffer for the searched area only
+ * into a reusable byte plane and the template is matched against the bytes.
+ * Images which are already greyscale (<code>TYPE_BYTE_GRAY</code>) are used
+ * as they are, RGB pixels are converted with the same weights Java2D uses
+ * when drawing into a greyscale image.
+ */
 public class SearchGreyImageComparisonModule extends SearchImageComparisonModule{
-	
+
+	/** Template luminance, row by row. */
+	private byte[] template;
+	/** Indices of the opaque template pixels, transparent ones are ignored. */
+	private int[] opaque;
+	/** Reusable luminance plane of the searched area. */
+	private byte[] plane = new byte[0];
+	/** Reusable summed-area tables of the plane (luminance and its square). */
+	private int[] sums = new int[0];
+	private long[] squares = new long[0];
+
 	public void setBaseImage(Image img){
-		BufferedImage bi = ImageUtil.convert(ImageUtil.imageToBufferedImage(img), BufferedImage.TYPE_BYTE_GRAY);
-		super.setBaseImage(bi);
-		
+		BufferedImage bi = ImageUtil.imageToBufferedImage(img);
+		int w = bi.getWidth(), h = bi.getHeight();
+		template = new byte[w * h];
+		luminance(bi, new Rectangle(0, 0, w, h), template);
+
+		// Keep the grey template in the RGB form for the generic search as well
+		int[] argb = PixelAccess.read(bi, new Rectangle(0, 0, w, h), null);
+		int[] o = new int[w * h];
+		int count = 0;
+		for (int i = 0; i < argb.length; i++) {
+			if ((argb[i] >>> 24) == 0xFF) {
+				argb[i] = 0xFF000000 | (template[i] & 0xFF) * 0x010101;
+				o[count++] = i;
+			} else {
+				argb[i] = 0;
+			}
+		}
+		opaque = new int[count];
+		System.arraycopy(o, 0, opaque, 0, count);
+		setPixels(argb, new Rectangle(0, 0, w, h));
+	}
+
+	@Override
+	public float compare(Image desktopImage, Rectangle area, Image image,
+			String methodParams, ScriptingContext repository, float passRate) {
+		setBaseImage(image);
+		return compareToBaseImage(desktopImage, area, methodParams, repository, passRate);
 	}
 
 	@Override
 	public float compareToBaseImage(Image desktopImage, Rectangle area,
 			String methodParams, ScriptingContext repository, float passRate) {
-		BufferedImage bi = ImageUtil.convert(ImageUtil.imageToBufferedImage(desktopImage), BufferedImage.TYPE_BYTE_GRAY);
-		return super.compareToBaseImage(bi, area, methodParams, repository,
-				passRate);
+		BufferedImage bi = ImageUtil.imageToBufferedImage(desktopImage);
+		if (template == null || getFailedPixels() != null) {
+			// Failed pixels are tracked by the generic search only
+			return super.compareToBaseImage(toGreyRgb(bi), area, methodParams, repository, passRate);
+		}
+		stop = false;
+		pxcnt = 0;
+		Rectangle fullRect = new Rectangle(0, 0, bi.getWidth(), bi.getHeight());
+		area = area == null ? fullRect : area.intersection(fullRect);
+		loadSearchSettings(repository);
+		loadMethodParams(methodParams, repository);
+
+		List<Point> pts = new ArrayList<Point>();
+		BestMatchList best = bestMatchMode
+				? new BestMatchList(bestMatchCount, (int) (pixels.length - passRate * pixels.length))
+				: null;
+		if (area.width >= r.width && area.height >= r.height) {
+			offsetCount = (area.width - r.width + 1) * (area.height - r.height + 1);
+			int size = area.width * area.height;
+			if (plane.length < size) {
+				plane = new byte[size];
+			}
+			luminance(bi, area, plane);
+			search(area, passRate, pts, best);
+		}
+		if (best != null) {
+			return publishSearchResults(best.getPoints(), best.getScores(pixels.length), repository);
+		}
+		return publishSearchResults(pts, repository);
+	}
+
+	/**
+	 * Search the plane. In the best match mode a position is abandoned as soon
+	 * as it has more different pixels than the bound given by the best
+	 * positions found so far.
+	 */
+	private void search(Rectangle area, float passRate, List<Point> pts, BestMatchList best) {
+		final byte[] t = template, p = plane;
+		final int tw = r.width, aw = area.width;
+		final int allowed = (int) (pixels.length - passRate * pixels.length);
+
+		// Offsets of the opaque pixels in the plane, the rarest levels go first
+		final int[] order = sortByRarity(allowed + 1);
+		final int n = order.length;
+		final int[] offsets = new int[n];
+		final byte[] levels = new byte[n];
+		for (int i = 0; i < n; i++) {
+			int k = order[i];
+			offsets[i] = (k / tw) * aw + k % tw;
+			levels[i] = t[k];
+		}
+
+		// Window sums of an opaque template may differ by at most 255 (255^2)
+		// per different pixel and by the tolerance (tolerance * 2 * 255) per
+		// matching one; other windows can't match
+		final int tolerance = colorTolerance, range = 2 * tolerance;
+		final long sumSlack = (long) tolerance * n, squareSlack = (long) tolerance * 2 * 255 * n;
+		final boolean prefilter = (allowed > 0 || tolerance > 0) && n == pixels.length;
+		final int th = r.height, sw = aw + 1;
+		long templateSum = 0, templateSquare = 0;
+		if (prefilter) {
+			integrate(area);
+			for (int i = 0; i < n; i++) {
+				int v = levels[i] & 0xFF;
+				templateSum += v;
+				templateSquare += v * v;
+			}
+		}
+		long maxSumDiff = 255L * allowed + sumSlack, maxSquareDiff = 255L * 255 * allowed + squareSlack;
+		int bound = allowed;
+		final int[] is = sums;
+		final long[] isq = squares;
+
+		final int maxX = aw - tw, maxY = area.height - th;
+		for (int y = 0; y <= maxY && !stop; y++) {
+			for (int x = 0, base = y * aw; x <= maxX; x++, base++) {
+				pxcnt++;
+				if (best != null && best.getBound() != bound) {
+					bound = best.getBound();
+					if (bound < 0) {
+						// The list is full of exact matches
+						return;
+					}
+					maxSumDiff = 255L * bound + sumSlack;
+					maxSquareDiff = 255L * 255 * bound + squareSlack;
+				}
+				if (prefilter) {
+					int a = y * sw + x, b = a + tw, c = a + th * sw, d = c + tw;
+					if (Math.abs(is[d] - is[b] - is[c] + is[a] - templateSum) > maxSumDiff
+							|| Math.abs(isq[d] - isq[b] - isq[c] + isq[a] - templateSquare) > maxSquareDiff) {
+						continue;
+					}
+				}
+				int failed = 0;
+				int i = 0;
+				for (; i < n; i++) {
+					// Different if the shifted difference is negative or above the range
+					int d = (p[base + offsets[i]] & 0xFF) - (levels[i] & 0xFF) + tolerance;
+					if ((d | (range - d)) < 0 && ++failed > bound) {
+						break;
+					}
+				}
+				if (i == n && best != null) {
+					best.offer(new Point(area.x + x, area.y + y), failed);
+				} else if (i == n) {
+					pts.add(new Point(area.x + x, area.y + y));
+					if (MAX_HITS > 0 && pts.size() >= MAX_HITS) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build the summed-area tables of the plane. They have one extra leading
+	 * row and column of zeros.
+	 */
+	private void integrate(Rectangle area) {
+		final int w = area.width, h = area.height, sw = w + 1;
+		int size = sw * (h + 1);
+		if (sums.length < size) {
+			sums = new int[size];
+			squares = new long[size];
+		}
+		final byte[] p = plane;
+		final int[] is = sums;
+		final long[] isq = squares;
+		for (int x = 0; x < sw; x++) {
+			is[x] = 0;
+			isq[x] = 0;
+		}
+		for (int y = 0; y < h; y++) {
+			int rowSum = 0;
+			long rowSquare = 0;
+			int i = (y + 1) * sw;
+			is[i] = 0;
+			isq[i] = 0;
+			for (int x = 0, s = y * w; x < w; x++, s++) {
+				int v = p[s] & 0xFF;
+				rowSum += v;
+				rowSquare += v * v;
+				is[i + x + 1] = is[i + x + 1 - sw] + rowSum;
+				isq[i + x + 1] = isq[i + x + 1 - sw] + rowSquare;
+			}
+		}
+	}
+
+	/**
+	 * Order the opaque template pixels so that the first <code>leading</code>
+	 * ones have the least frequent grey levels. Mismatches are found there
+	 * first and most positions are rejected after a few comparisons.
+	 */
+	private int[] sortByRarity(int leading) {
+		int[] counts = new int[256];
+		for (int i = 0; i < opaque.length; i++) {
+			counts[template[opaque[i]] & 0xFF]++;
+		}
+		// Levels from the rarest one; a stable counting sort keeps the row order within a level
+		int[] levels = new int[256];
+		for (int i = 0; i < 256; i++) {
+			levels[i] = i;
+		}
+		for (int i = 1; i < 256; i++) {
+			int v = levels[i], j = i;
+			while (j > 0 && counts[levels[j - 1]] > counts[v]) {
+				levels[j] = levels[j - 1];
+				j--;
+			}
+			levels[j] = v;
+		}
+		int[] start = new int[256];
+		for (int i = 0, pos = 0; i < 256; i++) {
+			start[levels[i]] = pos;
+			pos += counts[levels[i]];
+		}
+		int[] sorted = new int[opaque.length];
+		for (int i = 0; i < opaque.length; i++) {
+			sorted[start[template[opaque[i]] & 0xFF]++] = opaque[i];
+		}
+		// The rest is compared in the row order which is kinder to the cache
+		leading = Math.min(leading, sorted.length);
+		Arrays.sort(sorted, leading, sorted.length);
+		return sorted;
+	}
+
+	/**
+	 * Extract luminance of a rectangle of the image into a byte plane
+	 * of the rectangle width.
+	 */
+	private static void luminance(BufferedImage img, Rectangle area, byte[] dst) {
+		Raster raster = img.getRaster();
+		final int w = area.width;
+		int type = img.getType();
+		if (raster.getDataBuffer() instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)) {
+			int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+			int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			int origin = ((DataBufferInt) raster.getDataBuffer()).getOffset()
+					- raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+			for (int y = 0; y < area.height; y++) {
+				int s = origin + (area.y + y) * stride + area.x;
+				int d = y * w;
+				for (int x = 0; x < w; x++) {
+					dst[d + x] = grey(data[s + x]);
+				}
+			}
+		} else if (type == BufferedImage.TYPE_BYTE_GRAY && raster.getSampleModel() instanceof ComponentSampleModel) {
+			byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+			int stride = sm.getScanlineStride();
+			int origin = ((DataBufferByte) raster.getDataBuffer()).getOffset() + sm.getBandOffsets()[0]
+					- raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+			for (int y = 0; y < area.height; y++) {
+				System.arraycopy(data, origin + (area.y + y) * stride + area.x, dst, y * w, w);
+			}
+		} else {
+			int[] rgb = null;
+			Rectangle row = new Rectangle(area.x, area.y, w, 1);
+			for (int y = 0; y < area.height; y++, row.y++) {
+				rgb = PixelAccess.read(img, row, rgb);
+				for (int x = 0; x < w; x++) {
+					dst[y * w + x] = grey(rgb[x]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Luminance of an RGB pixel with the weights of the Java2D conversion to
+	 * <code>TYPE_BYTE_GRAY</code>.
+	 */
+	private static byte grey(int rgb) {
+		return (byte) ((77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF) + 128) >> 8);
 	}
-	
+
+	private static BufferedImage toGreyRgb(BufferedImage img) {
+		int w = img.getWidth(), h = img.getHeight();
+		byte[] g = new byte[w * h];
+		luminance(img, new Rectangle(0, 0, w, h), g);
+		BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (g[i] & 0xFF) * 0x010101;
+		}
+		return out;
+	}
+
 	public String getCode(){
 //		System.out.println("plugin activated");
 		return "searchgrey";
@@ -121,6 +121,14 @@ public class JavaClientImpl extends RfbClientImpl{
 		return robot().createScreenCapture(screenRectangle());
 	}
 
+	/**
+	 * The image is captured on demand and there are no update events.
+	 */
+	@Override
+	public boolean isActivelyUpdating() {
+		return true;
+	}
+
 	@Override
 	public MouseEvent getLastMouseEvent() {
 		// TODO Auto-generated method stub
@@ -1,90 +1,79 @@
 package com.sybase.robot.scripting.commands.impl;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 public class CannyEdgeDetection{
 
     public static final double T1 = 0.2 * Util.L;
     public static final double T2 = 0.4 * T1;
 
-    private static final int[][] GX = {
-                    {-1, 0, 1},
-                    {-2, 0, 2},
-                    {-1, 0, 1}
-    };
-    private static final int[][] GY = {
-                    {1, 2, 1},
-                    {0, 0, 0},
-                    {-1, -2, -1},
-    };
+    /** Sobel masks are separable: GX = DIFF x SMOOTH, GY = SMOOTH x -DIFF. */
+    private static final int[] GY_COLUMNS = {1, 0, -1};
 
     private static final int MARGIN = 1;
 
     /**
      * Edge strength.
      */
-    private int[][] pixelMagnitudes;
-    private int[][] pixelEdgeDirections;
+    private int[] pixelMagnitudes;
+    private int[] pixelEdgeDirections;
+    private int width;
 
     public BufferedImage processImage(BufferedImage inputImage) {
-//    	System.out.print("Image processing started... ");
-            BufferedImage processedImage =
-                    new GaussianBlur().processImage(inputImage);
-            pixelMagnitudes = pixelMagnitudes(processedImage);
-            pixelEdgeDirections = pixelEdgeDirections(processedImage);
-            for (int y = MARGIN + 1; y < inputImage.getHeight() - MARGIN - 1; y++) {
-                    for (int x = MARGIN + 1; x < inputImage.getWidth() - MARGIN - 1; x++) {
+            final int w = inputImage.getWidth(), h = inputImage.getHeight();
+            width = w;
+            int[] blurred = new GaussianBlur().processPlane(inputImage);
+            BufferedImage processedImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            int[] out = ((DataBufferInt) processedImage.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < out.length; i++) {
+                    out[i] = 0xFF000000 | blurred[i] * 0x010101;
+            }
+
+            ImageFilterEngine filters = ImageFilterEngine.getInstance();
+            int[] gx = filters.acquireInts(w * h);
+            int[] gy = filters.acquireInts(w * h);
+            int[] tmp = filters.acquireInts(w * h);
+            try {
+                    filters.filter(blurred, tmp, gx, w, h, ImageFilterEngine.SOBEL_DIFF, ImageFilterEngine.SOBEL_SMOOTH);
+                    filters.filter(blurred, tmp, gy, w, h, ImageFilterEngine.SOBEL_SMOOTH, GY_COLUMNS);
+                    pixelMagnitudes = new int[w * h];
+                    pixelEdgeDirections = new int[w * h];
+                    for (int i = 0; i < pixelMagnitudes.length; i++) {
+                            pixelMagnitudes[i] = pixelMagnitude(gx[i], gy[i]);
+                            // Direction matters only for the edge candidates
+                            if (pixelMagnitudes[i] > T2) {
+                                    pixelEdgeDirections[i] = pixelEdgeDirection(gx[i], gy[i]);
+                            }
+                    }
+            } finally {
+                    filters.release(gx);
+                    filters.release(gy);
+                    filters.release(tmp);
+            }
+
+            for (int y = MARGIN + 1; y < h - MARGIN - 1; y++) {
+                    for (int x = MARGIN + 1; x < w - MARGIN - 1; x++) {
                             int q;
-                            boolean isSuppressed =
-                                    nonMaximumSuppression(x, y, processedImage);
-                            boolean isEdge = hysteresis(x, y, processedImage);
-                            if (isEdge && !isSuppressed) {
+                            if (hysteresis(x, y) && !nonMaximumSuppression(x, y)) {
                                     q = Util.COLOR_BLACK;
                             } else {
                                     q = Util.COLOR_WHITE;
                             }
-                            processedImage.setRGB(x, y, new Color(q, q, q).getRGB());
+                            out[y * w + x] = 0xFF000000 | q * 0x010101;
                     }
             }
-//            System.out.println("finished");
             return processedImage;
     }
 
-    private static int[][] pixelMagnitudes(BufferedImage image) {
-            int[][]  pixelMagnitudes = new int[image.getHeight()][];
-            for (int y = MARGIN; y < image.getHeight() - MARGIN; y++) {
-                    pixelMagnitudes[y] = new int[image.getWidth()];
-                    for (int x = MARGIN; x < image.getWidth() - MARGIN; x++) {
-                            pixelMagnitudes[y][x] = pixelMagnitude(x, y, image);
-                    }
-            }
-            return pixelMagnitudes;
-    }
-
-    private static int[][] pixelEdgeDirections(BufferedImage image) {
-            int[][]  pixelEdgeDirections = new int[image.getHeight()][];
-            for (int y = MARGIN; y < image.getHeight() - MARGIN; y++) {
-                    pixelEdgeDirections[y] = new int[image.getWidth()];
-                    for (int x = MARGIN; x < image.getWidth() - MARGIN; x++) {
-                            pixelEdgeDirections[y][x] = pixelEdgeDirection(x, y, image);
-                    }
-            }
-            return pixelEdgeDirections;
-    }
-
-    private static int pixelMagnitude(int x, int y, BufferedImage image) {
-            int Gx = applyMask(GX, x, y, image);
-            int Gy = applyMask(GY, x, y, image);
+    private static int pixelMagnitude(int Gx, int Gy) {
             int magnitude = Math.abs(Gx) + Math.abs(Gy);
             magnitude = Math.max(0, magnitude);
             magnitude = Math.min(Util.L - 1, magnitude);
             return magnitude;
     }
 
-    private static int pixelEdgeDirection(int x, int y, BufferedImage image) {
-            double Gx = applyMask(GX, x, y, image);
-            double Gy = applyMask(GY, x, y, image);
+    private static int pixelEdgeDirection(double Gx, double Gy) {
             double theta;
             if (Gx != 0) {
                     theta = Math.toDegrees(Math.atan(Gy / Gx) + Math.PI / 2);
@@ -109,26 +98,27 @@ public class CannyEdgeDetection{
             return direction;
     }
 
-    private boolean nonMaximumSuppression(int x, int y, BufferedImage image) {
-            int magnitude = pixelMagnitudes[y][x];
+    private boolean nonMaximumSuppression(int x, int y) {
+            int i = y * width + x;
+            int magnitude = pixelMagnitudes[i];
             int magnitudeNeighbor0;
             int magnitudeNeighbor1;
-            switch (pixelEdgeDirections[y][x]) {
+            switch (pixelEdgeDirections[i]) {
             case 0:
-                    magnitudeNeighbor0 = pixelMagnitudes[y - 1][x];
-                    magnitudeNeighbor1 = pixelMagnitudes[y + 1][x];
+                    magnitudeNeighbor0 = pixelMagnitudes[i - width];
+                    magnitudeNeighbor1 = pixelMagnitudes[i + width];
                     break;
             case 90:
-                    magnitudeNeighbor0 = pixelMagnitudes[y][x - 1];
-                    magnitudeNeighbor1 = pixelMagnitudes[y][x + 1];
+                    magnitudeNeighbor0 = pixelMagnitudes[i - 1];
+                    magnitudeNeighbor1 = pixelMagnitudes[i + 1];
                     break;
             case 135:
-                    magnitudeNeighbor0 = pixelMagnitudes[y - 1][x + 1];
-                    magnitudeNeighbor1 = pixelMagnitudes[y + 1][x - 1];
+                    magnitudeNeighbor0 = pixelMagnitudes[i - width + 1];
+                    magnitudeNeighbor1 = pixelMagnitudes[i + width - 1];
                     break;
             case 45:
-                    magnitudeNeighbor0 = pixelMagnitudes[y - 1][x - 1];
-                    magnitudeNeighbor1 = pixelMagnitudes[y + 1][x + 1];
+                    magnitudeNeighbor0 = pixelMagnitudes[i - width - 1];
+                    magnitudeNeighbor1 = pixelMagnitudes[i + width + 1];
                     break;
             default:
                     throw new AssertionError(
@@ -139,45 +129,20 @@ public class CannyEdgeDetection{
             return isSuppressed;
     }
 
-    private boolean hysteresis(int x, int y, BufferedImage image) {
-            boolean isEdge = false;
-            if (pixelMagnitudes[y][x] > T1) {
-                    isEdge = true;
-            } else if (pixelMagnitudes[y][x] > T2) {
+    private boolean hysteresis(int x, int y) {
+            int i = y * width + x;
+            if (pixelMagnitudes[i] > T1) {
+                    return true;
+            } else if (pixelMagnitudes[i] > T2) {
                     // is edge if a neighbor has magnitude > T1
-                    int[] neighborsMagnitudes = neighborsMagnitudes(x, y);
-                    for (int i = 0; i < neighborsMagnitudes.length; i++) {
-                            if (neighborsMagnitudes[i] > T1) {
-                                    isEdge = true;
+                    for (int ny = y - 1; ny <= y + 1; ny++) {
+                            for (int nx = x - 1; nx <= x + 1; nx++) {
+                                    if ((nx != x || ny != y) && pixelMagnitudes[ny * width + nx] > T1) {
+                                            return true;
+                                    }
                             }
                     }
             }
-            return isEdge;
-    }
-
-    private int[] neighborsMagnitudes(int x, int y) {
-            int[] neighbors = new int[] {
-                            pixelMagnitudes[y - 1][x - 1],
-                            pixelMagnitudes[y - 1][x],
-                            pixelMagnitudes[y - 1][x + 1],
-                            pixelMagnitudes[y][x - 1],
-                            pixelMagnitudes[y][x + 1],
-                            pixelMagnitudes[y + 1][x - 1],
-                            pixelMagnitudes[y + 1][x],
-                            pixelMagnitudes[y + 1][x + 1],
-            };
-            return neighbors;
-    }
-
-    private static int applyMask(int[][] mask, int x, int y, BufferedImage image) {
-            int sum = 0;
-            for (int i = 0; i < mask.length; i++) {
-                    for (int j = 0; j < mask[i].length; j++) {
-                            sum += mask[i][j]
-                                            * Util.q(x + j - mask.length / 2,
-                                                            y + i - mask.length / 2, image);
-                    }
-            }
-            return sum;
+            return false;
     }
 }
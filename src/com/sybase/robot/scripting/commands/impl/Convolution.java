@@ -6,7 +6,10 @@ import java.awt.Color;
  * Convolution is the code for applying the convolution operator.
  *
  * @author: Simon Horne
+ * @deprecated Use {@link ImageFilterEngine} which applies separable kernels
+ * to flat pixel planes.
  */
+@Deprecated
 public class Convolution extends Thread {
 
     /**
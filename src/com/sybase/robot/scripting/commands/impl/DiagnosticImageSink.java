@@ -0,0 +1,165 @@
+package com.sybase.robot.scripting.commands.impl;
+
+import com.tplan.robot.preferences.ConfigurationChangeEvent;
+import com.tplan.robot.preferences.ConfigurationChangeListener;
+import com.tplan.robot.preferences.ConfigurationKeys;
+import com.tplan.robot.preferences.UserConfiguration;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Asynchronous writer of diagnostic images (edge maps, templates, match
+ * results). Images are copied, put to a bounded queue and encoded to PNG
+ * files by a background thread, so the comparison doesn't wait for the
+ * encoder and the disk. Images submitted while the queue is full are dropped.
+ * <p>
+ * The sink is off by default. It is configured in the user configuration
+ * and it follows changes of the values:
+ * </p>
+ * <ul>
+ * <li>{@link ConfigurationKeys#DIAGNOSTICS_OUTPUT_DIR} - directory to write
+ * the images to; diagnostic images are written only when it is set,</li>
+ * <li>{@link ConfigurationKeys#DIAGNOSTICS_SAMPLING} - write only every n-th
+ * image of the same name (default 1, i.e. every image),</li>
+ * <li>{@link ConfigurationKeys#DIAGNOSTICS_QUEUE_SIZE} - maximum number of
+ * images waiting for the encoder (default 4).</li>
+ * </ul>
+ * An image is saved as <code>&lt;name&gt;.png</code>, a newer image of the same
+ * name replaces the older one.
+ */
+public class DiagnosticImageSink implements Runnable, ConfigurationChangeListener {
+
+	private static DiagnosticImageSink instance;
+
+	private final UserConfiguration cfg;
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+	private final Map<String, Integer> counters = new HashMap<String, Integer>();
+	private volatile File dir;
+	private volatile int sampling;
+	private volatile int queueSize;
+	private Thread thread;
+
+	DiagnosticImageSink(UserConfiguration cfg) {
+		this.cfg = cfg;
+		configure();
+		cfg.addConfigurationListener(this);
+	}
+
+	public static synchronized DiagnosticImageSink getInstance() {
+		if (instance == null) {
+			instance = new DiagnosticImageSink(UserConfiguration.getInstance());
+		}
+		return instance;
+	}
+
+	private void configure() {
+		String d = cfg.getString(ConfigurationKeys.DIAGNOSTICS_OUTPUT_DIR);
+		Integer s = cfg.getInteger(ConfigurationKeys.DIAGNOSTICS_SAMPLING);
+		Integer q = cfg.getInteger(ConfigurationKeys.DIAGNOSTICS_QUEUE_SIZE);
+		dir = d == null || d.trim().length() == 0 ? null : new File(d.trim());
+		sampling = s == null ? 1 : Math.max(1, s.intValue());
+		queueSize = q == null ? 4 : Math.max(1, q.intValue());
+	}
+
+	public void configurationChanged(ConfigurationChangeEvent evt) {
+		if (evt.getPropertyName().startsWith("DiagnosticImageSink.")) {
+			configure();
+		}
+	}
+
+	/**
+	 * Find out whether diagnostic images are being written at all.
+	 * @return true if the output directory is configured.
+	 */
+	public boolean isEnabled() {
+		return dir != null;
+	}
+
+	/**
+	 * Decide whether the next image of the given name will be written. It
+	 * allows to skip creation of an image which is expensive to draw. Every
+	 * call counts as one image for the sampling.
+	 * @param name image name.
+	 * @return true if the image should be created and passed to
+	 * {@link #write(String, BufferedImage)}.
+	 */
+	public boolean accept(String name) {
+		if (dir == null) {
+			return false;
+		}
+		int sampling = this.sampling;
+		synchronized (counters) {
+			Integer count = counters.get(name);
+			int c = count == null ? 0 : count.intValue();
+			counters.put(name, Integer.valueOf(c + 1));
+			return c % sampling == 0;
+		}
+	}
+
+	/**
+	 * Write an image if it passes the sampling.
+	 * @param name image name.
+	 * @param image image. It is copied, the caller may modify it afterwards.
+	 */
+	public void submit(String name, BufferedImage image) {
+		if (accept(name)) {
+			write(name, image);
+		}
+	}
+
+	/**
+	 * Queue an image for writing regardless of the sampling, typically after
+	 * {@link #accept(String)} returned true.
+	 * @param name image name.
+	 * @param image image. It is copied, the caller may modify it afterwards.
+	 */
+	public void write(String name, BufferedImage image) {
+		File dir = this.dir;
+		if (dir == null || image == null || queue.size() >= queueSize) {
+			return;
+		}
+		BufferedImage copy = new BufferedImage(image.getColorModel(), image.copyData(null),
+				image.isAlphaPremultiplied(), null);
+		if (queue.offer(new Entry(new File(dir, name + ".png"), copy))) {
+			start();
+		}
+	}
+
+	private synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "Diagnostic image writer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Entry e = queue.take();
+				e.file.getParentFile().mkdirs();
+				ImageUtil.writeBufferedImageToFile(e.image, e.file);
+			} catch (InterruptedException ex) {
+				return;
+			} catch (RuntimeException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private static class Entry {
+		final File file;
+		final BufferedImage image;
+
+		Entry(File file, BufferedImage image) {
+			this.file = file;
+			this.image = image;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package com.sybase.robot.scripting.commands.impl;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.tplan.robot.util.BandExecutor;
+import com.tplan.robot.util.PixelAccess;
+
+/**
+ * Canny edge detector used for edge based image matching. Produces black
+ * edges on a white background.
+ * <p>
+ * Luminance is smoothed with a separable 5x5 binomial (Gaussian) kernel and
+ * differentiated with a separable Sobel operator, both applied by
+ * {@link ImageFilterEngine}. All passes work on flat integer arrays and are
+ * split into row bands processed in parallel. Working
+ * buffers are pooled per image size, so repeated detection on the desktop
+ * image doesn't allocate anything but the resulting image. Hysteresis
+ * tracing uses an explicit stack instead of recursion.
+ * </p>
+ * Gradient marks of a pixel depend only on luminance within
+ * {@link #KERNEL_RADIUS} pixels, which allows to update edges of a part of
+ * an image (see {@link LiveEdgeMap}).
+ * The class is thread safe.
+ */
+public class EdgeDetectionEngine {
+
+	/** Thresholds of the gradient magnitude in luminance levels (0-255). */
+	public static final double HIGH_THRESHOLD = CannyEdgeDetection.T1;
+	public static final double LOW_THRESHOLD = CannyEdgeDetection.T2;
+
+	/** Distance of pixels affecting the gradient marks of a pixel. */
+	public static final int KERNEL_RADIUS = 4;
+
+	/** Gradient mark values and the edge flag. */
+	static final int WEAK = 1;
+	static final int STRONG = 2;
+	static final int GRADIENT = 3;
+	static final int EDGE = 4;
+
+	static final int EDGE_COLOR = 0xFF000000;
+	static final int BACKGROUND_COLOR = 0xFFFFFFFF;
+
+	/** Blurred luminance is scaled by 16*16 by the binomial kernel. */
+	private static final int SCALE = 256;
+	private static final int HIGH = (int) (HIGH_THRESHOLD * SCALE);
+	private static final int LOW = (int) (LOW_THRESHOLD * SCALE);
+
+	/** tan(22.5) and tan(67.5) scaled by 256. */
+	private static final int TAN_22 = 106;
+	private static final int TAN_67 = 618;
+
+	static final int MIN_BAND_ROWS = 32;
+	private static final int MAX_POOLED_SIZES = 8;
+
+	private static final EdgeDetectionEngine instance = new EdgeDetectionEngine();
+
+	/** Pooled buffers, key is the buffer size. */
+	private final Map<Long, LinkedList<Buffers>> pool = new LinkedHashMap<Long, LinkedList<Buffers>>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Long, LinkedList<Buffers>> eldest) {
+			return size() > MAX_POOLED_SIZES;
+		}
+	};
+
+	public static EdgeDetectionEngine getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Detect edges in an image.
+	 * @param image an image.
+	 * @return a new TYPE_INT_RGB image of the same size with black edges on white.
+	 */
+	public BufferedImage process(Image image) {
+		final BufferedImage src = ImageUtil.imageToBufferedImage(image);
+		final int w = src.getWidth();
+		final int h = src.getHeight();
+		BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		if (w == 0 || h == 0) {
+			return result;
+		}
+		final int[] out = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+		Rectangle all = new Rectangle(0, 0, w, h);
+		final Buffers b = acquire(w, h);
+		try {
+			if (b.plane == null) {
+				b.plane = new byte[w * h];
+				b.marks = new byte[w * h];
+			}
+			luminance(src, all, b.plane, w);
+			mark(b.plane, w, h, all, b.marks, b);
+			trace(b.marks, w, h);
+			BandExecutor.execute(h, MIN_BAND_ROWS, new BandExecutor.Task() {
+				public void run(int from, int to) {
+					for (int i = from * w, end = to * w; i < end; i++) {
+						out[i] = (b.marks[i] & EDGE) != 0 ? EDGE_COLOR : BACKGROUND_COLOR;
+					}
+				}
+			});
+		} finally {
+			release(b);
+		}
+		return result;
+	}
+
+	/**
+	 * Read luminance (average of the color components) of a rectangle of an image.
+	 * @param src source image.
+	 * @param r rectangle to read.
+	 * @param plane luminance plane of the whole image.
+	 * @param width image width.
+	 */
+	void luminance(final BufferedImage src, final Rectangle r, final byte[] plane, final int width) {
+		BandExecutor.execute(r.height, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				PixelAccess.View v = PixelAccess.getView(src, new Rectangle(r.x, r.y + from, r.width, to - from), null);
+				for (int y = r.y + from; y < r.y + to; y++) {
+					for (int x = 0, i = y * width + r.x, s = v.index(r.x, y); x < r.width; x++, i++, s++) {
+						int p = v.data[s];
+						plane[i] = (byte) ((((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF)) / 3);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Calculate gradient marks (0, WEAK or STRONG) of the target rectangle
+	 * after non-maximum suppression. The edge flag of the target pixels gets
+	 * cleared.
+	 * @param plane luminance plane of the whole image.
+	 * @param w image width.
+	 * @param h image height.
+	 * @param target rectangle to calculate.
+	 * @param marks marks of the whole image.
+	 */
+	void mark(byte[] plane, int w, int h, Rectangle target, byte[] marks) {
+		Rectangle win = getWindow(target, w, h);
+		Buffers b = acquire(win.width, win.height);
+		try {
+			mark(plane, w, h, target, marks, b);
+		} finally {
+			release(b);
+		}
+	}
+
+	private static Rectangle getWindow(Rectangle target, int w, int h) {
+		return new Rectangle(target.x - KERNEL_RADIUS, target.y - KERNEL_RADIUS,
+				target.width + 2 * KERNEL_RADIUS, target.height + 2 * KERNEL_RADIUS).intersection(new Rectangle(0, 0, w, h));
+	}
+
+	/**
+	 * Calculate gradient marks with buffers of the size of the target window.
+	 */
+	private void mark(final byte[] plane, final int w, final int h, final Rectangle target, final byte[] marks, final Buffers b) {
+		final Rectangle win = getWindow(target, w, h);
+		final int ww = win.width, wh = win.height;
+		// Luminance of the window
+		BandExecutor.execute(wh, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					for (int x = 0, i = (win.y + y) * w + win.x, j = y * ww; x < ww; x++, i++, j++) {
+						b.a[j] = plane[i] & 0xFF;
+					}
+				}
+			}
+		});
+		// Blur to c, then the separable Sobel operator: x gradient to a, y gradient to c
+		ImageFilterEngine filters = ImageFilterEngine.getInstance();
+		filters.filter(b.a, b.b, b.c, ww, wh, ImageFilterEngine.BINOMIAL_5, ImageFilterEngine.BINOMIAL_5);
+		filters.filter(b.c, b.b, b.a, ww, wh, ImageFilterEngine.SOBEL_DIFF, ImageFilterEngine.SOBEL_SMOOTH);
+		filters.filter(b.c, b.b, b.c, ww, wh, ImageFilterEngine.SOBEL_SMOOTH, ImageFilterEngine.SOBEL_DIFF);
+		// Magnitude to c and direction
+		BandExecutor.execute(wh, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				for (int i = from * ww, end = to * ww; i < end; i++) {
+					int gx = b.a[i], gy = b.c[i];
+					int ax = Math.abs(gx), ay = Math.abs(gy);
+					b.c[i] = ax + ay;
+					if ((long) ay * SCALE <= (long) ax * TAN_22) {
+						b.direction[i] = 0;
+					} else if ((long) ay * SCALE >= (long) ax * TAN_67) {
+						b.direction[i] = 1;
+					} else {
+						b.direction[i] = (byte) ((gx ^ gy) >= 0 ? 2 : 3);
+					}
+				}
+			}
+		});
+		// Non-maximum suppression and double threshold
+		BandExecutor.execute(target.height, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				for (int y = target.y + from; y < target.y + to; y++) {
+					int row = y * w;
+					for (int x = target.x; x < target.x + target.width; x++) {
+						marks[row + x] = 0;
+					}
+					if (y == 0 || y == h - 1) {
+						continue;
+					}
+					int wrow = (y - win.y) * ww - win.x;
+					for (int x = Math.max(1, target.x); x < Math.min(w - 1, target.x + target.width); x++) {
+						int i = wrow + x;
+						int m = b.c[i];
+						if (m <= LOW) {
+							continue;
+						}
+						int n0, n1;
+						switch (b.direction[i]) {
+						case 0:
+							n0 = b.c[i - 1];
+							n1 = b.c[i + 1];
+							break;
+						case 1:
+							n0 = b.c[i - ww];
+							n1 = b.c[i + ww];
+							break;
+						case 2:
+							n0 = b.c[i - ww - 1];
+							n1 = b.c[i + ww + 1];
+							break;
+						default:
+							n0 = b.c[i - ww + 1];
+							n1 = b.c[i + ww - 1];
+						}
+						if (m > n0 && m >= n1) {
+							marks[row + x] = (byte) (m > HIGH ? STRONG : WEAK);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hysteresis: flag weak pixels connected to strong ones as edges.
+	 */
+	private static void trace(byte[] marks, int w, int h) {
+		int[] stack = new int[1024];
+		int size;
+		for (int i = 0; i < marks.length; i++) {
+			if (marks[i] != STRONG) {
+				continue;
+			}
+			marks[i] |= EDGE;
+			stack[0] = i;
+			size = 1;
+			while (size > 0) {
+				int p = stack[--size];
+				int x = p % w, y = p / w;
+				for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++) {
+					for (int nx = Math.max(0, x - 1); nx <= Math.min(w - 1, x + 1); nx++) {
+						int n = ny * w + nx;
+						if ((marks[n] & GRADIENT) != 0 && (marks[n] & EDGE) == 0) {
+							marks[n] |= EDGE;
+							if (size == stack.length) {
+								int[] s = new int[stack.length * 2];
+								System.arraycopy(stack, 0, s, 0, size);
+								stack = s;
+							}
+							stack[size++] = n;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private Buffers acquire(int w, int h) {
+		Long key = Long.valueOf(((long) w << 32) | h);
+		synchronized (pool) {
+			LinkedList<Buffers> l = pool.get(key);
+			if (l != null && !l.isEmpty()) {
+				return l.removeFirst();
+			}
+		}
+		return new Buffers(w, h);
+	}
+
+	private void release(Buffers b) {
+		synchronized (pool) {
+			LinkedList<Buffers> l = pool.get(b.key);
+			if (l == null) {
+				l = new LinkedList<Buffers>();
+				pool.put(b.key, l);
+			}
+			if (l.size() < 2) {
+				l.addFirst(b);
+			}
+		}
+	}
+
+	private static class Buffers {
+		final Long key;
+		final int[] a;
+		final int[] b;
+		final int[] c;
+		final byte[] direction;
+		/** Luminance and marks, allocated only when processing a whole image. */
+		byte[] plane;
+		byte[] marks;
+
+		Buffers(int w, int h) {
+			key = Long.valueOf(((long) w << 32) | h);
+			a = new int[w * h];
+			b = new int[w * h];
+			c = new int[w * h];
+			direction = new byte[w * h];
+		}
+	}
+}
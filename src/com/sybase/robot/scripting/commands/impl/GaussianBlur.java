@@ -1,43 +1,57 @@
 package com.sybase.robot.scripting.commands.impl;
 
-import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
 
 public class GaussianBlur  {
 
-    private final static int MARGIN = 2;
+    /** The binomial kernel is applied twice, each pass multiplies by 16. */
+    private final static int SCALE = 256;
 
-    private static final int[][] GAUSS_MASK = {
-                    {2,  4,  5,  4,  2},
-                    {4,  9,  12, 9,  4},
-                    {5,  12, 15, 2,  5},
-                    {4,  9,  12, 9,  4},
-                    {2,  4,  5,  4,  2},
-    };
+    /** Width of the image border where the 5x5 kernel doesn't fit. */
+    private final static int MARGIN = 2;
 
     public BufferedImage processImage(BufferedImage inputImage) {
-            BufferedImage processedImage =
-                    new BufferedImage(inputImage.getWidth(), inputImage.getHeight(),
-                            BufferedImage.TYPE_INT_RGB);
-
-            for (int y = MARGIN; y < inputImage.getHeight() - MARGIN; y++) {
-                    for (int x = MARGIN; x < inputImage.getWidth() - MARGIN; x++) {
-                            int q = applyMask(x, y, inputImage);
-                            processedImage.setRGB(x, y, new Color(q, q, q).getRGB());
-                    }
+            int w = inputImage.getWidth(), h = inputImage.getHeight();
+            BufferedImage processedImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            int[] out = ((DataBufferInt) processedImage.getRaster().getDataBuffer()).getData();
+            int[] grey = processPlane(inputImage);
+            for (int i = 0; i < out.length; i++) {
+                    out[i] = 0xFF000000 | grey[i] * 0x010101;
             }
             return processedImage;
     }
 
-    private static int applyMask(int x, int y, BufferedImage image) {
-            double sum = 0;
-            for (int i = 0; i < GAUSS_MASK.length; i++) {
-                    for (int j = 0; j < GAUSS_MASK[i].length; j++) {
-                            sum += GAUSS_MASK[i][j]
-                                            * Util.q(x + j - GAUSS_MASK.length / 2,
-                                                            y + i - GAUSS_MASK.length / 2, image);
+    /**
+     * Blur luminance of an image. Pixels of the border where the kernel
+     * doesn't fit into the image are black (zero), so the edge detection
+     * working on the blurred image sees a black frame around it.
+     * @param inputImage an image.
+     * @return blurred luminance (0-255) of the image pixels row by row.
+     */
+    public int[] processPlane(BufferedImage inputImage) {
+            int w = inputImage.getWidth(), h = inputImage.getHeight();
+            ImageFilterEngine filters = ImageFilterEngine.getInstance();
+            int[] grey = new int[w * h];
+            int[] tmp = filters.acquireInts(w * h);
+            try {
+                    filters.luminance(inputImage, new Rectangle(0, 0, w, h), grey);
+                    filters.filter(grey, tmp, grey, w, h, ImageFilterEngine.BINOMIAL_5, ImageFilterEngine.BINOMIAL_5);
+            } finally {
+                    filters.release(tmp);
+            }
+            for (int y = 0; y < h; y++) {
+                    int row = y * w;
+                    if (y < MARGIN || y >= h - MARGIN) {
+                            Arrays.fill(grey, row, row + w, 0);
+                            continue;
+                    }
+                    for (int x = 0; x < w; x++) {
+                            grey[row + x] = x < MARGIN || x >= w - MARGIN ? 0 : grey[row + x] / SCALE;
                     }
             }
-            return (int)(sum / 159);
+            return grey;
     }
-}
\ No newline at end of file
+}
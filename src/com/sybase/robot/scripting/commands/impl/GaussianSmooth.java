@@ -77,18 +77,59 @@ public class GaussianSmooth extends Thread {
      * @param theta the gaussian distribution
      * @return 2D array representing the smoothed image
      */
-    @SuppressWarnings("static-access")
     public static double[][] smooth(double[][] input, int width, int height,
             int ks, double theta) {
-        Convolution convolution = new Convolution();
-        double[][] gaussianKernel = new double[ks][ks];
+        // The 2D kernel of gaussian2D() is a product of two 1D kernels
+        // and it is applied as a row pass and a column pass
+        float[] rowKernel = new float[ks];
+        float[] columnKernel = new float[ks];
+        double scale = 1 / (2 * Math.PI * theta * theta) / 121;
+        for (int i = 0; i < ks; ++i) {
+            double g = gaussianDiscrete1D(theta, i - (ks / 2));
+            rowKernel[i] = (float) (g * scale);
+            columnKernel[i] = (float) g;
+        }
+
+        ImageFilterEngine filters = ImageFilterEngine.getInstance();
+        float[] plane = filters.acquireFloats(width * height);
+        float[] tmp = filters.acquireFloats(width * height);
         double[][] output = new double[width][height];
-        gaussianKernel = gaussian2D(theta, ks);
-        output = convolution.convolution2DPadded(input, width, height,
-                gaussianKernel, ks, ks);
+        try {
+            for (int j = 0; j < height; ++j) {
+                for (int i = 0; i < width; ++i) {
+                    plane[j * width + i] = (float) input[i][j];
+                }
+            }
+            filters.filter(plane, tmp, plane, width, height, rowKernel, columnKernel);
+
+            // Keep the padding of the original convolution: pixels closer
+            // to the edge than half of the kernel are zero
+            int left = ks / 2, right = width - ks + left, bottom = height - ks + left;
+            for (int j = left; j <= bottom; ++j) {
+                for (int i = left; i <= right; ++i) {
+                    output[i][j] = plane[j * width + i];
+                }
+            }
+        } finally {
+            filters.release(plane);
+            filters.release(tmp);
+        }
         return output;
     }
 
+    /**
+     * Calculates the discrete value at x of the 1D gaussian distribution
+     * sampled the same way as {@link #gaussianDiscrete2D(double, int, int)}
+     * (without normalization).
+     */
+    private static double gaussianDiscrete1D(double theta, int x) {
+        double g = 0;
+        for (double xSubPixel = x - 0.5; xSubPixel < x + 0.55; xSubPixel += 0.1) {
+            g = g + Math.pow(Math.E, -(xSubPixel * xSubPixel) / (2 * theta * theta));
+        }
+        return g;
+    }
+
     /**
      * Takes an input image and a gaussian distribution, calculates
      * an appropriate kernel and applies a convolution to gaussian
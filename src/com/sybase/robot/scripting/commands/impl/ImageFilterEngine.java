@@ -0,0 +1,331 @@
+package com.sybase.robot.scripting.commands.impl;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.tplan.robot.util.BandExecutor;
+import com.tplan.robot.util.PixelAccess;
+
+/**
+ * Image filters on flat pixel planes stored row by row. 2D kernels are
+ * applied as a row pass followed by a column pass with 1D kernels. Each pass
+ * is split into row bands processed in parallel. Pixels outside of the plane
+ * are replaced with the nearest edge pixel.
+ * <p>
+ * Planes may be borrowed from a pool through {@link #acquireInts(int)} and
+ * {@link #acquireFloats(int)} and returned with <code>release()</code> when
+ * they are no longer needed, so filters applied repeatedly to images of the
+ * same size don't allocate any memory.
+ * </p>
+ * The class is thread safe.
+ */
+public class ImageFilterEngine {
+
+	/** 5-tap binomial approximation of the Gaussian kernel, sum of 16. */
+	public static final int[] BINOMIAL_5 = {1, 4, 6, 4, 1};
+	/** Smoothing part of the Sobel operator. */
+	public static final int[] SOBEL_SMOOTH = {1, 2, 1};
+	/** Differentiating part of the Sobel operator. */
+	public static final int[] SOBEL_DIFF = {-1, 0, 1};
+
+	static final int MIN_BAND_ROWS = 32;
+	private static final int MAX_POOLED_SIZES = 8;
+	private static final int MAX_POOLED_PLANES = 4;
+
+	private static final ImageFilterEngine instance = new ImageFilterEngine();
+
+	private final Map<Integer, LinkedList<int[]>> intPool = new Pool<int[]>();
+	private final Map<Integer, LinkedList<float[]>> floatPool = new Pool<float[]>();
+
+	public static ImageFilterEngine getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Read luminance (average of the color components) of a rectangle of an
+	 * image into a plane of the rectangle width.
+	 * @param src source image.
+	 * @param r rectangle to read.
+	 * @param dst luminance plane.
+	 */
+	public void luminance(final BufferedImage src, final Rectangle r, final int[] dst) {
+		BandExecutor.execute(r.height, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				PixelAccess.View v = PixelAccess.getView(src, new Rectangle(r.x, r.y + from, r.width, to - from), null);
+				for (int y = from; y < to; y++) {
+					int row = y * r.width;
+					for (int x = 0, s = v.index(r.x, r.y + y); x < r.width; x++, s++) {
+						int p = v.data[s];
+						dst[row + x] = (((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF)) / 3;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Apply a 1D kernel to the rows of a plane.
+	 * @param src source plane.
+	 * @param dst target plane, must not be the source one.
+	 * @param w plane width.
+	 * @param h plane height.
+	 * @param kernel kernel of an odd length centered at the target pixel.
+	 */
+	public void filterRows(final int[] src, final int[] dst, final int w, final int h, final int[] kernel) {
+		final int radius = kernel.length / 2;
+		BandExecutor.execute(h, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				final int end = Math.max(radius, w - radius);
+				for (int y = from; y < to; y++) {
+					int row = y * w;
+					// Inner pixels tap by tap, the loops are simple enough to be vectorized
+					for (int x = radius; x < end; x++) {
+						dst[row + x] = kernel[0] * src[row + x - radius];
+					}
+					for (int k = 1; k < kernel.length; k++) {
+						int c = kernel[k];
+						if (c != 0) {
+							for (int x = radius, i = row + k; x < end; x++, i++) {
+								dst[row + x] += c * src[i];
+							}
+						}
+					}
+					// Pixels close to the edges
+					for (int x = 0; x < w; x++) {
+						if (x == radius) {
+							x = end;
+							if (x >= w) {
+								break;
+							}
+						}
+						int sum = 0;
+						for (int k = 0; k < kernel.length; k++) {
+							sum += kernel[k] * src[row + clamp(x + k - radius, w)];
+						}
+						dst[row + x] = sum;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Apply a 1D kernel to the columns of a plane.
+	 * @param src source plane.
+	 * @param dst target plane, must not be the source one.
+	 * @param w plane width.
+	 * @param h plane height.
+	 * @param kernel kernel of an odd length centered at the target pixel.
+	 */
+	public void filterColumns(final int[] src, final int[] dst, final int w, final int h, final int[] kernel) {
+		final int radius = kernel.length / 2;
+		BandExecutor.execute(h, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				int[] rows = new int[kernel.length];
+				for (int y = from; y < to; y++) {
+					for (int k = 0; k < kernel.length; k++) {
+						rows[k] = clamp(y + k - radius, h) * w;
+					}
+					int row = y * w;
+					// Walk the rows by the kernel taps to read memory sequentially
+					for (int x = 0; x < w; x++) {
+						dst[row + x] = kernel[0] * src[rows[0] + x];
+					}
+					for (int k = 1; k < kernel.length; k++) {
+						int c = kernel[k], r = rows[k];
+						if (c != 0) {
+							for (int x = 0; x < w; x++) {
+								dst[row + x] += c * src[r + x];
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Apply a 1D kernel to the rows of a plane.
+	 * @see #filterRows(int[], int[], int, int, int[])
+	 */
+	public void filterRows(final float[] src, final float[] dst, final int w, final int h, final float[] kernel) {
+		final int radius = kernel.length / 2;
+		BandExecutor.execute(h, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				final int end = Math.max(radius, w - radius);
+				for (int y = from; y < to; y++) {
+					int row = y * w;
+					// Inner pixels tap by tap, the loops are simple enough to be vectorized
+					for (int x = radius; x < end; x++) {
+						dst[row + x] = kernel[0] * src[row + x - radius];
+					}
+					for (int k = 1; k < kernel.length; k++) {
+						float c = kernel[k];
+						if (c != 0) {
+							for (int x = radius, i = row + k; x < end; x++, i++) {
+								dst[row + x] += c * src[i];
+							}
+						}
+					}
+					// Pixels close to the edges
+					for (int x = 0; x < w; x++) {
+						if (x == radius) {
+							x = end;
+							if (x >= w) {
+								break;
+							}
+						}
+						float sum = 0;
+						for (int k = 0; k < kernel.length; k++) {
+							sum += kernel[k] * src[row + clamp(x + k - radius, w)];
+						}
+						dst[row + x] = sum;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Apply a 1D kernel to the columns of a plane.
+	 * @see #filterColumns(int[], int[], int, int, int[])
+	 */
+	public void filterColumns(final float[] src, final float[] dst, final int w, final int h, final float[] kernel) {
+		final int radius = kernel.length / 2;
+		BandExecutor.execute(h, MIN_BAND_ROWS, new BandExecutor.Task() {
+			public void run(int from, int to) {
+				int[] rows = new int[kernel.length];
+				for (int y = from; y < to; y++) {
+					for (int k = 0; k < kernel.length; k++) {
+						rows[k] = clamp(y + k - radius, h) * w;
+					}
+					int row = y * w;
+					for (int x = 0; x < w; x++) {
+						dst[row + x] = kernel[0] * src[rows[0] + x];
+					}
+					for (int k = 1; k < kernel.length; k++) {
+						float c = kernel[k];
+						int r = rows[k];
+						if (c != 0) {
+							for (int x = 0; x < w; x++) {
+								dst[row + x] += c * src[r + x];
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Apply a separable 2D kernel.
+	 * @param src source plane.
+	 * @param tmp plane for the intermediate result of the row pass.
+	 * @param dst target plane, it may be the source one.
+	 * @param w plane width.
+	 * @param h plane height.
+	 * @param rowKernel kernel applied to the rows.
+	 * @param columnKernel kernel applied to the columns.
+	 */
+	public void filter(int[] src, int[] tmp, int[] dst, int w, int h, int[] rowKernel, int[] columnKernel) {
+		filterRows(src, tmp, w, h, rowKernel);
+		filterColumns(tmp, dst, w, h, columnKernel);
+	}
+
+	/**
+	 * Apply a separable 2D kernel.
+	 * @see #filter(int[], int[], int[], int, int, int[], int[])
+	 */
+	public void filter(float[] src, float[] tmp, float[] dst, int w, int h, float[] rowKernel, float[] columnKernel) {
+		filterRows(src, tmp, w, h, rowKernel);
+		filterColumns(tmp, dst, w, h, columnKernel);
+	}
+
+	/**
+	 * Borrow an integer plane from the pool. The content is undefined.
+	 * @param size plane size.
+	 * @return plane of the requested size.
+	 */
+	public int[] acquireInts(int size) {
+		synchronized (intPool) {
+			LinkedList<int[]> l = intPool.get(size);
+			if (l != null && !l.isEmpty()) {
+				return l.removeFirst();
+			}
+		}
+		return new int[size];
+	}
+
+	/**
+	 * Return a plane obtained from {@link #acquireInts(int)} to the pool.
+	 * @param plane plane which is no longer used.
+	 */
+	public void release(int[] plane) {
+		synchronized (intPool) {
+			LinkedList<int[]> l = intPool.get(plane.length);
+			if (l == null) {
+				l = new LinkedList<int[]>();
+				intPool.put(plane.length, l);
+			}
+			if (l.size() < MAX_POOLED_PLANES) {
+				l.addFirst(plane);
+			}
+		}
+	}
+
+	/**
+	 * Borrow a float plane from the pool. The content is undefined.
+	 * @param size plane size.
+	 * @return plane of the requested size.
+	 */
+	public float[] acquireFloats(int size) {
+		synchronized (floatPool) {
+			LinkedList<float[]> l = floatPool.get(size);
+			if (l != null && !l.isEmpty()) {
+				return l.removeFirst();
+			}
+		}
+		return new float[size];
+	}
+
+	/**
+	 * Return a plane obtained from {@link #acquireFloats(int)} to the pool.
+	 * @param plane plane which is no longer used.
+	 */
+	public void release(float[] plane) {
+		synchronized (floatPool) {
+			LinkedList<float[]> l = floatPool.get(plane.length);
+			if (l == null) {
+				l = new LinkedList<float[]>();
+				floatPool.put(plane.length, l);
+			}
+			if (l.size() < MAX_POOLED_PLANES) {
+				l.addFirst(plane);
+			}
+		}
+	}
+
+	static int clamp(int i, int length) {
+		return i < 0 ? 0 : (i >= length ? length - 1 : i);
+	}
+
+	/**
+	 * Lists of pooled planes by size; planes of the least recently used
+	 * sizes are dropped.
+	 */
+	private static class Pool<T> extends LinkedHashMap<Integer, LinkedList<T>> {
+
+		private static final long serialVersionUID = 1L;
+
+		Pool() {
+			super(16, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<Integer, LinkedList<T>> eldest) {
+			return size() > MAX_POOLED_SIZES;
+		}
+	}
+}
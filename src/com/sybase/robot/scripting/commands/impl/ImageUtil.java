@@ -27,6 +27,8 @@ import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 
+import com.tplan.robot.util.PixelAccess;
+
 public class ImageUtil {
 	static public String imageTypeName(BufferedImage img) {
 		switch (img.getType()) {
@@ -396,9 +398,7 @@ public class ImageUtil {
 		int ai[]; // = new int[width * height];
 
 		if (img instanceof BufferedImage) {
-			BufferedImage bi = (BufferedImage) img;
-			ai = ((BufferedImage) img).getRGB(rect.x, rect.y, width, height,
-					(int[]) null, 0, width);
+			ai = PixelAccess.read(img, rect, null);
 
 		} else {
 			ai = new int[width * height];
@@ -438,10 +438,7 @@ public class ImageUtil {
 
 	public static BufferedImage edgefy(Image img, File file, int crop) {
 //		System.out.println("Processing file "+file.getAbsolutePath());
-		CannyEdgeDetection detector = new CannyEdgeDetection();
-//		BufferedImage grayImg = ImageUtil.convert(ImageUtil.imageToBufferedImage(img), BufferedImage.TYPE_BYTE_GRAY);
-//		BufferedImage edgeImg = detector.processImage(grayImg);
-		BufferedImage edgeImg = detector.processImage(ImageUtil.imageToBufferedImage(img));
+		BufferedImage edgeImg = EdgeDetectionEngine.getInstance().process(img);
     	edgeImg = ImageUtil.cropEdge(edgeImg, crop);
 		if(file != null){
     		ImageUtil.writeBufferedImageToFile(edgeImg, file);
@@ -0,0 +1,219 @@
+package com.sybase.robot.scripting.commands.impl;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.remoteclient.RemoteDesktopClient;
+
+/**
+ * Edge map and luminance plane of the live desktop image of a passive client,
+ * kept in sync with the frame buffer. On every request only the tiles changed
+ * since the previous one (see {@link FrameBufferMonitor}) are processed: the
+ * luminance and gradient marks are recalculated in the changed area plus the
+ * {@link EdgeDetectionEngine#KERNEL_RADIUS} margin and the hysteresis is
+ * resolved again just for the edge chains passing through that area. The
+ * result is identical to {@link EdgeDetectionEngine#process(Image)} of the
+ * whole image.
+ * <p>
+ * The edge image is updated in place. Callers must hold the lock of the map
+ * while they read it, for example:
+ * </p>
+ * <pre>
+ * LiveEdgeMap map = LiveEdgeMap.getInstance(client, client.getImage());
+ * synchronized (map) {
+ *     BufferedImage edges = map.getEdges();
+ *     ...
+ * }
+ * </pre>
+ */
+public class LiveEdgeMap {
+
+	private static final String ATTACHMENT_KEY = LiveEdgeMap.class.getName();
+
+	/** Marker of pixels already assigned to a component during relabeling. */
+	private static final int VISITED = 8;
+
+	private final FrameBufferMonitor monitor;
+	private final BufferedImage image;
+	private final int width;
+	private final int height;
+	private final byte[] luminance;
+	private final byte[] marks;
+	private final BufferedImage edges;
+	private final int[] edgePixels;
+	private int[] stack = new int[1024];
+	private long generation = -1;
+	/** Number of updates of the edge image and the last update of each row. */
+	private long version;
+	private final long[] rowVersions;
+
+	private LiveEdgeMap(FrameBufferMonitor monitor, BufferedImage image) {
+		this.monitor = monitor;
+		this.image = image;
+		width = image.getWidth();
+		height = image.getHeight();
+		luminance = new byte[width * height];
+		marks = new byte[width * height];
+		edges = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		edgePixels = ((DataBufferInt) edges.getRaster().getDataBuffer()).getData();
+		rowVersions = new long[height];
+	}
+
+	/**
+	 * Get the edge map of a desktop image.
+	 * @param client desktop client.
+	 * @param desktopImage desktop image.
+	 * @return edge map or null if the image is not the live image of a
+	 * passive client and its changes can't be tracked.
+	 */
+	public static LiveEdgeMap getInstance(RemoteDesktopClient client, Image desktopImage) {
+		FrameBufferMonitor monitor = FrameBufferMonitor.getMonitor(client, desktopImage);
+		if (monitor == null || !(desktopImage instanceof BufferedImage)) {
+			return null;
+		}
+		synchronized (monitor) {
+			LiveEdgeMap map = (LiveEdgeMap) monitor.getAttachment(ATTACHMENT_KEY);
+			if (map == null || map.image != desktopImage) {
+				map = new LiveEdgeMap(monitor, (BufferedImage) desktopImage);
+				monitor.setAttachment(ATTACHMENT_KEY, map);
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Get an up to date edge image. The image is updated in place by
+	 * subsequent calls; see the class description for the locking rules.
+	 * @return edge image with black edges on white background.
+	 */
+	public synchronized BufferedImage getEdges() {
+		update();
+		return edges;
+	}
+
+	/**
+	 * Get an up to date luminance plane (average of the color components)
+	 * in the row major order. The plane is updated in place by subsequent calls.
+	 * @return luminance plane.
+	 */
+	public synchronized byte[] getLuminance() {
+		update();
+		return luminance;
+	}
+
+	/**
+	 * Get the desktop image the map belongs to.
+	 * @return desktop image.
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * Get number of updates of the edge image. Must be called with the lock
+	 * of the map held, after {@link #getEdges()}.
+	 * @return version of the edge image.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the version of the edge image when a row was updated last time.
+	 * Must be called with the lock of the map held, after {@link #getEdges()}.
+	 * @param y row number.
+	 * @return version of the last update of the row.
+	 */
+	public long getRowVersion(int y) {
+		return rowVersions[y];
+	}
+
+	private void update() {
+		long g = monitor.getGeneration();
+		Rectangle changed = monitor.getChangedArea(generation);
+		generation = g;
+		if (changed == null || changed.isEmpty()) {
+			return;
+		}
+		EdgeDetectionEngine engine = EdgeDetectionEngine.getInstance();
+		Rectangle all = new Rectangle(0, 0, width, height);
+		engine.luminance(image, changed, luminance, width);
+
+		int r = EdgeDetectionEngine.KERNEL_RADIUS;
+		Rectangle target = new Rectangle(changed.x - r, changed.y - r, changed.width + 2 * r, changed.height + 2 * r).intersection(all);
+		engine.mark(luminance, width, height, target, marks);
+		version++;
+		for (int y = target.y; y < target.y + target.height; y++) {
+			rowVersions[y] = version;
+			for (int x = target.x, i = y * width + x; x < target.x + target.width; x++, i++) {
+				edgePixels[i] = EdgeDetectionEngine.BACKGROUND_COLOR;
+			}
+		}
+		relabel(new Rectangle(target.x - 1, target.y - 1, target.width + 2, target.height + 2).intersection(all));
+	}
+
+	/**
+	 * Resolve hysteresis of all gradient chains passing through the area.
+	 * A chain (8-connected component of marked pixels) is an edge if it
+	 * contains at least one strong pixel. Chains which don't touch the area
+	 * are not affected by the change.
+	 */
+	private void relabel(Rectangle area) {
+		final int w = width, h = height;
+		int visited = 0;
+		for (int y = area.y; y < area.y + area.height; y++) {
+			for (int x = area.x, i = y * w + x; x < area.x + area.width; x++, i++) {
+				if ((marks[i] & EdgeDetectionEngine.GRADIENT) == 0 || (marks[i] & VISITED) != 0) {
+					continue;
+				}
+				// Collect the component on the stack behind the already visited pixels
+				int start = visited;
+				boolean strong = false;
+				push(visited, i);
+				marks[i] |= VISITED;
+				int end = visited + 1;
+				for (int k = start; k < end; k++) {
+					int p = stack[k];
+					strong |= (marks[p] & EdgeDetectionEngine.GRADIENT) == EdgeDetectionEngine.STRONG;
+					int px = p % w, py = p / w;
+					for (int ny = Math.max(0, py - 1); ny <= Math.min(h - 1, py + 1); ny++) {
+						for (int nx = Math.max(0, px - 1); nx <= Math.min(w - 1, px + 1); nx++) {
+							int n = ny * w + nx;
+							if ((marks[n] & EdgeDetectionEngine.GRADIENT) != 0 && (marks[n] & VISITED) == 0) {
+								marks[n] |= VISITED;
+								push(end++, n);
+							}
+						}
+					}
+				}
+				for (int k = start; k < end; k++) {
+					int p = stack[k];
+					rowVersions[p / w] = version;
+					if (strong) {
+						marks[p] |= EdgeDetectionEngine.EDGE;
+						edgePixels[p] = EdgeDetectionEngine.EDGE_COLOR;
+					} else {
+						marks[p] &= ~EdgeDetectionEngine.EDGE;
+						edgePixels[p] = EdgeDetectionEngine.BACKGROUND_COLOR;
+					}
+				}
+				visited = end;
+			}
+		}
+		for (int k = 0; k < visited; k++) {
+			marks[stack[k]] &= ~VISITED;
+		}
+	}
+
+	private void push(int index, int pixel) {
+		if (index >= stack.length) {
+			int[] s = new int[stack.length * 2];
+			System.arraycopy(stack, 0, s, 0, stack.length);
+			stack = s;
+		}
+		stack[index] = pixel;
+	}
+}
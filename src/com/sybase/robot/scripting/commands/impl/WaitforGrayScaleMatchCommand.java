@@ -36,6 +36,7 @@ import javax.swing.Action;
 import javax.swing.KeyStroke;
 import javax.swing.Timer;
 
+import com.sybase.robot.imagecomparison.searchgrey.SearchGreyImageComparisonModule;
 import com.tplan.robot.ApplicationSupport;
 import com.tplan.robot.gui.GUIConstants;
 import com.tplan.robot.imagecomparison.ImageComparisonModule;
@@ -60,11 +61,13 @@ import com.tplan.robot.scripting.commands.CommandEditAction;
 import com.tplan.robot.scripting.commands.ExtendedParamsObject;
 import com.tplan.robot.scripting.commands.TimerAction;
 import com.tplan.robot.scripting.commands.impl.CompareToCommand;
+import com.tplan.robot.scripting.commands.impl.WaitforEngine;
 import com.tplan.robot.scripting.interpret.TestScriptInterpret;
 import com.tplan.robot.scripting.interpret.proprietary.ProprietaryTestScriptInterpret;
 import com.tplan.robot.scripting.wrappers.TextBlockWrapper;
 import com.tplan.robot.util.CaseTolerantHashMap;
 import com.tplan.robot.util.Stoppable;
+import com.tplan.robot.util.RegionAccumulator;
 import com.tplan.robot.util.Utils;
 
 public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler implements AdvancedCommandHandler {
@@ -480,7 +483,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
     }
 
     private class WaitForListener
-            implements RemoteDesktopServerListener, GUIConstants, ActionListener, PropertyChangeListener, Runnable {
+            implements RemoteDesktopServerListener, GUIConstants, ActionListener, PropertyChangeListener, WaitforEngine.Comparison {
 
         private int counter = 0;
         private int count = 1;
@@ -488,7 +491,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
         private int pixels = 0;
         private Rectangle rectangle;
         private Rectangle cmpArea;
-        private List cumulativeRects;
+        private RegionAccumulator updatedRegion;
         private float percentage = 100;
         private int delay = 0;
         private int updateAreaPixelCount = 0;
@@ -500,7 +503,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
         private float passrate = 95f;
         boolean ignoreMissingTemplate;
         private long interval;
-        private Timer comparisonTimer = null;
+        private WaitforEngine engine;
         private List<ImageComparisonModule> comparisonModules;
         private String methodParams;
         private ScriptingContext context;
@@ -508,7 +511,6 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
         private UserConfiguration cfg;
         private boolean match = true;
         private boolean debug = System.getProperty("debug.waitfor") != null;
-        private Thread comparisonThread = null;
         private boolean templateNotFound = false;
         private List inputTemplates;
         private List<Image> templateImages;
@@ -571,6 +573,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
             inputTemplates = (List) params.get(PARAM_TEMPLATE);
 
             client = context.getClient();
+            engine = new WaitforEngine(client, context.getInterpret());
 
             Object currentElement = context.get(ScriptingContext.CONTEXT_CURRENT_DOCUMENT_ELEMENT);
 
@@ -670,12 +673,9 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                 }
                 this.comparisonModules = modules;
 
-                // Image comparison is handled by a timer which fires an action event
-                // at scheduled intervals
-                comparisonTimer = new Timer((int) interval, this);
-                comparisonTimer.setRepeats(true);
-                comparisonTimer.start();
-                actionPerformed(new ActionEvent(comparisonTimer, 0, ""));
+                // Comparisons are run by the engine after the desktop updates,
+                // at most once per interval
+                engine.startComparisons(this, cmpArea, interval);
             }
 
             BreakAction action = new BreakAction(new TimerAction(endTime, context));
@@ -696,41 +696,29 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                 // First proceed the list of events
                 List v = (List) context.get(ScriptingContext.CONTEXT_RFB_EVENT_LIST);
                 for (int i = 0; i < v.size(); i++) {
-                    if (!conditionReached) {
+                    if (!engine.isConditionReached()) {
                         serverMessageReceived((RemoteDesktopServerEvent) v.get(i));
                     }
                 }
 
                 // Stay in the waiting loop until the script gets stopped, the condition of the event are met or
                 // timeout is reached
-                while (!interpret.isStop() && !conditionReached && !action.isBreak()) {
+                while (!interpret.isStop() && !engine.isConditionReached() && !action.isBreak()) {
 
                     // If waiting is interrupted by user, behave as if passed
                     if (action.breakCountDown) {
-                        conditionReached = true;
+                        engine.setConditionReached();
                     }
 
                     if (endTime > 0 && System.currentTimeMillis() > endTime) {
-                        // Set up one last comparison
+                        // Perform one last comparison
                         if (matching) {
-                            comparisonTimer.stop();
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Timeout reached, performing one last comparison");
                             }
-                            stopAllComparisons(interpret);
-                            comparisonThread = null;
-                            actionPerformed(new ActionEvent(comparisonTimer, 0, ""));
-                            do {
-                                Thread.sleep(5);
-                            } while (comparisonThread != null && !interpret.isStop());
-                            if (interpret.isStop() && comparisonModules != null) {
-                                if (debug) {
-                                    System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Stop requested, interrupting image comparison");
-                                }
-                                stopAllComparisons(interpret);
-                            }
+                            engine.compareLastTime();
                         }
-                        if (!conditionReached && !interpret.isStop()) {
+                        if (!engine.isConditionReached() && !interpret.isStop()) {
                             variables.put(ScriptingContext.WAITUNTIL_TIMEOUT, "true");
                             client.removeServerListener(this);
 
@@ -740,13 +728,10 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                             break;
                         }
                     }
-                    Thread.sleep(5);
+                    engine.await(endTime, action);
                 }
-                if (interpret.isStop() && comparisonModules != null) {
-                    if (debug) {
-                        System.out.println("-- Thread #" + Thread.currentThread().getId() + "(main thread): Stop requested, interrupting image comparison");
-                    }
-                    stopAllComparisons(interpret);
+                if (interpret.isStop() && comparisonModules != null && debug) {
+                    System.out.println("-- Thread #" + Thread.currentThread().getId() + "(main thread): Stop requested, interrupting image comparison");
                 }
 
             } catch (Exception ex) {
@@ -766,28 +751,17 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                 handler.fireScriptEvent(new ScriptEvent(this, null, context, ""));
             }
 
-            if (comparisonTimer != null) {
-                comparisonTimer.stop();
-                comparisonTimer.removeActionListener(this);
-                comparisonTimer = null;
-            }
-
-            synchronized (this) {
-                comparisonModules = null;
-            }
+            // Cancel the scheduled comparisons and interrupt the running one
+            engine.close();
+            conditionReached = engine.isConditionReached();
         }
 
-        private void stopAllComparisons(TestScriptInterpret interpret) {
-            if (comparisonModules != null) {
-                for (ImageComparisonModule comparisonModule : comparisonModules) {
+        public void stop() {
+            List<ImageComparisonModule> modules = comparisonModules;
+            if (modules != null) {
+                for (ImageComparisonModule comparisonModule : modules) {
                     if (comparisonModule instanceof Stoppable) {
                         ((Stoppable) comparisonModule).stop();
-                        do {
-                            try {
-                                Thread.sleep(5);
-                            } catch (InterruptedException ex) {
-                            }
-                        } while (comparisonThread != null && !interpret.isStop());
                     }
                 }
             }
@@ -813,27 +787,10 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                     // Clear the status bar
                     context.getScriptManager().fireScriptEvent(new ScriptEvent(this, null, context, ""));
                 }
-            } else if (e.getSource().equals(comparisonTimer)) {
-                if (comparisonModules != null) {
-
-                    if (comparisonThread == null) {
-                        Thread t = new Thread(this);
-                        t.start();
-                    } else if (debug) {
-                        System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Skipping comparison after interval " + interval + "ms because the previous one hasn't finished yet");
-                    }
-                } else {
-                    if (ignoreMissingTemplate) {
-                        this.conditionReached = true;
-                    } else {
-                        endTime = System.currentTimeMillis() - 1;
-                    }
-                }
             }
         }
 
-        public void run() {
-            comparisonThread = Thread.currentThread();
+        public boolean compare() {
 
             // Compare the images and get the result as percentage.
             long time = System.currentTimeMillis();
@@ -847,6 +804,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
             }
 
             float rate = 0;
+            boolean reached = false;
 
             // Bug 2941023 - WaitFor match throws NPE intermittently
             // It was caused by another thread setting the list of modules to null.
@@ -859,14 +817,18 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                     } catch (NullPointerException ex) {
                         ex.printStackTrace();
                         i = -1;
-                        conditionReached = false;
+                        reached = false;
 //                        break;
                     }
 
                     // Security update in 2.0.2 - handle exceptions thrown by the module correctly
                     try {
                     	CannyEdgeDetector detector = new CannyEdgeDetector();
-                        rate = 100 * comparisonModule.compareToBaseImage(ImageUtil.convert(ImageUtil.imageToBufferedImage(client.getImage()), BufferedImage.TYPE_BYTE_GRAY), cmpArea, methodParams, context, passrate / 100f);
+                    	// The grey search reads luminance of the compared area directly
+                    	Image desktop = comparisonModule instanceof SearchGreyImageComparisonModule
+                    			? client.getImage()
+                    			: ImageUtil.convert(ImageUtil.imageToBufferedImage(client.getImage()), BufferedImage.TYPE_BYTE_GRAY);
+                        rate = 100 * comparisonModule.compareToBaseImage(desktop, cmpArea, methodParams, context, passrate / 100f);
                     } catch (Exception ex) {
                         ex.printStackTrace();
                         rate = 0;
@@ -881,10 +843,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Pass rate is greater than the given passrate " + passrate + "%. Finishing the Waitfor match listener.");
                             }
-                            this.conditionReached = true;
-                            if (comparisonTimer != null) {
-                                comparisonTimer.stop();
-                            }
+                            reached = true;
 //                            break;
                         }
                     } else {   // We are waiting for a mismatch
@@ -892,10 +851,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Pass rate is lower than the given passrate " + passrate + "%. Finishing the Waitfor mismatch listener.");
                             }
-                            this.conditionReached = true;
-                            if (comparisonTimer != null) {
-                                comparisonTimer.stop();
-                            }
+                            reached = true;
 //                            break;
                         }
                     }
@@ -910,7 +866,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
             vars.remove(COMPARETO_TEMPLATE_HEIGHT);
             vars.put(COMPARETO_TIME_IN_MS, "" + (System.currentTimeMillis() - time));
 
-            if (conditionReached && i >= 0) {
+            if (reached && i >= 0) {
 
                 // Update the implicit variables
                 vars.put(COMPARETO_RESULT, "" + rate);
@@ -933,7 +889,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
             } else {
                 vars.put(COMPARETO_RESULT, "0");
             }
-            comparisonThread = null;
+            return reached;
         }
 
         public void serverMessageReceived(RemoteDesktopServerEvent evt) {
@@ -952,11 +908,12 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
 
                     // We are waiting for a cumulative update
                     if (cumulative) {
-                        if (cumulativeRects == null) {
-                            cumulativeRects = new ArrayList();
+                        if (updatedRegion == null) {
+                            updatedRegion = new RegionAccumulator(rectangle);
                         }
                         long time = System.currentTimeMillis();
-                        updatedPixelCount = calculateCumulativeUpdate(rectangle, overlap);
+                        updatedRegion.add(overlap);
+                        updatedPixelCount = updatedRegion.getArea();
 
                         if (System.getProperty("debug.waitfor") != null) {
                             time = System.currentTimeMillis() - time;
@@ -1001,7 +958,7 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
 
                     if (counter >= count) {   // Specified number of SCREENUPDATE messages was reached
                         conditionReached = true;
-                        ln = null;
+                        updatedRegion = null;
                     }
                 }
             } else if (evt.getMessageType() == RemoteDesktopServerEvent.SERVER_CLIPBOARD_EVENT && event.equalsIgnoreCase(EVENT_CLIPBOARD)) {
@@ -1016,167 +973,19 @@ public class WaitforGrayScaleMatchCommand extends AbstractCommandHandler impleme
                     // If the endTime is set, update it only if our end time is lower. This will preserve
                     // the functionality of preset timeout.
                     endTime = System.currentTimeMillis() + delay;
-                    this.conditionReached = true;
+                    engine.setConditionReached();
                 } else {
-                    this.conditionReached = true;
-                }
-            }
-        }
-        private List[] ln;
-
-        private long calculateCumulativeUpdate(Rectangle rect, Rectangle overlap) {
-            if (ln == null) {
-                ln = new List[rect.height];
-            }
-
-            int end = overlap.y - rect.y + overlap.height;
-            List v;
-            for (int i = overlap.y - rect.y; i < end; i++) {
-                v = ln[i];
-                if (v == null) {
-                    v = new ArrayList();
-                    ln[i] = v;
-                }
-                adjustLine(v, new Interval(overlap.x, overlap.x + overlap.width));
-            }
-
-            return countPixels(ln);
-        }
-
-        private long countPixels(List[] lines) {
-            long count = 0;
-            List v;
-            Interval iv;
-            for (int i = 0; lines != null && i < lines.length; i++) {
-                v = (List) lines[i];
-                for (int j = 0; v != null && j < v.size(); j++) {
-                    iv = (Interval) v.get(j);
-                    count += iv.end - iv.start + 1;
-                }
-            }
-            return count;
-        }
-
-        private void adjustLine(List v, Interval p) {
-            Interval cp = null;
-
-            if (v.size() > 0) {
-                int size = v.size();
-                for (int i = 0; i < size;) {
-                    cp = (Interval) v.get(i);
-                    if (cp.intersects(p)) {
-                        v.remove(cp);
-                        p.join(cp);
-                        if (!v.contains(p)) {
-                            v.add(i, p);
-                        } else {
-                            i--;
-                        }
-                    } else if (p.isBelow(cp) && !v.contains(p)) {
-                        v.add(i, p);
-                    }
-                    size = v.size();
-                    i++;
-                }
-                if (!v.contains(p)) {
-                    v.add(p);
+                    engine.setConditionReached();
                 }
-            } else {
-                v.add(p);
             }
         }
-
-        private class Interval {
-
-            int start;
-            int end;
-
-            Interval(int start, int end) {
-                this.start = start;
-                this.end = end;
-            }
-
-            Interval join(Interval i) {
-                if (!intersects(i)) {
-                    return null;
-                }
-                start = Math.min(start, i.start);
-                end = Math.max(end, i.end);
-                return this;
-            }
-
-            boolean contains(Interval i) {
-                return start <= i.start && end >= i.end;
-            }
-
-            boolean intersects(Interval i) {
-                return (i.start >= start && i.start <= end) || (i.end >= start && i.end <= end) || (end >= i.start && end <= i.end);
-            }
-
-            boolean isBelow(Interval i) {
-                return end < i.start;
-            }
-
-            boolean isAbove(Interval i) {
-                return start > i.end;
-            }
-
-            public String toString() {
-                return "[" + start + "," + end + "]";
-            }
-        }
-//        private void testCumulativeMethod() {
-//            List v = new ArrayList();
-//            v.add(new Interval(5,10));
-//            v.add(new Interval(50,80));
-//            v.add(new Interval(90,100));
-//            v.add(new Interval(150,180));
-//
-//            adjustLine(v, new Interval(100,180));
-//            System.out.println("Test #1: "+v);
-//            adjustLine(v, new Interval(3,12));
-//            System.out.println("Test #2: "+v);
-//            adjustLine(v, new Interval(190,200));
-//            System.out.println("Test #3: "+v);
-//            adjustLine(v, new Interval(180,190));
-//            System.out.println("Test #4: "+v);
-//            adjustLine(v, new Interval(0,220));
-//            System.out.println("Test #5: "+v);
-//        }
-//        private long calculateCumulativeUpdate(Rectangle rect, Rectangle overlap, List cumulativeRects) {
-////            System.out.println("cumulative update");
-//            if (px == null) {
-//                px = new byte[rect.height][rect.width];
-//                for (int i = 0; i < px.length; i++) {
-//                    Arrays.fill(px[i], (byte) 0);
-//                }
-//            }
-//            int end = overlap.y - rect.y + overlap.height;
-////            System.out.println(" -- fill from "+(overlap.y-rect.y)+" to "+end);
-//            for (int i = overlap.y - rect.y; i < end; i++) {
-////                System.out.println(" -- filling row #"+i+" start="+(overlap.x-rect.x)+" end="+(overlap.x-rect.x+overlap.width));
-//                Arrays.fill(px[i], overlap.x - rect.x, overlap.x - rect.x + overlap.width, (byte) 1);
-//            }
-//
-//            long cnt = 0;
-//            for (int i = 0; i < rect.height; i++) {
-//                for (int j = 0; j < rect.width; j++) {
-//                    cnt += px[i][j];
-//                }
-//            }
-////            System.out.println(" -- cnt="+cnt);
-//            return cnt;
-//        }
-
         public void propertyChange(PropertyChangeEvent evt) {
             if (evt.getPropertyName().equals("replayFinished")) {
                 if (updateTimer != null && updateTimer.isRunning()) {
                     updateTimer.stop();
                 }
-                if (comparisonTimer != null && comparisonTimer.isRunning()) {
-                    comparisonTimer.stop();
-                }
-                ln = null;
+                engine.close();
+                updatedRegion = null;
                 if (evt.getSource() instanceof ScriptManagerImpl) {
                     ((ScriptManagerImpl) evt.getSource()).removePropertyChangeListener(this);
                 }
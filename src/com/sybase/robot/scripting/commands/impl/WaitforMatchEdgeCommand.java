@@ -40,6 +40,8 @@ import com.tplan.robot.ApplicationSupport;
 import com.tplan.robot.gui.GUIConstants;
 import com.tplan.robot.imagecomparison.ImageComparisonModule;
 import com.tplan.robot.imagecomparison.ImageComparisonModuleFactory;
+import com.tplan.robot.imagecomparison.search.MultiTemplateSearch;
+import com.tplan.robot.preferences.ConfigurationKeys;
 import com.tplan.robot.preferences.Preference;
 import com.tplan.robot.preferences.UserConfiguration;
 import com.tplan.robot.remoteclient.RemoteDesktopClient;
@@ -59,11 +61,13 @@ import com.tplan.robot.scripting.commands.CommandEditAction;
 import com.tplan.robot.scripting.commands.ExtendedParamsObject;
 import com.tplan.robot.scripting.commands.TimerAction;
 import com.tplan.robot.scripting.commands.impl.CompareToCommand;
+import com.tplan.robot.scripting.commands.impl.WaitforEngine;
 import com.tplan.robot.scripting.interpret.TestScriptInterpret;
 import com.tplan.robot.scripting.interpret.proprietary.ProprietaryTestScriptInterpret;
 import com.tplan.robot.scripting.wrappers.TextBlockWrapper;
 import com.tplan.robot.util.CaseTolerantHashMap;
 import com.tplan.robot.util.Stoppable;
+import com.tplan.robot.util.RegionAccumulator;
 import com.tplan.robot.util.Utils;
 
 public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements AdvancedCommandHandler {
@@ -382,6 +386,27 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
         o.setPreferredContainerName(res.getString("options.waitfor.group.matchPrefs"));
         o.setMinValue(1);
         v.add(o);
+
+        // Diagnostic images
+        o = new Preference(ConfigurationKeys.DIAGNOSTICS_OUTPUT_DIR, Preference.TYPE_DIRECTORY,
+                res.getString("options.waitfor.diagnosticsDir.name"),
+                res.getString("options.waitfor.diagnosticsDir.desc"));
+        o.setPreferredContainerName(res.getString("options.waitfor.group.diagnostics"));
+        v.add(o);
+
+        o = new Preference(ConfigurationKeys.DIAGNOSTICS_SAMPLING, Preference.TYPE_INT,
+                res.getString("options.waitfor.diagnosticsSampling.name"),
+                res.getString("options.waitfor.diagnosticsSampling.desc"));
+        o.setPreferredContainerName(res.getString("options.waitfor.group.diagnostics"));
+        o.setMinValue(1);
+        v.add(o);
+
+        o = new Preference(ConfigurationKeys.DIAGNOSTICS_QUEUE_SIZE, Preference.TYPE_INT,
+                res.getString("options.waitfor.diagnosticsQueueSize.name"),
+                res.getString("options.waitfor.diagnosticsQueueSize.desc"));
+        o.setPreferredContainerName(res.getString("options.waitfor.group.diagnostics"));
+        o.setMinValue(1);
+        v.add(o);
         return v;
     }
 
@@ -479,7 +504,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
     }
 
     private class WaitForListener
-            implements RemoteDesktopServerListener, GUIConstants, ActionListener, PropertyChangeListener, Runnable {
+            implements RemoteDesktopServerListener, GUIConstants, ActionListener, PropertyChangeListener, WaitforEngine.Comparison {
 
         private int counter = 0;
         private int count = 1;
@@ -487,7 +512,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
         private int pixels = 0;
         private Rectangle rectangle;
         private Rectangle cmpArea;
-        private List cumulativeRects;
+        private RegionAccumulator updatedRegion;
         private float percentage = 100;
         private int delay = 0;
         private int updateAreaPixelCount = 0;
@@ -499,7 +524,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
         private float passrate = 95f;
         boolean ignoreMissingTemplate;
         private long interval;
-        private Timer comparisonTimer = null;
+        private WaitforEngine engine;
         private List<ImageComparisonModule> comparisonModules;
         private String methodParams;
         private ScriptingContext context;
@@ -507,7 +532,6 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
         private UserConfiguration cfg;
         private boolean match = true;
         private boolean debug = System.getProperty("debug.waitfor") != null;
-        private Thread comparisonThread = null;
         private boolean templateNotFound = false;
         private List inputTemplates;
         private List<Image> templateImages;
@@ -570,6 +594,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
             inputTemplates = (List) params.get(PARAM_TEMPLATE);
 
             client = context.getClient();
+            engine = new WaitforEngine(client, context.getInterpret());
 
             Object currentElement = context.get(ScriptingContext.CONTEXT_CURRENT_DOCUMENT_ELEMENT);
 
@@ -651,11 +676,10 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                     }
                     Map<String, String> modParams = (Map<String, String>) params.get(PARAM_MODULEPARAMS);
                     modules.add(comparisonModule);
-                    CannyEdgeDetection detector = new CannyEdgeDetection();
-                    BufferedImage grayImg = ImageUtil.convert(ImageUtil.imageToBufferedImage(templateImages.get(0)), BufferedImage.TYPE_BYTE_GRAY);
-                    BufferedImage edgeImg = ImageUtil.cropEdge(detector.processImage(grayImg), 5);
+                    EdgeDetectionEngine detector = EdgeDetectionEngine.getInstance();
+                    BufferedImage edgeImg = ImageUtil.cropEdge(detector.process(templateImages.get(0)), 5);
                     comparisonModule.setBaseImage(edgeImg);
-                    ImageUtil.writeBufferedImageToFile(edgeImg, new File("c:\\template.png"));
+                    DiagnosticImageSink.getInstance().submit("template", edgeImg);
 //                    comparisonModule.setBaseImage(templateImages.get(0));
                     if (comparisonModule instanceof ExtendedParamsObject && modParams != null) {
                         ((ExtendedParamsObject) comparisonModule).setParameters(modParams);
@@ -663,8 +687,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                     for (int i = 1; i < templateImages.size(); i++) {
                         comparisonModule = ImageComparisonModuleFactory.getInstance().getModule(method);
                         modules.add(comparisonModule);
-                        grayImg = ImageUtil.convert(ImageUtil.imageToBufferedImage(templateImages.get(i)), BufferedImage.TYPE_BYTE_GRAY);
-                        edgeImg = ImageUtil.cropEdge(detector.processImage(grayImg), 5);
+                        edgeImg = ImageUtil.cropEdge(detector.process(templateImages.get(i)), 5);
                         comparisonModule.setBaseImage(edgeImg);
                         if (comparisonModule instanceof ExtendedParamsObject && modParams != null) {
                             ((ExtendedParamsObject) comparisonModule).setParameters(modParams);
@@ -673,12 +696,9 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                 }
                 this.comparisonModules = modules;
 
-                // Image comparison is handled by a timer which fires an action event
-                // at scheduled intervals
-                comparisonTimer = new Timer((int) interval, this);
-                comparisonTimer.setRepeats(true);
-                comparisonTimer.start();
-                actionPerformed(new ActionEvent(comparisonTimer, 0, ""));
+                // Comparisons are run by the engine after the desktop updates,
+                // at most once per interval
+                engine.startComparisons(this, cmpArea, interval);
             }
 
             BreakAction action = new BreakAction(new TimerAction(endTime, context));
@@ -699,41 +719,29 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                 // First proceed the list of events
                 List v = (List) context.get(ScriptingContext.CONTEXT_RFB_EVENT_LIST);
                 for (int i = 0; i < v.size(); i++) {
-                    if (!conditionReached) {
+                    if (!engine.isConditionReached()) {
                         serverMessageReceived((RemoteDesktopServerEvent) v.get(i));
                     }
                 }
 
                 // Stay in the waiting loop until the script gets stopped, the condition of the event are met or
                 // timeout is reached
-                while (!interpret.isStop() && !conditionReached && !action.isBreak()) {
+                while (!interpret.isStop() && !engine.isConditionReached() && !action.isBreak()) {
 
                     // If waiting is interrupted by user, behave as if passed
                     if (action.breakCountDown) {
-                        conditionReached = true;
+                        engine.setConditionReached();
                     }
 
                     if (endTime > 0 && System.currentTimeMillis() > endTime) {
-                        // Set up one last comparison
+                        // Perform one last comparison
                         if (matching) {
-                            comparisonTimer.stop();
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Timeout reached, performing one last comparison");
                             }
-                            stopAllComparisons(interpret);
-                            comparisonThread = null;
-                            actionPerformed(new ActionEvent(comparisonTimer, 0, ""));
-                            do {
-                                Thread.sleep(5);
-                            } while (comparisonThread != null && !interpret.isStop());
-                            if (interpret.isStop() && comparisonModules != null) {
-                                if (debug) {
-                                    System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Stop requested, interrupting image comparison");
-                                }
-                                stopAllComparisons(interpret);
-                            }
+                            engine.compareLastTime();
                         }
-                        if (!conditionReached && !interpret.isStop()) {
+                        if (!engine.isConditionReached() && !interpret.isStop()) {
                             variables.put(ScriptingContext.WAITUNTIL_TIMEOUT, "true");
                             client.removeServerListener(this);
 
@@ -743,13 +751,10 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                             break;
                         }
                     }
-                    Thread.sleep(5);
+                    engine.await(endTime, action);
                 }
-                if (interpret.isStop() && comparisonModules != null) {
-                    if (debug) {
-                        System.out.println("-- Thread #" + Thread.currentThread().getId() + "(main thread): Stop requested, interrupting image comparison");
-                    }
-                    stopAllComparisons(interpret);
+                if (interpret.isStop() && comparisonModules != null && debug) {
+                    System.out.println("-- Thread #" + Thread.currentThread().getId() + "(main thread): Stop requested, interrupting image comparison");
                 }
 
             } catch (Exception ex) {
@@ -769,28 +774,17 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                 handler.fireScriptEvent(new ScriptEvent(this, null, context, ""));
             }
 
-            if (comparisonTimer != null) {
-                comparisonTimer.stop();
-                comparisonTimer.removeActionListener(this);
-                comparisonTimer = null;
-            }
-
-            synchronized (this) {
-                comparisonModules = null;
-            }
+            // Cancel the scheduled comparisons and interrupt the running one
+            engine.close();
+            conditionReached = engine.isConditionReached();
         }
 
-        private void stopAllComparisons(TestScriptInterpret interpret) {
-            if (comparisonModules != null) {
-                for (ImageComparisonModule comparisonModule : comparisonModules) {
+        public void stop() {
+            List<ImageComparisonModule> modules = comparisonModules;
+            if (modules != null) {
+                for (ImageComparisonModule comparisonModule : modules) {
                     if (comparisonModule instanceof Stoppable) {
                         ((Stoppable) comparisonModule).stop();
-                        do {
-                            try {
-                                Thread.sleep(5);
-                            } catch (InterruptedException ex) {
-                            }
-                        } while (comparisonThread != null && !interpret.isStop());
                     }
                 }
             }
@@ -816,29 +810,10 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                     // Clear the status bar
                     context.getScriptManager().fireScriptEvent(new ScriptEvent(this, null, context, ""));
                 }
-            } else if (e.getSource().equals(comparisonTimer)) {
-                if (comparisonModules != null) {
-                	
-                	System.out.println(e.getSource().toString());
-                	
-                    if (comparisonThread == null) {
-                        Thread t = new Thread(this);
-                        t.start();
-                    } else if (debug) {
-                        System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Skipping comparison after interval " + interval + "ms because the previous one hasn't finished yet");
-                    }
-                } else {
-                    if (ignoreMissingTemplate) {
-                        this.conditionReached = true;
-                    } else {
-                        endTime = System.currentTimeMillis() - 1;
-                    }
-                }
             }
         }
 
-        public void run() {
-            comparisonThread = Thread.currentThread();
+        public boolean compare() {
             System.out.println("in comparison thread");
             // Compare the images and get the result as percentage.
             long time = System.currentTimeMillis();
@@ -852,33 +827,65 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
             }
 
             float rate = 0;
+            boolean reached = false;
 
             // Bug 2941023 - WaitFor match throws NPE intermittently
             // It was caused by another thread setting the list of modules to null.
             
             ImageComparisonModule comparisonModule;
             int i = 0;
-            for (; comparisonModules != null && i < comparisonModules.size(); i++) {
+
+            // Alternative templates of the standard search are searched in a single pass
+            List<ImageComparisonModule> modules = comparisonModules;
+            boolean multiTemplate = match && MultiTemplateSearch.isSupported(modules);
+            // Live edge map of a passive client is updated just in the changed tiles.
+            // It is modified in place and must stay locked while it's being searched.
+            LiveEdgeMap edgeMap = LiveEdgeMap.getInstance(client, client.getImage());
+            Object edgeLock = edgeMap == null ? this : edgeMap;
+            if (multiTemplate) {
+            	synchronized (this) {
+            		try {
+            			synchronized (edgeLock) {
+            				BufferedImage edgeImg = edgeMap != null ? edgeMap.getEdges() : EdgeDetectionEngine.getInstance().process(client.getImage());
+            				i = new MultiTemplateSearch(modules).search(edgeImg, cmpArea, context, passrate / 100f);
+            			}
+            		} catch (Exception ex) {
+            			ex.printStackTrace();
+            			i = modules.size();
+            		}
+            		if (i >= 0 && i < modules.size()) {
+            			rate = 100;
+            			reached = true;
+            		} else {
+            			i = modules.size();
+            		}
+            	}
+            }
+            // Edges of the desktop are detected once for all templates
+            BufferedImage desktopEdges = null;
+            for (; !multiTemplate && comparisonModules != null && i < comparisonModules.size(); i++) {
                 synchronized (this) {
                     try {
                         comparisonModule = comparisonModules.get(i);
                     } catch (NullPointerException ex) {
                         ex.printStackTrace();
                         i = -1;
-                        conditionReached = false;
+                        reached = false;
                         break;
                     }
 
                     // Security update in 2.0.2 - handle exceptions thrown by the module correctly
                     try {
-                    	CannyEdgeDetection detector = new CannyEdgeDetection();
-                    	Image remoteImage = client.getImage();
-                    	BufferedImage grayImg = ImageUtil.convert(ImageUtil.imageToBufferedImage(remoteImage), BufferedImage.TYPE_BYTE_GRAY);
-                    	BufferedImage edgeImg = detector.processImage(grayImg);
                     	long start = System.currentTimeMillis();
-                        rate = 100 * comparisonModule.compareToBaseImage(edgeImg, cmpArea, methodParams, context, passrate / 100f);
+                    	synchronized (edgeLock) {
+                    		if (edgeMap != null) {
+                    			desktopEdges = edgeMap.getEdges();
+                    		} else if (desktopEdges == null) {
+                    			desktopEdges = EdgeDetectionEngine.getInstance().process(client.getImage());
+                    		}
+                    		rate = 100 * comparisonModule.compareToBaseImage(desktopEdges, cmpArea, methodParams, context, passrate / 100f);
+                    	}
 //                        rate = 100 * comparisonModule.compareToBaseImage(detector.process(client.getImage()), cmpArea, methodParams, context, passrate / 100f);
-                        ImageUtil.writeBufferedImageToFile(edgeImg, new File("c:\\desktop.png"));
                         long end = System.currentTimeMillis();
 //                        System.out.println("compare finished."+(finishTime-startTime)/(1000*1000));
                         System.out.println("module="+comparisonModule.getClass()+" rate="+(float)rate+" duration="+(end - start));
@@ -899,10 +906,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Pass rate is greater than the given passrate " + passrate + "%. Finishing the Waitfor match listener.");
                             }
-                            this.conditionReached = true;
-                            if (comparisonTimer != null) {
-                                comparisonTimer.stop();
-                            }
+                            reached = true;
                             break;
                         }
                     } else {   // We are waiting for a mismatch
@@ -910,10 +914,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Pass rate is lower than the given passrate " + passrate + "%. Finishing the Waitfor mismatch listener.");
                             }
-                            this.conditionReached = true;
-                            if (comparisonTimer != null) {
-                                comparisonTimer.stop();
-                            }
+                            reached = true;
                             break;
                         }
                     }
@@ -928,7 +929,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
             vars.remove(COMPARETO_TEMPLATE_HEIGHT);
             vars.put(COMPARETO_TIME_IN_MS, "" + (System.currentTimeMillis() - time));
 
-            if (conditionReached && i >= 0) {
+            if (reached && i >= 0) {
 
                 // Update the implicit variables
                 vars.put(COMPARETO_RESULT, "" + rate);
@@ -951,7 +952,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
             } else {
                 vars.put(COMPARETO_RESULT, "0");
             }
-            comparisonThread = null;
+            return reached;
         }
 
         public void serverMessageReceived(RemoteDesktopServerEvent evt) {
@@ -970,11 +971,12 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
 
                     // We are waiting for a cumulative update
                     if (cumulative) {
-                        if (cumulativeRects == null) {
-                            cumulativeRects = new ArrayList();
+                        if (updatedRegion == null) {
+                            updatedRegion = new RegionAccumulator(rectangle);
                         }
                         long time = System.currentTimeMillis();
-                        updatedPixelCount = calculateCumulativeUpdate(rectangle, overlap);
+                        updatedRegion.add(overlap);
+                        updatedPixelCount = updatedRegion.getArea();
 
                         if (System.getProperty("debug.waitfor") != null) {
                             time = System.currentTimeMillis() - time;
@@ -1019,7 +1021,7 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
 
                     if (counter >= count) {   // Specified number of SCREENUPDATE messages was reached
                         conditionReached = true;
-                        ln = null;
+                        updatedRegion = null;
                     }
                 }
             } else if (evt.getMessageType() == RemoteDesktopServerEvent.SERVER_CLIPBOARD_EVENT && event.equalsIgnoreCase(EVENT_CLIPBOARD)) {
@@ -1034,167 +1036,19 @@ public class WaitforMatchEdgeCommand extends AbstractCommandHandler implements A
                     // If the endTime is set, update it only if our end time is lower. This will preserve
                     // the functionality of preset timeout.
                     endTime = System.currentTimeMillis() + delay;
-                    this.conditionReached = true;
+                    engine.setConditionReached();
                 } else {
-                    this.conditionReached = true;
-                }
-            }
-        }
-        private List[] ln;
-
-        private long calculateCumulativeUpdate(Rectangle rect, Rectangle overlap) {
-            if (ln == null) {
-                ln = new List[rect.height];
-            }
-
-            int end = overlap.y - rect.y + overlap.height;
-            List v;
-            for (int i = overlap.y - rect.y; i < end; i++) {
-                v = ln[i];
-                if (v == null) {
-                    v = new ArrayList();
-                    ln[i] = v;
-                }
-                adjustLine(v, new Interval(overlap.x, overlap.x + overlap.width));
-            }
-
-            return countPixels(ln);
-        }
-
-        private long countPixels(List[] lines) {
-            long count = 0;
-            List v;
-            Interval iv;
-            for (int i = 0; lines != null && i < lines.length; i++) {
-                v = (List) lines[i];
-                for (int j = 0; v != null && j < v.size(); j++) {
-                    iv = (Interval) v.get(j);
-                    count += iv.end - iv.start + 1;
-                }
-            }
-            return count;
-        }
-
-        private void adjustLine(List v, Interval p) {
-            Interval cp = null;
-
-            if (v.size() > 0) {
-                int size = v.size();
-                for (int i = 0; i < size;) {
-                    cp = (Interval) v.get(i);
-                    if (cp.intersects(p)) {
-                        v.remove(cp);
-                        p.join(cp);
-                        if (!v.contains(p)) {
-                            v.add(i, p);
-                        } else {
-                            i--;
-                        }
-                    } else if (p.isBelow(cp) && !v.contains(p)) {
-                        v.add(i, p);
-                    }
-                    size = v.size();
-                    i++;
-                }
-                if (!v.contains(p)) {
-                    v.add(p);
-                }
-            } else {
-                v.add(p);
-            }
-        }
-
-        private class Interval {
-
-            int start;
-            int end;
-
-            Interval(int start, int end) {
-                this.start = start;
-                this.end = end;
-            }
-
-            Interval join(Interval i) {
-                if (!intersects(i)) {
-                    return null;
+                    engine.setConditionReached();
                 }
-                start = Math.min(start, i.start);
-                end = Math.max(end, i.end);
-                return this;
-            }
-
-            boolean contains(Interval i) {
-                return start <= i.start && end >= i.end;
-            }
-
-            boolean intersects(Interval i) {
-                return (i.start >= start && i.start <= end) || (i.end >= start && i.end <= end) || (end >= i.start && end <= i.end);
-            }
-
-            boolean isBelow(Interval i) {
-                return end < i.start;
-            }
-
-            boolean isAbove(Interval i) {
-                return start > i.end;
-            }
-
-            public String toString() {
-                return "[" + start + "," + end + "]";
             }
         }
-//        private void testCumulativeMethod() {
-//            List v = new ArrayList();
-//            v.add(new Interval(5,10));
-//            v.add(new Interval(50,80));
-//            v.add(new Interval(90,100));
-//            v.add(new Interval(150,180));
-//
-//            adjustLine(v, new Interval(100,180));
-//            System.out.println("Test #1: "+v);
-//            adjustLine(v, new Interval(3,12));
-//            System.out.println("Test #2: "+v);
-//            adjustLine(v, new Interval(190,200));
-//            System.out.println("Test #3: "+v);
-//            adjustLine(v, new Interval(180,190));
-//            System.out.println("Test #4: "+v);
-//            adjustLine(v, new Interval(0,220));
-//            System.out.println("Test #5: "+v);
-//        }
-//        private long calculateCumulativeUpdate(Rectangle rect, Rectangle overlap, List cumulativeRects) {
-////            System.out.println("cumulative update");
-//            if (px == null) {
-//                px = new byte[rect.height][rect.width];
-//                for (int i = 0; i < px.length; i++) {
-//                    Arrays.fill(px[i], (byte) 0);
-//                }
-//            }
-//            int end = overlap.y - rect.y + overlap.height;
-////            System.out.println(" -- fill from "+(overlap.y-rect.y)+" to "+end);
-//            for (int i = overlap.y - rect.y; i < end; i++) {
-////                System.out.println(" -- filling row #"+i+" start="+(overlap.x-rect.x)+" end="+(overlap.x-rect.x+overlap.width));
-//                Arrays.fill(px[i], overlap.x - rect.x, overlap.x - rect.x + overlap.width, (byte) 1);
-//            }
-//
-//            long cnt = 0;
-//            for (int i = 0; i < rect.height; i++) {
-//                for (int j = 0; j < rect.width; j++) {
-//                    cnt += px[i][j];
-//                }
-//            }
-////            System.out.println(" -- cnt="+cnt);
-//            return cnt;
-//        }
-
         public void propertyChange(PropertyChangeEvent evt) {
             if (evt.getPropertyName().equals("replayFinished")) {
                 if (updateTimer != null && updateTimer.isRunning()) {
                     updateTimer.stop();
                 }
-                if (comparisonTimer != null && comparisonTimer.isRunning()) {
-                    comparisonTimer.stop();
-                }
-                ln = null;
+                engine.close();
+                updatedRegion = null;
                 if (evt.getSource() instanceof ScriptManagerImpl) {
                     ((ScriptManagerImpl) evt.getSource()).removePropertyChangeListener(this);
                 }
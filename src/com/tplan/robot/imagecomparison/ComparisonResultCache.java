@@ -0,0 +1,307 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison;
+
+import com.tplan.robot.preferences.ConfigurationKeys;
+import com.tplan.robot.preferences.UserConfiguration;
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.remoteclient.RemoteDesktopClient;
+import com.tplan.robot.scripting.ScriptEvent;
+import com.tplan.robot.scripting.ScriptManager;
+import com.tplan.robot.scripting.ScriptingContext;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Cache of image comparison results of a live desktop image. Scripts often
+ * repeat the same comparison while the screen doesn't change, for example
+ * when they check for presence of an object in a loop. A result is stored
+ * together with the generation of the compared area reported by the
+ * {@link FrameBufferMonitor frame buffer monitor} and it is returned until
+ * an update touches the area.</p>
+ *
+ * <p>Besides the comparison result the cache keeps the script variables
+ * (such as the <code>_SEARCH_</code> ones) and the list of match locations the
+ * comparison has produced. They are restored to the context when a cached
+ * result is returned.</p>
+ *
+ * <p>There's one cache per monitored client, see {@link #getInstance(RemoteDesktopClient, Image)}.
+ * The cache is thread safe.</p>
+ * @product.signature
+ */
+public class ComparisonResultCache {
+
+    private static final String ATTACHMENT_KEY = ComparisonResultCache.class.getName();
+    private static final int CAPACITY = 64;
+
+    private final FrameBufferMonitor monitor;
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private ComparisonResultCache(FrameBufferMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Get the result cache of a desktop image.
+     * @param client desktop client.
+     * @param desktopImage desktop image to be compared.
+     * @return the cache or null if updates of the image are not tracked and
+     * results can't be cached.
+     */
+    public static ComparisonResultCache getInstance(RemoteDesktopClient client, Image desktopImage) {
+        FrameBufferMonitor m = FrameBufferMonitor.getMonitor(client, desktopImage);
+        if (m == null) {
+            return null;
+        }
+        synchronized (m) {
+            ComparisonResultCache c = (ComparisonResultCache) m.getAttachment(ATTACHMENT_KEY);
+            if (c == null) {
+                c = new ComparisonResultCache(m);
+                m.setAttachment(ATTACHMENT_KEY, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Look up a result. If the result is found and the compared area hasn't
+     * been updated since it was stored, the variables produced by the
+     * comparison are restored to the context.
+     * @param key comparison key.
+     * @param context context of the calling script.
+     * @return the cached result or null if there's no valid one.
+     */
+    @SuppressWarnings("unchecked") // The context is a raw map
+    public Result get(Key key, ScriptingContext context) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && e.generation != monitor.getGeneration(key.area)) {
+                entries.remove(key);
+                e = null;
+            }
+        }
+        if (e == null) {
+            return null;
+        }
+        context.getVariables().putAll(e.variables);
+        if (e.pointList != null) {
+            context.put(ScriptingContext.CONTEXT_IMAGE_SEARCH_POINT_LIST, new ArrayList<Object>(e.pointList));
+        }
+        ScriptManager sm = context.getScriptManager();
+        if (sm != null && !e.variables.isEmpty()) {
+            sm.fireScriptEvent(new ScriptEvent(this, null, context, ScriptEvent.SCRIPT_VARIABLES_UPDATED));
+        }
+        return e.result;
+    }
+
+    /**
+     * Start recording of a comparison. It must be called right before the
+     * comparison so that updates made during the comparison invalidate the
+     * result.
+     * @param key comparison key.
+     * @param context context of the calling script.
+     * @return recording to be passed to {@link #put(Recording, float, int)}
+     * when the comparison finishes.
+     */
+    public Recording record(Key key, ScriptingContext context) {
+        return new Recording(key, context, monitor.getGeneration(key.area));
+    }
+
+    /**
+     * Start recording of a comparison of a desktop snapshot. The generation
+     * must be obtained from the frame buffer monitor before the snapshot is
+     * taken, so that updates made after that invalidate the result.
+     * @param key comparison key.
+     * @param context context of the calling script.
+     * @param generation generation of the compared area before the snapshot.
+     * @return recording to be passed to {@link #put(Recording, float, int)}
+     * when the comparison finishes.
+     */
+    public Recording record(Key key, ScriptingContext context, long generation) {
+        return new Recording(key, context, generation);
+    }
+
+    /**
+     * Store the result of a recorded comparison.
+     * @param recording recording obtained from {@link #record(Key, ScriptingContext)}.
+     * @param rate comparison result.
+     * @param templateIndex index of the matching template or -1.
+     */
+    public void put(Recording recording, float rate, int templateIndex) {
+        Map<String, Object> changed = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> v : recording.context.getVariables().entrySet()) {
+            if (v.getValue() != recording.variables.get(v.getKey())) {
+                changed.put(v.getKey(), v.getValue());
+            }
+        }
+        Object o = recording.context.get(ScriptingContext.CONTEXT_IMAGE_SEARCH_POINT_LIST);
+        List<Object> pointList = null;
+        if (o != recording.pointList && o instanceof List) {
+            pointList = new ArrayList<Object>((List<?>) o);
+        }
+        Entry e = new Entry(recording.generation, new Result(rate, templateIndex), changed, pointList);
+        synchronized (this) {
+            entries.put(recording.key, e);
+        }
+    }
+
+    /**
+     * Result of a cached comparison.
+     */
+    public static class Result {
+
+        private final float rate;
+        private final int templateIndex;
+
+        Result(float rate, int templateIndex) {
+            this.rate = rate;
+            this.templateIndex = templateIndex;
+        }
+
+        /**
+         * Get the comparison result.
+         * @return comparison result as it was stored.
+         */
+        public float getRate() {
+            return rate;
+        }
+
+        /**
+         * Get the index of the matching template.
+         * @return template index or -1 if no template matched.
+         */
+        public int getTemplateIndex() {
+            return templateIndex;
+        }
+    }
+
+    /**
+     * Identification of a comparison. Two comparisons are identical if they
+     * use the same module class and method with the same parameters, the same
+     * templates, area and pass rate, and the same search preferences (maximum
+     * number of hits, pre-filter and location hints). Template files are
+     * identified by their path, size and time of the last modification,
+     * template images by their identity.
+     */
+    public static class Key {
+
+        private final Object[] values;
+        private final Rectangle area;
+        private final int hash;
+
+        /**
+         * Create a comparison key.
+         * @param module image comparison module.
+         * @param templates list of templates (files or images).
+         * @param area compared area or null for the whole desktop.
+         * @param passRate pass rate.
+         * @param methodParams method parameters or null.
+         * @param moduleParams custom module parameters or null.
+         * @param context context of the calling script. It provides the
+         * user configuration with the search preferences.
+         */
+        public Key(ImageComparisonModule module, List<?> templates, Rectangle area, float passRate,
+                String methodParams, Map<?, ?> moduleParams, ScriptingContext context) {
+            this.area = area == null ? null : new Rectangle(area);
+            List<Object> l = new ArrayList<Object>();
+            l.add(module.getClass());
+            l.add(module.getMethodName());
+            l.add(this.area);
+            l.add(Float.valueOf(passRate));
+            l.add(methodParams);
+            l.add(moduleParams == null ? null : new HashMap<Object, Object>(moduleParams));
+            UserConfiguration cfg = context == null ? null : context.getConfiguration();
+            if (cfg != null) {
+                l.add(cfg.getInteger(ConfigurationKeys.COMPARETO_MAX_SEARCH_HITS));
+                l.add(cfg.getBoolean(ConfigurationKeys.COMPARETO_ENABLE_SEARCH_PREFILTER));
+                l.add(cfg.getBoolean(ConfigurationKeys.COMPARETO_ENABLE_LOCATION_HINTS));
+            }
+            if (templates != null) {
+                for (Object t : templates) {
+                    if (t instanceof File) {
+                        File f = ((File) t).getAbsoluteFile();
+                        l.add(Arrays.asList(f.getPath(), f.length(), f.lastModified()));
+                    } else {
+                        l.add(t);
+                    }
+                }
+            }
+            this.values = l.toArray();
+            this.hash = Arrays.hashCode(values);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(values, ((Key) o).values);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Comparison being recorded.
+     */
+    public static class Recording {
+
+        private final Key key;
+        private final ScriptingContext context;
+        private final long generation;
+        private final Map<String, Object> variables;
+        private final Object pointList;
+
+        Recording(Key key, ScriptingContext context, long generation) {
+            this.key = key;
+            this.context = context;
+            this.generation = generation;
+            this.variables = new HashMap<String, Object>(context.getVariables());
+            this.pointList = context.get(ScriptingContext.CONTEXT_IMAGE_SEARCH_POINT_LIST);
+        }
+    }
+
+    private static class Entry {
+
+        final long generation;
+        final Result result;
+        final Map<String, Object> variables;
+        final List<Object> pointList;
+
+        Entry(long generation, Result result, Map<String, Object> variables, List<Object> pointList) {
+            this.generation = generation;
+            this.result = result;
+            this.variables = variables;
+            this.pointList = pointList;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison;
+
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.remoteclient.RemoteDesktopClient;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelGrabber;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * <p>Snapshot of the desktop image taken for a comparison. The live desktop
+ * image keeps changing while it is being compared, so comparisons of several
+ * templates (or a long search of a single one) may see different moments of
+ * the screen. A snapshot copies the compared area once and all comparisons
+ * then run against the same pixels.</p>
+ *
+ * <p>The snapshot has the size of the desktop so that the coordinates don't
+ * change; only the snapshot area is copied, the rest of the image is black.
+ * Pixels are stored in a single packed <code>int[]</code> buffer of the
+ * <code>TYPE_INT_RGB</code> image (see {@link #getPixels()}).
+ * If the updates of the desktop image are tracked (see
+ * {@link FrameBufferMonitor}) and the area gets updated while it is being
+ * copied, the copy is repeated.</p>
+ *
+ * <p>The snapshot image is reused by the next snapshot of a desktop of the
+ * same size taken by the same thread, so it must not be used after that.
+ * Comparisons of a monitored live image don't need a snapshot unless the
+ * image changes while it is being compared, as the monitor tells.</p>
+ * @product.signature
+ */
+public class DesktopSnapshot {
+
+    /** Maximum number of copy attempts when the area keeps changing. */
+    private static final int MAX_ATTEMPTS = 3;
+    /** The last snapshot taken by the thread, its image is reused by the next one. */
+    private static final ThreadLocal<SoftReference<DesktopSnapshot>> last =
+            new ThreadLocal<SoftReference<DesktopSnapshot>>();
+
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final Rectangle area;
+
+    private DesktopSnapshot(int width, int height, Rectangle area) {
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.area = area;
+    }
+
+    private DesktopSnapshot(DesktopSnapshot previous, Rectangle area) {
+        image = previous.image;
+        pixels = previous.pixels;
+        this.area = area;
+    }
+
+    /**
+     * Get a snapshot with an image of the given size, reusing the image of
+     * the previous snapshot of the thread if it has the same size. Pixels
+     * copied by the previous snapshot are cleared.
+     */
+    private static DesktopSnapshot obtain(int width, int height, Rectangle area) {
+        SoftReference<DesktopSnapshot> ref = last.get();
+        DesktopSnapshot s = ref == null ? null : ref.get();
+        if (s != null && s.image.getWidth() == width && s.image.getHeight() == height) {
+            Rectangle a = s.area;
+            for (int y = a.y; y < a.y + a.height; y++) {
+                Arrays.fill(s.pixels, y * width + a.x, y * width + a.x + a.width, 0);
+            }
+            s = new DesktopSnapshot(s, area);
+        } else {
+            s = new DesktopSnapshot(width, height, area);
+        }
+        last.set(new SoftReference<DesktopSnapshot>(s));
+        return s;
+    }
+
+    /**
+     * Take a snapshot of a desktop image.
+     * @param client desktop client owning the image or null if not known.
+     * @param desktopImage desktop image.
+     * @param area area to copy or null to copy the whole image.
+     * @return snapshot of the image.
+     */
+    public static DesktopSnapshot create(RemoteDesktopClient client, Image desktopImage, Rectangle area) {
+        int w = desktopImage.getWidth(null);
+        int h = desktopImage.getHeight(null);
+        Rectangle full = new Rectangle(0, 0, Math.max(0, w), Math.max(0, h));
+        Rectangle r = area == null ? full : area.intersection(full);
+        if (r.isEmpty()) {
+            r = new Rectangle();
+        }
+        DesktopSnapshot s = obtain(Math.max(1, full.width), Math.max(1, full.height), r);
+        if (r.isEmpty()) {
+            return s;
+        }
+        FrameBufferMonitor monitor = client == null ? null : FrameBufferMonitor.getMonitor(client, desktopImage);
+        for (int attempt = 1; ; attempt++) {
+            long generation = monitor == null ? 0 : monitor.getGeneration(r);
+            s.copy(desktopImage);
+            if (monitor == null || attempt >= MAX_ATTEMPTS || monitor.getGeneration(r) == generation) {
+                break;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Copy the snapshot area from the desktop image.
+     */
+    private void copy(Image desktopImage) {
+        if (desktopImage instanceof BufferedImage) {
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(desktopImage, area.x, area.y, area.x + area.width, area.y + area.height,
+                        area.x, area.y, area.x + area.width, area.y + area.height, null);
+            } finally {
+                g.dispose();
+            }
+        } else {
+            PixelGrabber pg = new PixelGrabber(desktopImage, area.x, area.y, area.width, area.height,
+                    pixels, area.y * image.getWidth() + area.x, image.getWidth());
+            try {
+                pg.grabPixels();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get the snapshot image. It is backed by the pixel buffer.
+     * @return snapshot image of the desktop size.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Get the pixel buffer. A pixel at <code>[x, y]</code> is stored at
+     * <code>y * width + x</code>; the alpha bits are undefined.
+     * @return pixel buffer of the snapshot image.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Get the copied area.
+     * @return area of the desktop contained in the snapshot.
+     */
+    public Rectangle getArea() {
+        return new Rectangle(area);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison;
+
+import com.tplan.robot.util.BandExecutor;
+import com.tplan.robot.util.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+
+/**
+ * <p>Cache of decoded template images. Script interprets pre-warm the cache
+ * while a script is being compiled (see {@link #prewarm(List)}): the template
+ * files referenced by the script are decoded in parallel in the background, so
+ * that a {@doc.cmd CompareTo} or {@doc.cmd WaitFor} command doesn't spend its
+ * time or timeout on reading the file.</p>
+ *
+ * <p>An image is returned from the cache as long as the file's modification
+ * time and length don't change. If the image is still being loaded in the
+ * background, {@link #getImage(File)} waits for it rather than reading the
+ * file once more. The cached images are shared and must not be modified.
+ * The cache is thread safe.</p>
+ * @product.signature
+ */
+public class TemplateCache {
+
+    private static final int CAPACITY = 64;
+    private static TemplateCache instance;
+
+    private final Map<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true) {
+
+        protected boolean removeEldestEntry(Map.Entry<File, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private ExecutorService loader;
+
+    private TemplateCache() {
+    }
+
+    /**
+     * Get the shared instance of the cache.
+     * @return the template cache.
+     */
+    public static synchronized TemplateCache getInstance() {
+        if (instance == null) {
+            instance = new TemplateCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Start loading of template images in the background. Files which are
+     * already cached or loaded, files which don't exist and files of an
+     * unsupported format are skipped.
+     * @param templates list of template files.
+     */
+    public void prewarm(List<File> templates) {
+        if (templates == null) {
+            return;
+        }
+        for (File template : templates) {
+            File f = template.getAbsoluteFile();
+            String ext = Utils.getExtension(f);
+            if (!f.isFile() || ext == null || !Utils.getSupportedImageExtensions().contains(ext.toLowerCase())) {
+                continue;
+            }
+            Entry e;
+            synchronized (this) {
+                if (getValidEntry(f) != null) {
+                    continue;
+                }
+                e = new Entry(f);
+                entries.put(f, e);
+            }
+            getLoader().execute(e.task);
+        }
+    }
+
+    /**
+     * Get a template image. If the image isn't cached or it is still queued
+     * for loading, it is read from the file in the calling thread.
+     * @param file template file.
+     * @return the image or null if the file format is not recognized.
+     * @throws IOException when the file can't be read.
+     */
+    public BufferedImage getImage(File file) throws IOException {
+        File f = file.getAbsoluteFile();
+        Entry e;
+        synchronized (this) {
+            e = getValidEntry(f);
+            if (e == null) {
+                e = new Entry(f);
+                entries.put(f, e);
+            }
+        }
+
+        // Load the image here if it is still waiting in the queue of the
+        // loader; the task does nothing if it has been started already
+        e.task.run();
+        try {
+            return e.task.get();
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                if (entries.get(f) == e) {
+                    entries.remove(f);
+                }
+            }
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IOException(t);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Remove all images from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the entry of a file unless the file has changed since the entry
+     * was created. The lock must be held.
+     */
+    private Entry getValidEntry(File f) {
+        Entry e = entries.get(f);
+        if (e != null && (e.lastModified != f.lastModified() || e.length != f.length())) {
+            entries.remove(f);
+            e = null;
+        }
+        return e;
+    }
+
+    private synchronized ExecutorService getLoader() {
+        if (loader == null) {
+            loader = Executors.newFixedThreadPool(BandExecutor.getParallelism(), new ThreadFactory() {
+
+                private int counter = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TemplateCache-" + (++counter));
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return loader;
+    }
+
+    private static class Entry {
+
+        final long lastModified;
+        final long length;
+        final FutureTask<BufferedImage> task;
+
+        Entry(final File f) {
+            lastModified = f.lastModified();
+            length = f.length();
+            task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+
+                public BufferedImage call() throws IOException {
+                    return ImageIO.read(f);
+                }
+            });
+        }
+    }
+}
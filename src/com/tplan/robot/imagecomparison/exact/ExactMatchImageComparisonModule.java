@@ -0,0 +1,216 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.exact;
+
+import com.tplan.robot.imagecomparison.search.SearchImageComparisonModule;
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.PixelAccess;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Exact image search based on the two dimensional Rabin-Karp algorithm.
+ * Each desktop row is first hashed with a rolling hash over windows of the
+ * template width. The row hashes are then combined with another rolling hash
+ * in the vertical direction, which yields a hash of every template sized
+ * desktop rectangle in a constant time per position. Positions whose hash
+ * equals the template one are verified by a direct pixel comparison, so
+ * hash collisions never produce false matches.</p>
+ *
+ * <p>Row hashes of the live image of a passive client are cached per
+ * template width and updated only in the rows changed since the last search,
+ * which makes repeated searches on a mostly static screen almost linear in
+ * the searched area size regardless of the template size.</p>
+ *
+ * <p>The method is exact; it is used only with the 100% pass rate and fully
+ * opaque templates. Other comparisons fall back to the standard search
+ * algorithm with the same results as the "search" module.</p>
+ * @product.signature
+ */
+public class ExactMatchImageComparisonModule extends SearchImageComparisonModule {
+
+    /** Base of the column polynomial. */
+    private static final int COLUMN_BASE = 0x27d4eb2d;
+
+    /** Template pixels the hash was calculated for. */
+    private int[] hashedPixels;
+    private int templateHash;
+    private boolean opaque;
+
+    /** View of the desktop pixels verified by the last call, its buffer is reused. */
+    private PixelAccess.View view;
+
+    @Override
+    public String getMethodName() {
+        return "exact";
+    }
+
+    @Override
+    public String getMethodDescription() {
+        return "Search for an exact occurence of a template in an image using rolling hashes.";
+    }
+
+    @Override
+    public float compare(Image desktopImage, Rectangle area, Image image, String methodParams, ScriptingContext repository, float passRate) {
+        if (passRate < 1.0f) {
+            return super.compare(desktopImage, area, image, methodParams, repository, passRate);
+        }
+        // Heuristics of the standard search are not needed
+        startTime = System.nanoTime();
+        setBaseImage(image);
+        float result = compareToBaseImage(desktopImage, area, methodParams, repository, passRate);
+        pixels = null;
+        endTime = System.nanoTime();
+        return result;
+    }
+
+    @Override
+    public float compareToBaseImage(Image desktopImage, Rectangle area, String methodParams, ScriptingContext repository, float passRate) {
+        if (hashedPixels != pixels) {
+            hashTemplate();
+        }
+        loadMethodParams(methodParams, repository);
+        if (passRate < 1.0f || !opaque || bestMatchMode || colorTolerance > 0) {
+            return super.compareToBaseImage(desktopImage, area, methodParams, repository, passRate);
+        }
+
+        stop = false;
+        pxcnt = 0;
+        Rectangle fullRect = new Rectangle(0, 0, desktopImage.getWidth(imgConsumer), desktopImage.getHeight(imgConsumer));
+        if (area == null) {
+            area = fullRect;
+        } else {
+            area = area.intersection(fullRect);
+        }
+        loadSearchSettings(repository);
+
+        List<Point> pts = new ArrayList<Point>();
+        if (area.width >= r.width && area.height >= r.height && pixels.length > 0) {
+            FrameBufferMonitor monitor = FrameBufferMonitor.getMonitor(repository.getClient(), desktopImage);
+            RowHashTable table = RowHashTable.getInstance(monitor, desktopImage, area, r.width);
+            synchronized (table) {
+                search(desktopImage, area, table, pts);
+            }
+        }
+        return publishSearchResults(pts, repository);
+    }
+
+    /**
+     * Roll the column hashes down the area and verify positions with the template hash.
+     */
+    private void search(Image desktopImage, Rectangle area, RowHashTable table, List<Point> pts) {
+        final int w = r.width, h = r.height;
+        final int[] rowHashes = table.hashes;
+        final int tableWidth = table.bounds.width;
+        final int x0 = area.x - table.bounds.x, y0 = area.y - table.bounds.y;
+        final int columns = area.width - w + 1, rows = area.height - h + 1;
+        final int power = RowHashTable.power(COLUMN_BASE, h - 1);
+        final int target = templateHash;
+        offsetCount = rows;
+
+        int[] v = new int[columns];
+        int index;
+        for (int y = 0; y < h; y++) {
+            index = (y0 + y) * tableWidth + x0;
+            for (int c = 0; c < columns; c++) {
+                v[c] = v[c] * COLUMN_BASE + rowHashes[index + c];
+            }
+        }
+
+        int top, bottom;
+        for (int y = 0; y < rows && !stop; y++) {
+            for (int c = 0; c < columns; c++) {
+                if (v[c] == target && verify(desktopImage, area.x + c, area.y + y)) {
+                    pts.add(new Point(area.x + c, area.y + y));
+                    if (MAX_HITS > 0 && pts.size() >= MAX_HITS) {
+                        return;
+                    }
+                }
+            }
+            if (y + 1 < rows) {
+                top = (y0 + y) * tableWidth + x0;
+                bottom = (y0 + y + h) * tableWidth + x0;
+                for (int c = 0; c < columns; c++) {
+                    v[c] = (v[c] - rowHashes[top + c] * power) * COLUMN_BASE + rowHashes[bottom + c];
+                }
+            }
+            pxcnt = y + 1;
+        }
+    }
+
+    /**
+     * Compare the template with the desktop pixels at the given position.
+     */
+    private boolean verify(Image desktopImage, int x, int y) {
+        view = PixelAccess.getView(desktopImage, new Rectangle(x, y, r.width, r.height), view);
+        final int[] source = view.data;
+        for (int row = 0, i = 0; row < r.height; row++) {
+            for (int s = view.index(x, y + row), end = s + r.width; s < end; s++, i++) {
+                if (((source[s] ^ pixels[i]) & 0xFFFFFF) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculate the template hash the same way as the desktop one is
+     * calculated from the row hashes.
+     */
+    private void hashTemplate() {
+        final int w = r.width, h = r.height;
+        int rowHash, hash = 0;
+        opaque = true;
+        for (int y = 0; y < h; y++) {
+            rowHash = 0;
+            for (int x = 0; x < w; x++) {
+                rowHash = rowHash * RowHashTable.ROW_BASE + RowHashTable.mix(pixels[y * w + x]);
+                opaque &= ((pixels[y * w + x] >> 24) & 0xFF) == 0xFF;
+            }
+            hash = hash * COLUMN_BASE + rowHash;
+        }
+        templateHash = hash;
+        hashedPixels = pixels;
+    }
+
+    @Override
+    public String getCode() {
+        return "exact";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Exact Image Search";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Exact image search based on two dimensional rolling hashes, suitable for the 100% pass rate.";
+    }
+
+    @Override
+    public String getUniqueId() {
+        return "VNCRobot_native_Exact_search_image_comparison_module";
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.exact;
+
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.util.PixelAccess;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Horizontal rolling hashes of desktop pixel rows. Value at [x,y] is the
+ * polynomial hash of the <code>width</code> pixels starting at [x,y]. Tables
+ * of the live image of a passive client are attached to the client's
+ * {@link FrameBufferMonitor} (one table per hashed width) and only the rows
+ * touched by updates since the last use get recalculated.
+ *
+ * @product.signature
+ */
+final class RowHashTable {
+
+    /** Base of the row polynomial. */
+    static final int ROW_BASE = 0x5bd1e995;
+
+    /** Multiplier spreading pixel values before they get hashed. */
+    static final int MIX = 0x9E3779B1;
+
+    /** Maximum number of tables (hashed widths) kept per monitor. */
+    private static final int MAX_CACHED_TABLES = 8;
+
+    /** Number of pixel rows loaded from the image at a time. */
+    private static final int BAND_HEIGHT = 64;
+
+    private static final String ATTACHMENT_KEY = RowHashTable.class.getName();
+
+    /** Image area covered by the table. */
+    final Rectangle bounds;
+    /** Number of hashed pixels. */
+    final int width;
+    /** Hashes in the row major order with the row length of <code>bounds.width</code>. */
+    final int[] hashes;
+    /** Monitor generation the table corresponds to. */
+    private long generation = -1;
+
+    private RowHashTable(Rectangle bounds, int width) {
+        this.bounds = new Rectangle(bounds);
+        this.width = width;
+        hashes = new int[bounds.width * bounds.height];
+    }
+
+    /**
+     * Get an up to date table of row hashes. If the image is the live image
+     * of a passive client, the table is shared and updated incrementally.
+     * Otherwise a new table is calculated for the requested area.
+     * @param monitor frame buffer monitor of the image or null if the image is not monitored.
+     * @param desktopImage desktop image.
+     * @param area area of interest.
+     * @param width number of pixels to hash.
+     * @return table covering at least the requested area.
+     */
+    static RowHashTable getInstance(FrameBufferMonitor monitor, Image desktopImage, Rectangle area, int width) {
+        if (monitor == null) {
+            RowHashTable t = new RowHashTable(area, width);
+            t.recalculate(desktopImage, 0, area.height);
+            return t;
+        }
+        Rectangle full = new Rectangle(0, 0, desktopImage.getWidth(null), desktopImage.getHeight(null));
+        RowHashTable t;
+        synchronized (monitor) {
+            Tables tables = (Tables) monitor.getAttachment(ATTACHMENT_KEY);
+            if (tables == null) {
+                tables = new Tables();
+                monitor.setAttachment(ATTACHMENT_KEY, tables);
+            }
+            t = tables.get(width);
+            if (t == null || !t.bounds.equals(full)) {
+                t = new RowHashTable(full, width);
+                tables.put(width, t);
+            }
+        }
+        t.update(desktopImage, monitor);
+        return t;
+    }
+
+    private synchronized void update(Image desktopImage, FrameBufferMonitor monitor) {
+        long g = monitor.getGeneration();
+        Rectangle changed = monitor.getChangedArea(generation);
+        if (changed != null) {
+            recalculate(desktopImage, changed.y - bounds.y, changed.y - bounds.y + changed.height);
+        }
+        generation = g;
+    }
+
+    /**
+     * Recalculate hashes of the given rows.
+     * @param fromRow first row (relative to the table bounds).
+     * @param toRow row following the last one.
+     */
+    private void recalculate(Image desktopImage, int fromRow, int toRow) {
+        final int w = bounds.width;
+        if (w < width) {
+            return;
+        }
+        final int power = power(ROW_BASE, width - 1);
+        Rectangle band = new Rectangle(bounds.x, bounds.y + fromRow, w, Math.min(BAND_HEIGHT, toRow - fromRow));
+        PixelAccess.View view = null;
+        int[] pixels;
+        int h, offset, index;
+        while (band.height > 0) {
+            // The hashes ignore the alpha channel, the pixels may be read in place
+            view = PixelAccess.getView(desktopImage, band, view);
+            pixels = view.data;
+            for (int y = 0; y < band.height; y++) {
+                offset = view.index(band.x, band.y + y);
+                index = (band.y - bounds.y + y) * w;
+                h = 0;
+                for (int x = 0; x < width; x++) {
+                    h = h * ROW_BASE + mix(pixels[offset + x]);
+                }
+                hashes[index] = h;
+                for (int x = 1; x <= w - width; x++) {
+                    h = (h - mix(pixels[offset + x - 1]) * power) * ROW_BASE + mix(pixels[offset + x + width - 1]);
+                    hashes[index + x] = h;
+                }
+            }
+            band.y += band.height;
+            band.height = Math.min(BAND_HEIGHT, bounds.y + toRow - band.y);
+        }
+    }
+
+    /**
+     * Spread a pixel value before hashing. The alpha channel is ignored.
+     */
+    static int mix(int pixel) {
+        return (pixel & 0xFFFFFF) * MIX;
+    }
+
+    /**
+     * Calculate <code>base<sup>exponent</sup></code> modulo 2<sup>32</sup>.
+     */
+    static int power(int base, int exponent) {
+        int p = 1;
+        for (int i = 0; i < exponent; i++) {
+            p *= base;
+        }
+        return p;
+    }
+
+    /**
+     * Tables of a monitored image by the number of hashed pixels, the least
+     * recently used ones are dropped.
+     */
+    private static class Tables extends LinkedHashMap<Integer, RowHashTable> {
+
+        private static final long serialVersionUID = 1L;
+
+        Tables() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RowHashTable> eldest) {
+            return size() > MAX_CACHED_TABLES;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.histogram;
+
+import com.tplan.robot.util.PixelAccess;
+import com.tplan.robot.util.PixelKernel;
+import java.awt.Image;
+import java.awt.Rectangle;
+
+/**
+ * Color histogram stored in an open addressing hash table of primitive
+ * integers. Unlike {@link ImageHistogram} it doesn't box the pixels, so it
+ * is cheap enough to be built and merged repeatedly.
+ * @product.signature
+ */
+class ColorCounts {
+
+    /** Number of pixel rows loaded from an image at a time. */
+    private static final int BAND_HEIGHT = 64;
+
+    private int[] colors;
+    /** Pixel counts of the colors; zero marks an empty slot. */
+    private int[] counts;
+    private int size;
+    private long length;
+
+    ColorCounts() {
+        this(16);
+    }
+
+    private ColorCounts(int capacity) {
+        colors = new int[capacity];
+        counts = new int[capacity];
+    }
+
+    /**
+     * Count pixels of a rectangle of an image.
+     * @param img an image.
+     * @param r a rectangle within the image.
+     * @return color counts.
+     */
+    static ColorCounts count(Image img, Rectangle r) {
+        ColorCounts c = new ColorCounts();
+        c.addPixels(img, r);
+        return c;
+    }
+
+    /**
+     * Add pixels of a rectangle of an image.
+     * @param img an image.
+     * @param r a rectangle within the image.
+     */
+    void addPixels(Image img, Rectangle r) {
+        Rectangle band = new Rectangle(r.x, r.y, r.width, Math.min(BAND_HEIGHT, r.height));
+        int[] pixels = null;
+        while (band.height > 0) {
+            pixels = PixelAccess.read(img, band, pixels);
+            addPixels(pixels, 0, band.width * band.height);
+            band.y += band.height;
+            band.height = Math.min(BAND_HEIGHT, r.y + r.height - band.y);
+        }
+    }
+
+    /**
+     * Add pixels of an array. Runs of the same color are counted at once.
+     * @param pixels pixel array.
+     * @param offset index of the first pixel.
+     * @param count number of pixels.
+     */
+    void addPixels(int[] pixels, int offset, int count) {
+        final PixelKernel kernel = PixelKernel.getInstance();
+        final int end = offset + count;
+        for (int i = offset, run; i < end; i += run) {
+            run = kernel.runLength(pixels, i, end);
+            add(pixels[i], run);
+        }
+    }
+
+    /**
+     * Add pixels of a color.
+     * @param color color (ARGB pixel value).
+     * @param n number of pixels, ignored if it isn't positive.
+     */
+    void add(int color, int n) {
+        if (n <= 0) {
+            return;
+        }
+        length += n;
+        final int mask = colors.length - 1;
+        int i = hash(color) & mask;
+        while (counts[i] != 0) {
+            if (colors[i] == color) {
+                counts[i] += n;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        colors[i] = color;
+        counts[i] = n;
+        if (++size * 2 > colors.length) {
+            rehash(colors.length * 2);
+        }
+    }
+
+    /**
+     * Add all counts of another histogram.
+     * @param c a histogram.
+     */
+    void addAll(ColorCounts c) {
+        for (int i = 0; i < c.counts.length; i++) {
+            if (c.counts[i] != 0) {
+                add(c.colors[i], c.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Get the number of pixels of a color.
+     * @param color color (ARGB pixel value).
+     * @return number of pixels.
+     */
+    int get(int color) {
+        final int mask = colors.length - 1;
+        int i = hash(color) & mask;
+        while (counts[i] != 0) {
+            if (colors[i] == color) {
+                return counts[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Count pixels of this histogram which have no counterpart of the same
+     * color in the other one. It is the number of pixels which would remain
+     * unmatched if the pixels of this histogram were paired with pixels of
+     * the same color of the other one.
+     * @param other another histogram.
+     * @return number of unmatched pixels.
+     */
+    long countExcess(ColorCounts other) {
+        long excess = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                excess += Math.max(0, counts[i] - other.get(colors[i]));
+            }
+        }
+        return excess;
+    }
+
+    /**
+     * Get the number of distinct colors.
+     * @return number of colors.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the total number of pixels.
+     * @return number of pixels.
+     */
+    long getLength() {
+        return length;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldColors = colors, oldCounts = counts;
+        colors = new int[capacity];
+        counts = new int[capacity];
+        final int mask = capacity - 1;
+        for (int k = 0; k < oldCounts.length; k++) {
+            if (oldCounts[k] != 0) {
+                int i = hash(oldColors[k]) & mask;
+                while (counts[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                colors[i] = oldColors[k];
+                counts[i] = oldCounts[k];
+            }
+        }
+    }
+
+    private static int hash(int color) {
+        int h = color * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
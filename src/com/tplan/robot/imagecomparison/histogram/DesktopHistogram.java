@@ -0,0 +1,128 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.histogram;
+
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.scripting.ScriptingContext;
+import java.awt.Image;
+import java.awt.Rectangle;
+
+/**
+ * <p>Color histogram of a desktop image maintained per tile. The image is
+ * divided into the tiles of the {@link FrameBufferMonitor} and each tile
+ * keeps its own color counts. A histogram of an area is obtained by merging
+ * counts of the tiles lying within the area; only pixels of the tiles
+ * crossed by the area border are counted directly.</p>
+ *
+ * <p>Tile histograms of the live image of a passive client are attached to
+ * the client's monitor and only the tiles updated by the server since the
+ * last query are counted again. Repeated histogram comparisons of a mostly
+ * static screen then cost little more than the merge.</p>
+ * @product.signature
+ */
+class DesktopHistogram {
+
+    /** Key of the histogram attached to the frame buffer monitor. */
+    private static final String ATTACHMENT_KEY = DesktopHistogram.class.getName();
+
+    private static final int TILE_SIZE = FrameBufferMonitor.TILE_SIZE;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final ColorCounts[] tiles;
+    /** Monitor generation the tiles correspond to. */
+    private long generation = -1;
+
+    private DesktopHistogram(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new ColorCounts[columns * rows];
+    }
+
+    /**
+     * Get the color histogram of an area of a desktop image. If the image is
+     * the live image of a passive client, the histogram is merged from the
+     * shared tile histograms. Otherwise pixels of the area are counted.
+     * @param desktopImage desktop image.
+     * @param area area of interest, it must lie within the image.
+     * @param repository context of the calling script.
+     * @return color counts of the area.
+     */
+    static ColorCounts getCounts(Image desktopImage, Rectangle area, ScriptingContext repository) {
+        FrameBufferMonitor monitor = FrameBufferMonitor.getMonitor(repository.getClient(), desktopImage);
+        if (monitor == null) {
+            return ColorCounts.count(desktopImage, area);
+        }
+        int w = desktopImage.getWidth(null), h = desktopImage.getHeight(null);
+        DesktopHistogram dh;
+        synchronized (monitor) {
+            dh = (DesktopHistogram) monitor.getAttachment(ATTACHMENT_KEY);
+            if (dh == null || dh.width != w || dh.height != h) {
+                dh = new DesktopHistogram(w, h);
+                monitor.setAttachment(ATTACHMENT_KEY, dh);
+            }
+        }
+        return dh.getCounts(desktopImage, area, monitor);
+    }
+
+    private synchronized ColorCounts getCounts(Image desktopImage, Rectangle area, FrameBufferMonitor monitor) {
+        update(desktopImage, monitor);
+        ColorCounts c = new ColorCounts();
+        final int c0 = area.x / TILE_SIZE, c1 = (area.x + area.width - 1) / TILE_SIZE;
+        final int r0 = area.y / TILE_SIZE, r1 = (area.y + area.height - 1) / TILE_SIZE;
+        for (int row = r0; row <= r1; row++) {
+            for (int col = c0; col <= c1; col++) {
+                Rectangle tile = getTileBounds(col, row);
+                if (area.contains(tile)) {
+                    c.addAll(tiles[row * columns + col]);
+                } else {
+                    c.addPixels(desktopImage, tile.intersection(area));
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Count the tiles updated since the previous query again.
+     */
+    private void update(Image desktopImage, FrameBufferMonitor monitor) {
+        long g = monitor.getGeneration();
+        boolean sameGrid = monitor.getColumns() == columns && monitor.getRows() == rows;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                int i = row * columns + col;
+                if (tiles[i] == null || !sameGrid || monitor.isTileChanged(col, row, generation)) {
+                    tiles[i] = ColorCounts.count(desktopImage, getTileBounds(col, row));
+                }
+            }
+        }
+        generation = g;
+    }
+
+    private Rectangle getTileBounds(int col, int row) {
+        int x = col * TILE_SIZE, y = row * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+}
@@ -24,6 +24,7 @@ import com.tplan.robot.imagecomparison.ImageComparisonModule;
 import com.tplan.robot.plugin.DependencyMissingException;
 import com.tplan.robot.plugin.PluginManager;
 import com.tplan.robot.util.Measurable;
+import com.tplan.robot.util.PixelAccess;
 import com.tplan.robot.util.Stoppable;
 import com.tplan.robot.preferences.ConfigurationKeys;
 import com.tplan.robot.preferences.UserConfiguration;
@@ -34,7 +35,6 @@ import com.tplan.robot.util.Utils;
 import java.util.Date;
 import javax.swing.*;
 import java.awt.*;
-import java.awt.image.PixelGrabber;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -56,7 +56,12 @@ public class HistogramComparisonModule
      * performed. It is used to speed up executions e.g. in 'Waitfor match' where we periodically compare
      * the remote desktop image to a stable template.
      */
-    private ImageHistogram baseImageHist;
+    private ColorCounts baseImageHist;
+
+    /** Template image and its area the cached template histogram was counted for. */
+    private Image countedTemplate;
+    private Rectangle countedArea;
+    private ColorCounts templateHist;
     
     /**
      * An image observer used to determine the image size.
@@ -66,8 +71,6 @@ public class HistogramComparisonModule
     
     private boolean stop;
     
-    private ImageHistogram remoteDesktopHist;
-    
     private int pxcnt = 0;
     
     private int histSize = 0;
@@ -81,13 +84,12 @@ public class HistogramComparisonModule
     }
 
     public float getProgress() {
-        int base = histSize + (int)(remoteDesktopHist == null ? 0 : remoteDesktopHist.getLength());
-        int histContrib = remoteDesktopHist==null? 0 : (int)(remoteDesktopHist.getProgress()*remoteDesktopHist.getLength());
-        return base == 0 ? 0 : (float)(pxcnt+histContrib)/base;
+        return histSize == 0 ? 0 : (float) pxcnt / histSize;
     }
 
     public float compare(Image img1, Rectangle area, Image img2, String methodParams, ScriptingContext repository, float passRate) {
         stop = false;
+        pxcnt = 0;
         UserConfiguration cfg = repository.getConfiguration();
         Integer max = cfg == null ? null : cfg.getInteger(COMPARETO_MAX_LOADED_PIXEL_ROWS);
         if (max != null) {
@@ -107,12 +109,20 @@ public class HistogramComparisonModule
             rr.y = area.y;
         }
         
-        // Get histogram of the remote desktop
-        remoteDesktopHist = getHistogram(img1, rr);
+        // Get histogram of the remote desktop; it is merged from the tile
+        // histograms of a live desktop image
+        rr = rr.intersection(new Rectangle(img1.getWidth(imageObserver), img1.getHeight(imageObserver)));
+        ColorCounts desktop = rr.isEmpty() ? new ColorCounts() : DesktopHistogram.getCounts(img1, rr, repository);
         
-        // Perform the comparison
-        float ratio = compare(remoteDesktopHist, img2, r);
-        return ratio;
+        // Template pixels which have no counterpart of the same color in the desktop area
+        if (img2 != countedTemplate || !r.equals(countedArea)) {
+            templateHist = ColorCounts.count(img2, r);
+            countedTemplate = img2;
+            countedArea = r;
+        }
+        long diff = templateHist.countExcess(desktop);
+        pxcnt = histSize;
+        return stop || histSize == 0 ? 0 : 1 - ((float) diff / (float) histSize);
     }
     
     public void setBaseImage(Image img) {
@@ -121,14 +131,22 @@ public class HistogramComparisonModule
             baseImageHist = null;
         } else {
             Rectangle r = new Rectangle(img.getWidth(imageObserver), img.getHeight(imageObserver));
-            baseImageHist = getHistogram(img, r);
+            baseImageHist = ColorCounts.count(img, r);
 //            System.out.println("getting base image histogram, rectangle = "+r);
         }
     }
     
     public float compareToBaseImage(Image img2, Rectangle area, String methodParams, ScriptingContext repository, float passRate) {
+        stop = false;
         Rectangle r = new Rectangle(img2.getWidth(imageObserver), img2.getHeight(imageObserver));
-        return compare(baseImageHist, img2, r);
+        histSize = r.width * r.height;
+        pxcnt = 0;
+
+        // Desktop pixels which have no counterpart of the same color in the
+        // base image. The base histogram is left intact for the next comparison.
+        long diff = DesktopHistogram.getCounts(img2, r, repository).countExcess(baseImageHist);
+        pxcnt = histSize;
+        return stop || baseImageHist.getLength() == 0 ? 0 : 1 - ((float) diff / (float) baseImageHist.getLength());
     }
     
     public boolean isSecondImageRequired() {
@@ -150,71 +168,45 @@ public class HistogramComparisonModule
     
     //---------------------------- NEW METHODS -----------------------------------------
     public ImageHistogram getHistogram(Image img, Rectangle rect) {
-        remoteDesktopHist = new ImageHistogram();
-        return remoteDesktopHist.load(img, rect);
+        return new ImageHistogram().load(img, rect);
     }
     
     public ImageHistogram getHistogram(int pixels[], Rectangle histRect, Rectangle sourceRect) {
-        remoteDesktopHist = new ImageHistogram();
-        return remoteDesktopHist.load(pixels, histRect, sourceRect);
+        return new ImageHistogram().load(pixels, histRect, sourceRect);
     }
     
+    /**
+     * Compare a histogram to the pixels of an image. The result is one minus
+     * the ratio of image pixels which have no counterpart of the same color in
+     * the histogram. The histogram is not modified.
+     * @param h a histogram.
+     * @param img an image.
+     * @param rect size of the image area to compare (starting at [0, 0]) or
+     * null to compare the whole image.
+     * @return comparison result between 0 and 1.
+     */
     public float compare(ImageHistogram h, Image img, Rectangle rect) {
         pxcnt = 0;
         stop = false;
-        Map t = h.getPointers();
-        int diff = 0;
-        Integer px;
-        int colorCnt[];
-        
-        int pixels[] = null;
+        Map<Integer, int[]> t = h.getPointers();
         
         int imgWidth = rect == null ? img.getWidth(imageObserver) : rect.width;
         int imgHeight = rect == null ? img.getHeight(imageObserver) : rect.height;
-        
-        Rectangle r = new Rectangle(0, 0, imgWidth, Math.min(imgHeight, MAX_LOADED_PIXEL_ROWS));
-        int plen;
-        int index;
-        
-        while (r.y <= imgHeight && r.height > 0 && !stop) {
-            pixels = getPixels(img, r);
-            plen = pixels.length;
-            
-            for (int i = 0; i < plen; i++) {
-                pxcnt++;
-                px = new Integer(pixels[i]);
-                colorCnt = (int[]) t.get(px);
-                if (colorCnt != null) {
-                    if (colorCnt[0] > 0) {
-                        colorCnt[0]--;
-                    } else {
-                        diff++;
-                    }
-                } else {
-                    diff++;
-                }
-            }
-            r.y += MAX_LOADED_PIXEL_ROWS;
-            r.height = Math.min(imgHeight - r.y, MAX_LOADED_PIXEL_ROWS);
+        ColorCounts counts = ColorCounts.count(img, new Rectangle(0, 0, imgWidth, imgHeight));
+
+        ColorCounts hist = new ColorCounts();
+        for (Map.Entry<Integer, int[]> e : t.entrySet()) {
+            hist.add(e.getKey().intValue(), e.getValue()[0]);
         }
+        long diff = counts.countExcess(hist);
+        pxcnt = imgWidth * imgHeight;
         return stop ? 0 : 1 - ((float) diff / (float) h.getLength());
     }
     
 //---------------------------- END OF NEW METHODS -----------------------------------------
     
     public int[] getPixels(Image img, Rectangle r) {
-        int width = r.width;
-        int height = r.height;
-        int ai[] = new int[width * height];
-        
-        PixelGrabber pixelgrabber =
-                new PixelGrabber(img, r.x, r.y, width, height, ai, 0, width);
-        try {
-            pixelgrabber.grabPixels();
-        } catch (InterruptedException interruptedexception) {
-            interruptedexception.printStackTrace();
-        }
-        return ai;
+        return PixelAccess.read(img, r, null);
     }
     
     public float compareHistograms(ImageHistogram h1, ImageHistogram h2) {
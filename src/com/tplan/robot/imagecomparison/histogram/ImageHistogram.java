@@ -20,6 +20,7 @@
 package com.tplan.robot.imagecomparison.histogram;
 
 import com.tplan.robot.util.Measurable;
+import com.tplan.robot.util.PixelAccess;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.image.PixelGrabber;
@@ -94,8 +95,8 @@ public class ImageHistogram implements Measurable {
         int cnt = 0, alpha;
 
         while (r.y <= imgHeight && r.height > 0) {
-            pixels = getPixels(img, r);
-            plen = pixels.length;
+            pixels = getPixels(img, r, pixels);
+            plen = r.width * r.height;
             cnt += plen;
 
             for (int i = 0; i < plen; i++) {
@@ -278,9 +279,14 @@ public class ImageHistogram implements Measurable {
         return array;
     }
 
-    private int[] getPixels(Image img, Rectangle r) {
+    private int[] getPixels(Image img, Rectangle r, int[] buffer) {
         int width = r.width;
         int height = r.height;
+        if (new Rectangle(0, 0, img.getWidth(imageObserver), img.getHeight(imageObserver)).contains(r)) {
+            return PixelAccess.read(img, r, buffer);
+        }
+
+        // The rectangle exceeds the image, pixels outside of it are counted as zeros
         int ai[] = new int[width * height];
 
         PixelGrabber pixelgrabber =
@@ -0,0 +1,184 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.ncc;
+
+import java.awt.Dimension;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Two dimensional radix-2 fast Fourier transform of complex data stored in
+ * separate arrays of real and imaginary parts in the row major order. Instances
+ * are immutable and may be shared; use {@link #getInstance(int, int)} to obtain
+ * a cached transform of the given size.
+ * @product.signature
+ */
+final class FFT {
+
+    private static final Map<Dimension, FFT> cache = new HashMap<Dimension, FFT>();
+
+    private final int width;
+    private final int height;
+    private final int[] reverseX;
+    private final int[] reverseY;
+    /** Cosine table for the longer of the two dimensions. */
+    private final double[] cos;
+    /** Sine table for the longer of the two dimensions. */
+    private final double[] sin;
+    private final int tableSize;
+
+    private FFT(int width, int height) {
+        this.width = width;
+        this.height = height;
+        reverseX = createBitReversalTable(width);
+        reverseY = createBitReversalTable(height);
+        tableSize = Math.max(width, height);
+        cos = new double[tableSize / 2];
+        sin = new double[tableSize / 2];
+        for (int i = 0; i < cos.length; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / tableSize);
+            sin[i] = Math.sin(2 * Math.PI * i / tableSize);
+        }
+    }
+
+    /**
+     * Get a transform of the given size.
+     * @param width number of columns, must be a power of two.
+     * @param height number of rows, must be a power of two.
+     * @return a shared transform instance.
+     */
+    static synchronized FFT getInstance(int width, int height) {
+        if (Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1) {
+            throw new IllegalArgumentException("FFT dimensions must be powers of two: " + width + "x" + height);
+        }
+        Dimension d = new Dimension(width, height);
+        FFT fft = cache.get(d);
+        if (fft == null) {
+            fft = new FFT(width, height);
+            cache.put(d, fft);
+        }
+        return fft;
+    }
+
+    /**
+     * Get the smallest power of two which is greater than or equal to the argument.
+     */
+    static int ceilPowerOfTwo(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Transform the data in place. The inverse transform is scaled by
+     * <code>1/(width*height)</code> so that a forward transform followed by
+     * an inverse one restores the original values.
+     * @param re real parts, <code>width*height</code> values in the row major order.
+     * @param im imaginary parts, <code>width*height</code> values in the row major order.
+     * @param inverse true for the inverse transform, false for the forward one.
+     */
+    void transform(double[] re, double[] im, boolean inverse) {
+        for (int y = 0; y < height; y++) {
+            transform(re, im, y * width, 1, width, reverseX, inverse);
+        }
+        // Columns are copied to a contiguous buffer to keep the memory access sequential
+        final double[] colRe = new double[height], colIm = new double[height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                colRe[y] = re[i];
+                colIm[y] = im[i];
+            }
+            transform(colRe, colIm, 0, 1, height, reverseY, inverse);
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                re[i] = colRe[y];
+                im[i] = colIm[y];
+            }
+        }
+        if (inverse) {
+            final double scale = 1.0 / (width * height);
+            for (int i = 0; i < re.length; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * One dimensional iterative transform of <code>n</code> values starting
+     * at <code>offset</code> and separated by <code>stride</code>.
+     */
+    private void transform(double[] re, double[] im, int offset, int stride, int n, int[] reverse, boolean inverse) {
+        int i, j;
+        double t;
+        for (int k = 0; k < n; k++) {
+            int r = reverse[k];
+            if (r > k) {
+                i = offset + k * stride;
+                j = offset + r * stride;
+                t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        final double sign = inverse ? 1 : -1;
+        double wr, wi, tr, ti;
+        int a, b;
+        for (int size = 2; size <= n; size <<= 1) {
+            final int half = size >> 1;
+            final int step = tableSize / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    wr = cos[k * step];
+                    wi = sign * sin[k * step];
+                    a = offset + (start + k) * stride;
+                    b = a + half * stride;
+                    tr = re[b] * wr - im[b] * wi;
+                    ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    private static int[] createBitReversalTable(int n) {
+        int bits = Integer.numberOfTrailingZeros(n);
+        int[] table = new int[n];
+        for (int i = 0; i < n; i++) {
+            table[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        return table;
+    }
+}
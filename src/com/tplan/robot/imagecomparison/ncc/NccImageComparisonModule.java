@@ -0,0 +1,520 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.ncc;
+
+import com.tplan.robot.imagecomparison.search.SearchImageComparisonModule;
+import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.PixelAccess;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Image comparison module based on the zero-mean normalized cross-correlation
+ * (ZNCC) of pixel luminance. Unlike the pixel based search the correlation
+ * tolerates changes of brightness and contrast as well as minor rendering
+ * differences. The module locates the desktop position where the template
+ * correlates best and returns the correlation coefficient (clipped to the
+ * 0-1 range) as the comparison result. The location is reported through the
+ * standard <code>_SEARCH_X</code> and <code>_SEARCH_Y</code> variables when
+ * the score reaches the pass rate and the score is always saved into the
+ * <code>_SEARCH_SCORE</code> variable as a percentage.</p>
+ *
+ * <p>Correlation of all offsets is calculated through the fast Fourier
+ * transform using the overlap-save method. The desktop area is processed in
+ * blocks of about four times the template size, so the cost is proportional to
+ * the area size and grows only logarithmically with the template size.
+ * Template spectra are cached for the block size and reused as long as
+ * the template doesn't change, for example during repeated comparisons
+ * performed by the <code>Waitfor match</code> command. The local
+ * desktop mean and variance required for normalization are obtained from
+ * summed-area tables. Transparent template pixels are excluded from the
+ * correlation; the masked window statistics are then calculated through
+ * additional correlations with the template mask.</p>
+ * @product.signature
+ */
+public class NccImageComparisonModule extends SearchImageComparisonModule {
+
+    /** Minimum size of the blocks the desktop is split into. */
+    private static final int MIN_BLOCK_SIZE = 64;
+
+    /** Variance below this limit is considered to be a flat (single color) area. */
+    private static final double FLAT_VARIANCE = 0.25;
+
+    /** Template the cached data belong to. */
+    private Image template;
+
+    /** Zero mean template luminance, transparent pixels are set to zero. */
+    private double[] templateValues;
+
+    /** Template mask with 1 for opaque and 0 for transparent pixels, null if the template is fully opaque. */
+    private double[] templateMask;
+
+    /** Number of opaque template pixels. */
+    private int opaqueCount;
+
+    /** Square root of the sum of squared zero mean template values. */
+    private double templateNorm;
+
+    /** Transform the cached spectra belong to. */
+    private FFT transform;
+    private double[] templateRe, templateIm, maskRe, maskIm;
+
+    /** Reusable buffer of the desktop pixels, they are converted to luminance in place. */
+    private int[] plane;
+
+    /** Best score and its location found by the current comparison. */
+    private double bestScore;
+    private Point bestLocation;
+
+    @Override
+    public String getMethodName() {
+        return "ncc";
+    }
+
+    @Override
+    public String getMethodDescription() {
+        return "Search for a template in an image using normalized cross-correlation of pixel luminance.";
+    }
+
+    @Override
+    public float compare(Image desktopImage, Rectangle area, Image image, String methodParams, ScriptingContext repository, float passRate) {
+        startTime = System.nanoTime();
+        if (image != template) {
+            setBaseImage(image);
+        }
+        float result = compareToBaseImage(desktopImage, area, methodParams, repository, passRate);
+        endTime = System.nanoTime();
+        return result;
+    }
+
+    @Override
+    public void setBaseImage(Image img) {
+        super.setBaseImage(img);
+        template = img;
+        transform = null;
+
+        // Calculate the template luminance and its mean over the opaque pixels
+        templateValues = new double[pixels.length];
+        templateMask = null;
+        opaqueCount = 0;
+        double sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            if (((pixels[i] >> 24) & 0xFF) == 0xFF) {
+                templateValues[i] = luminance(pixels[i]);
+                sum += templateValues[i];
+                opaqueCount++;
+            } else if (templateMask == null) {
+                templateMask = new double[pixels.length];
+                for (int j = 0; j < i; j++) {
+                    templateMask[j] = 1;
+                }
+            }
+            if (templateMask != null && ((pixels[i] >> 24) & 0xFF) == 0xFF) {
+                templateMask[i] = 1;
+            }
+        }
+        double mean = opaqueCount > 0 ? sum / opaqueCount : 0;
+        double norm = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            if (templateMask == null || templateMask[i] > 0) {
+                templateValues[i] -= mean;
+                norm += templateValues[i] * templateValues[i];
+            }
+        }
+        templateNorm = Math.sqrt(norm);
+    }
+
+    @Override
+    public float compareToBaseImage(Image desktopImage, Rectangle area, String methodParams, ScriptingContext repository, float passRate) {
+        stop = false;
+        pxcnt = 0;
+        Rectangle fullRect = new Rectangle(0, 0, desktopImage.getWidth(imgConsumer), desktopImage.getHeight(imgConsumer));
+        if (area == null) {
+            area = fullRect;
+        } else {
+            area = area.intersection(fullRect);
+        }
+        final int w = r.width, h = r.height;
+        final int width = area.width, height = area.height;
+        bestScore = -1;
+        bestLocation = null;
+
+        if (width >= w && height >= h && opaqueCount > 0) {
+            int[] lum = plane = PixelAccess.read(desktopImage, area, plane);
+            for (int i = 0, n = width * height; i < n; i++) {
+                lum[i] = luminance(lum[i]);
+            }
+            long[] sums = null, squares = null;
+            if (templateMask == null) {
+                sums = new long[(width + 1) * (height + 1)];
+                squares = new long[(width + 1) * (height + 1)];
+                createSummedAreaTables(lum, width, height, sums, squares);
+            }
+
+            FFT fft = getTransform(width, height);
+            final int bw = fft.getWidth(), bh = fft.getHeight();
+            final int stepX = bw - w + 1, stepY = bh - h + 1;
+            List<Point> blocks = new ArrayList<Point>();
+            for (int by = 0; by <= height - h; by += stepY) {
+                for (int bx = 0; bx <= width - w; bx += stepX) {
+                    blocks.add(new Point(bx, by));
+                }
+            }
+            offsetCount = blocks.size();
+
+            double[] re = new double[bw * bh], im = new double[bw * bh];
+            double[] re2 = null, im2 = null;
+            if (templateMask != null) {
+                re2 = new double[bw * bh];
+                im2 = new double[bw * bh];
+            }
+            Point block, second;
+            for (int i = 0; i < blocks.size() && !stop; i++) {
+                block = blocks.get(i);
+                if (templateMask == null) {
+                    // Two blocks are transformed at once, one in the real and one in the imaginary parts
+                    second = i + 1 < blocks.size() ? blocks.get(++i) : null;
+                    loadBlock(lum, width, height, block, bw, bh, re, false);
+                    if (second != null) {
+                        loadBlock(lum, width, height, second, bw, bh, im, false);
+                    } else {
+                        Arrays.fill(im, 0);
+                    }
+                    correlatePair(fft, re, im);
+                    evaluateBlock(block, width, height, bw, re, sums, squares, null, null);
+                    if (second != null) {
+                        evaluateBlock(second, width, height, bw, im, sums, squares, null, null);
+                    }
+                } else {
+                    loadBlock(lum, width, height, block, bw, bh, re, false);
+                    loadBlock(lum, width, height, block, bw, bh, im, true);
+                    correlateMasked(fft, re, im, re2, im2);
+                    evaluateBlock(block, width, height, bw, re, null, null, im, re2);
+                }
+                pxcnt = i + 1;
+            }
+        }
+
+        float result = (float) Math.max(0, Math.min(1, bestScore));
+        List<Point> pts = new ArrayList<Point>();
+        if (bestLocation != null && result >= passRate) {
+            pts.add(new Point(area.x + bestLocation.x, area.y + bestLocation.y));
+        }
+        repository.getVariables().put("_SEARCH_SCORE", Float.valueOf(100 * result));
+        publishSearchResults(pts, repository);
+        return result;
+    }
+
+    /**
+     * Evaluate all offsets of a block which are not affected by the circular
+     * wrap of the transform and update the best score and location.
+     * @param block left upper corner of the block.
+     * @param corr correlations of the block with the zero mean template.
+     * @param sums summed-area table of the desktop values (opaque templates only).
+     * @param squares summed-area table of the squared desktop values (opaque templates only).
+     * @param maskedSums masked window sums (transparent templates only).
+     * @param maskedSquares masked window sums of squares (transparent templates only).
+     */
+    private void evaluateBlock(Point block, int width, int height, int bw, double[] corr,
+            long[] sums, long[] squares, double[] maskedSums, double[] maskedSquares) {
+        final int w = r.width, h = r.height;
+        final int maxX = Math.min(width - w - block.x, bw - w);
+        final int maxY = Math.min(height - h - block.y, corr.length / bw - h);
+        double score, sum, sumSq;
+        int index, sumIndex;
+        for (int dy = 0; dy <= maxY; dy++) {
+            for (int dx = 0; dx <= maxX; dx++) {
+                index = dy * bw + dx;
+                if (sums != null) {
+                    sumIndex = (block.y + dy) * (width + 1) + block.x + dx;
+                    sum = rectangleSum(sums, sumIndex, width + 1, w, h);
+                    sumSq = rectangleSum(squares, sumIndex, width + 1, w, h);
+                } else {
+                    sum = maskedSums[index];
+                    sumSq = maskedSquares[index];
+                }
+                score = getScore(corr[index], sum, sumSq);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestLocation = new Point(block.x + dx, block.y + dy);
+                }
+            }
+        }
+    }
+    /**
+     * Calculate the correlation coefficient of the template and a desktop window
+     * directly (without any transform).
+     */
+    @Override
+    public boolean matches(int[] source, int offset, Rectangle sourceRec, float passRate) {
+        final int rw = r.width, rh = r.height, srcWidth = sourceRec.width;
+        double sum = 0, sumSq = 0, corr = 0, d;
+        int sourceIndex, patternIndex;
+        pxcnt++;
+        for (int y = 0; y < rh; y++) {
+            for (int x = 0; x < rw; x++) {
+                patternIndex = y * rw + x;
+                sourceIndex = y * srcWidth + offset + x;
+                if (sourceIndex >= source.length) {
+                    return false;
+                }
+                if (templateMask == null || templateMask[patternIndex] > 0) {
+                    d = luminance(source[sourceIndex]);
+                    sum += d;
+                    sumSq += d * d;
+                    corr += d * templateValues[patternIndex];
+                }
+            }
+        }
+        return opaqueCount > 0 && getScore(corr, sum, sumSq) >= passRate;
+    }
+
+    /**
+     * Calculate the correlation coefficient from the raw correlation of the
+     * desktop window with the zero mean template and the window statistics.
+     */
+    private double getScore(double corr, double sum, double sumSq) {
+        double variance = sumSq - sum * sum / opaqueCount;
+        if (templateNorm * templateNorm <= FLAT_VARIANCE) {
+            // A single color template matches any single color window
+            return variance <= FLAT_VARIANCE ? 1 : 0;
+        }
+        if (variance <= FLAT_VARIANCE) {
+            return 0;
+        }
+        return corr / (templateNorm * Math.sqrt(variance));
+    }
+
+    /**
+     * Get the transform for the overlap-save blocks and make sure the template
+     * spectra are available for its size. The block size is about four times
+     * the template size but never larger than needed to cover the whole area.
+     */
+    private FFT getTransform(int width, int height) {
+        int bw = Math.min(FFT.ceilPowerOfTwo(Math.max(4 * r.width, MIN_BLOCK_SIZE)), FFT.ceilPowerOfTwo(width));
+        int bh = Math.min(FFT.ceilPowerOfTwo(Math.max(4 * r.height, MIN_BLOCK_SIZE)), FFT.ceilPowerOfTwo(height));
+        if (transform == null || transform.getWidth() != bw || transform.getHeight() != bh) {
+            FFT fft = FFT.getInstance(bw, bh);
+            templateRe = new double[bw * bh];
+            templateIm = new double[bw * bh];
+            copyToBlock(templateValues, templateRe, bw);
+            fft.transform(templateRe, templateIm, false);
+            if (templateMask != null) {
+                maskRe = new double[bw * bh];
+                maskIm = new double[bw * bh];
+                copyToBlock(templateMask, maskRe, bw);
+                fft.transform(maskRe, maskIm, false);
+            } else {
+                maskRe = null;
+                maskIm = null;
+            }
+            transform = fft;
+        }
+        return transform;
+    }
+
+    private void copyToBlock(double[] values, double[] block, int blockWidth) {
+        final int rw = r.width;
+        for (int y = 0; y < r.height; y++) {
+            System.arraycopy(values, y * rw, block, y * blockWidth, rw);
+        }
+    }
+
+    /**
+     * Load a block of desktop luminance values or their squares. Values
+     * outside of the area are zero.
+     */
+    private static void loadBlock(int[] lum, int width, int height, Point block, int bw, int bh,
+            double[] target, boolean squares) {
+        int index = 0, d;
+        for (int y = 0; y < bh; y++) {
+            final int row = block.y + y;
+            for (int x = 0; x < bw; x++, index++) {
+                if (row < height && block.x + x < width) {
+                    d = lum[row * width + block.x + x];
+                    target[index] = squares ? d * d : d;
+                } else {
+                    target[index] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Correlate two blocks with the template. The blocks are expected in the
+     * real and imaginary parts and both spectra are obtained from a single
+     * transform. On return the real and imaginary parts contain correlations
+     * of the first and second block with the zero mean template.
+     */
+    private void correlatePair(FFT fft, double[] re, double[] im) {
+        fft.transform(re, im, false);
+        final int bw = fft.getWidth(), bh = fft.getHeight();
+        int k, m;
+        for (int y = 0; y < bh; y++) {
+            for (int x = 0; x < bw; x++) {
+                k = y * bw + x;
+                m = ((bh - y) % bh) * bw + (bw - x) % bw;
+                if (m < k) {
+                    continue;
+                }
+                // Read both symmetric values first as they get overwritten
+                double a = re[k], b = im[k], c = re[m], d = im[m];
+                separatePair(k, a, b, c, d, re, im);
+                if (m != k) {
+                    separatePair(m, c, d, a, b, re, im);
+                }
+            }
+        }
+        fft.transform(re, im, true);
+    }
+
+    /**
+     * Split the packed spectrum value <code>Z(k) = a+ib</code> with the mirrored
+     * value <code>Z(-k) = c+id</code> into spectra of the two blocks and pack
+     * their products with the conjugated template spectrum.
+     */
+    private void separatePair(int k, double a, double b, double c, double d, double[] re, double[] im) {
+        // First block: (Z(k) + conj(Z(-k))) / 2, second block: (Z(k) - conj(Z(-k))) / 2i
+        final double vr = (a + c) / 2, vi = (b - d) / 2;
+        final double sr = (b + d) / 2, si = (c - a) / 2;
+        final double tr = templateRe[k], ti = templateIm[k];
+        final double ar = vr * tr + vi * ti, ai = vi * tr - vr * ti;
+        final double br = sr * tr + si * ti, bi = si * tr - sr * ti;
+        re[k] = ar - bi;
+        im[k] = ai + br;
+    }
+
+    /**
+     * Correlate the block with the masked template. The block values are
+     * expected in the real parts and their squares in the imaginary parts, so
+     * that both spectra are obtained from a single transform. On return
+     * <code>re</code> contains the correlation with the zero mean template,
+     * <code>im</code> the masked window sums and <code>re2</code> the masked
+     * window sums of squares.
+     */
+    private void correlateMasked(FFT fft, double[] re, double[] im, double[] re2, double[] im2) {
+        fft.transform(re, im, false);
+        final int bw = fft.getWidth(), bh = fft.getHeight();
+        int k, m;
+        for (int y = 0; y < bh; y++) {
+            for (int x = 0; x < bw; x++) {
+                k = y * bw + x;
+                m = ((bh - y) % bh) * bw + (bw - x) % bw;
+                if (m < k) {
+                    continue;
+                }
+                // Read both symmetric values first as they get overwritten
+                double a = re[k], b = im[k], c = re[m], d = im[m];
+                separateMasked(k, a, b, c, d, re, im, re2, im2);
+                if (m != k) {
+                    separateMasked(m, c, d, a, b, re, im, re2, im2);
+                }
+            }
+        }
+        fft.transform(re, im, true);
+        fft.transform(re2, im2, true);
+    }
+
+    /**
+     * Split the packed spectrum value <code>Z(k) = a+ib</code> with the mirrored
+     * value <code>Z(-k) = c+id</code> into the spectra of the values and their
+     * squares and store their products with the conjugated template and mask spectra.
+     */
+    private void separateMasked(int k, double a, double b, double c, double d,
+            double[] re, double[] im, double[] re2, double[] im2) {
+        // Spectrum of the values: (Z(k) + conj(Z(-k))) / 2
+        final double vr = (a + c) / 2, vi = (b - d) / 2;
+        // Spectrum of the squares: (Z(k) - conj(Z(-k))) / 2i
+        final double sr = (b + d) / 2, si = (c - a) / 2;
+        final double tr = templateRe[k], ti = templateIm[k], mr = maskRe[k], mi = maskIm[k];
+
+        // Pack correlations with the template (real) and the mask (imaginary)
+        final double ar = vr * tr + vi * ti, ai = vi * tr - vr * ti;
+        final double br = vr * mr + vi * mi, bi = vi * mr - vr * mi;
+        re[k] = ar - bi;
+        im[k] = ai + br;
+
+        re2[k] = sr * mr + si * mi;
+        im2[k] = si * mr - sr * mi;
+    }
+
+    private static void createSummedAreaTables(int[] values, int width, int height, long[] sums, long[] squares) {
+        final int sw = width + 1;
+        long rowSum, rowSq;
+        int v;
+        for (int y = 0; y < height; y++) {
+            rowSum = 0;
+            rowSq = 0;
+            for (int x = 0; x < width; x++) {
+                v = values[y * width + x];
+                rowSum += v;
+                rowSq += v * v;
+                sums[(y + 1) * sw + x + 1] = sums[y * sw + x + 1] + rowSum;
+                squares[(y + 1) * sw + x + 1] = squares[y * sw + x + 1] + rowSq;
+            }
+        }
+    }
+
+    private static long rectangleSum(long[] table, int index, int tableWidth, int w, int h) {
+        return table[index + h * tableWidth + w] - table[index + w] - table[index + h * tableWidth] + table[index];
+    }
+
+    private static int luminance(int rgb) {
+        return (77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF)) >> 8;
+    }
+
+    @Override
+    public String getType() {
+        return "Correlation match";
+    }
+
+    @Override
+    public boolean isTrackingOfFailedPixelsSupported() {
+        return false;
+    }
+
+    @Override
+    public boolean isMethodParamsSupported() {
+        return false;
+    }
+
+    @Override
+    public String getCode() {
+        return "ncc";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Normalized Cross-Correlation";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Brightness tolerant image search based on normalized cross-correlation of pixel luminance.";
+    }
+
+    @Override
+    public String getUniqueId() {
+        return "VNCRobot_native_NCC_image_comparison_module";
+    }
+}
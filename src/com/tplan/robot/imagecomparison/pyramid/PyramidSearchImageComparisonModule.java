@@ -0,0 +1,310 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.pyramid;
+
+import com.tplan.robot.imagecomparison.search.SearchImageComparisonModule;
+import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.PixelAccess;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>Coarse-to-fine variant of the image search. The module produces exactly
+ * the same results as the {@link SearchImageComparisonModule} (the same
+ * <code>matches()</code> semantics, pass rate and order of hits) but it avoids
+ * testing of most template positions at full resolution.</p>
+ *
+ * <p>The desktop image is reduced into a pyramid where each level stores
+ * per-channel minimum and maximum colors of square pixel blocks whose size
+ * doubles with every level. A block at level <code>n</code> represents a group
+ * of 2<sup>n</sup>x2<sup>n</sup> template positions. Any template pixel whose
+ * color falls outside of the corresponding block color range is guaranteed to
+ * differ at all positions of the group. If the number of such pixels exceeds
+ * the number of different pixels allowed by the pass rate, the whole group is
+ * skipped. Otherwise the group is split into four smaller ones and tested
+ * at the next finer level until the remaining positions get verified at full
+ * resolution through {@link #matches(int[], int, java.awt.Rectangle, float)}.</p>
+ *
+ * <p>As the test is conservative, no match can be lost. Cost of the search
+ * depends on how many groups survive at the coarse levels which makes the
+ * method particularly efficient for larger search areas, mid-sized templates
+ * and pass rates below 100% where the brute force scan has to compare many
+ * pixels at each position before it may reject it.</p>
+ * @product.signature
+ */
+public class PyramidSearchImageComparisonModule extends SearchImageComparisonModule {
+
+    /** Number of reduced levels built on top of the full resolution image. */
+    private static final int LEVELS = 2;
+
+    /** Number of evenly distributed template pixels in each pass of the
+     * interleaved pixel order used at the reduced levels. */
+    private static final int INTERLEAVE_STEP_COUNT = 64;
+
+    /** Minimum block colors for each pyramid level (level 0 is the desktop itself). */
+    private int[][] minLevels = new int[LEVELS + 1][];
+
+    /** Maximum block colors for each pyramid level (level 0 is the desktop itself). */
+    private int[][] maxLevels = new int[LEVELS + 1][];
+
+    /** Colors of template pixels tested at the reduced levels. */
+    private int[] probeColors;
+
+    /** Offsets of the tested template pixels relative to the template position in the desktop pixel array. */
+    private int[] probeOffsets;
+
+    @Override
+    public String getMethodName() {
+        return "pyramid";
+    }
+
+    @Override
+    public String getMethodDescription() {
+        return "Search for a template in an image using coarse-to-fine pixel comparison.";
+    }
+
+    @Override
+    public float compareToBaseImage(Image desktopImage, Rectangle area, String methodParams, ScriptingContext repository, float passRate) {
+        loadMethodParams(methodParams, repository);
+        if (bestMatchMode || colorTolerance > 0) {
+            // Groups are rejected against the pass rate and exact colors only, leave these searches to the plain one
+            return super.compareToBaseImage(desktopImage, area, methodParams, repository, passRate);
+        }
+        stop = false;
+        pxcnt = 0;
+        Rectangle fullRect = new Rectangle(0, 0, desktopImage.getWidth(imgConsumer), desktopImage.getHeight(imgConsumer));
+        if (area == null) {
+            area = fullRect;
+        } else {
+            area = area.intersection(fullRect);
+        }
+        loadSearchSettings(repository);
+
+        final int maxX = area.width - r.width;
+        final int maxY = area.height - r.height;
+        offsetCount = maxX < 0 || maxY < 0 ? 0 : (maxX + 1) * (maxY + 1);
+
+        List<Point> pts = new ArrayList<Point>();
+        if (maxX >= 0 && maxY >= 0 && pixels.length > 0) {
+            // The buffer of the previous level 0 is reused
+            int[] desktop = PixelAccess.read(desktopImage, area, minLevels[0]);
+            Rectangle source = new Rectangle(0, 0, area.width, area.height);
+            final int allowedFailedPixelCount = (int) (pixels.length - passRate * pixels.length);
+            buildPyramid(desktop, area.width, area.height);
+            buildProbe(area.width);
+
+            final int step = 1 << LEVELS;
+            for (int gy = 0; gy <= maxY && !stop; gy += step) {
+                for (int gx = 0; gx <= maxX && !stop; gx += step) {
+                    searchGroup(LEVELS, gx, gy, maxX, maxY, desktop, source, area.getLocation(), allowedFailedPixelCount, passRate, pts);
+                }
+                // Groups of the following rows may only contain positions
+                // with a higher y coordinate so the first hits are complete
+                if (MAX_HITS > 0 && pts.size() >= MAX_HITS) {
+                    break;
+                }
+            }
+
+            // Groups are processed in blocks, restore the scan order of the plain search
+            Collections.sort(pts, new Comparator<Point>() {
+
+                public int compare(Point p1, Point p2) {
+                    return p1.y != p2.y ? p1.y - p2.y : p1.x - p2.x;
+                }
+            });
+            while (MAX_HITS > 0 && pts.size() > MAX_HITS) {
+                pts.remove(pts.size() - 1);
+            }
+        }
+        return publishSearchResults(pts, repository);
+    }
+
+    /**
+     * Test a group of template positions at the given pyramid level and
+     * recursively descend to the finer levels if the group can't be rejected.
+     */
+    private void searchGroup(int level, int gx, int gy, int maxX, int maxY, int[] desktop, Rectangle source,
+            Point origin, int allowedFailedPixelCount, float passRate, List<Point> pts) {
+        if (level == 0) {
+            if (matches(desktop, gy * source.width + gx, source, passRate)) {
+                pts.add(new Point(origin.x + gx, origin.y + gy));
+            }
+            return;
+        }
+        if (!isCandidateGroup(level, gy * source.width + gx, allowedFailedPixelCount)) {
+            pxcnt += 1 << (2 * level);
+            return;
+        }
+        final int half = 1 << (level - 1);
+        for (int dy = 0; dy <= half && gy + dy <= maxY; dy += half) {
+            for (int dx = 0; dx <= half && gx + dx <= maxX; dx += half) {
+                searchGroup(level - 1, gx + dx, gy + dy, maxX, maxY, desktop, source, origin, allowedFailedPixelCount, passRate, pts);
+            }
+        }
+    }
+
+    /**
+     * Find out whether a group of template positions may contain a match.
+     * @param level pyramid level.
+     * @param offset index of the first (left upper) position of the group in the desktop pixel array.
+     * @param allowedFailedPixelCount number of different pixels allowed by the pass rate.
+     * @return false if the group is guaranteed not to contain any match, true otherwise.
+     */
+    private boolean isCandidateGroup(int level, int offset, int allowedFailedPixelCount) {
+        final int[] min = minLevels[level];
+        final int[] max = maxLevels[level];
+        final int[] colors = probeColors;
+        final int[] offsets = probeOffsets;
+        int failedPixelCount = 0;
+        int index, c, lo, hi;
+        for (int i = 0; i < colors.length; i++) {
+            index = offset + offsets[i];
+            c = colors[i];
+            lo = min[index];
+            hi = max[index];
+            if ((c & 0xFF0000) < (lo & 0xFF0000) || (c & 0xFF0000) > (hi & 0xFF0000)
+                    || (c & 0xFF00) < (lo & 0xFF00) || (c & 0xFF00) > (hi & 0xFF00)
+                    || (c & 0xFF) < (lo & 0xFF) || (c & 0xFF) > (hi & 0xFF)) {
+                if (++failedPixelCount > allowedFailedPixelCount) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build the pyramid of minimum and maximum colors. Block of the level
+     * <code>n</code> at [x,y] covers desktop pixels from [x,y] to
+     * [x+2<sup>n</sup>-1,y+2<sup>n</sup>-1] clipped by the image bounds.
+     * Each level is calculated from the previous one by merging four blocks.
+     */
+    private void buildPyramid(int[] desktop, int width, int height) {
+        minLevels[0] = desktop;
+        maxLevels[0] = desktop;
+        final int length = width * height;
+        for (int level = 1; level <= LEVELS; level++) {
+            if (minLevels[level] == null || minLevels[level].length != length) {
+                minLevels[level] = new int[length];
+                maxLevels[level] = new int[length];
+            }
+            final int[] pmin = minLevels[level - 1], pmax = maxLevels[level - 1];
+            final int[] min = minLevels[level], max = maxLevels[level];
+            final int step = 1 << (level - 1);
+            final int down = step * width;
+            int i, lo, hi;
+            boolean right, below;
+            for (int y = 0; y < height; y++) {
+                below = y + step < height;
+                i = y * width;
+                for (int x = 0; x < width; x++, i++) {
+                    lo = pmin[i];
+                    hi = pmax[i];
+                    right = x + step < width;
+                    if (right) {
+                        lo = minRGB(lo, pmin[i + step]);
+                        hi = maxRGB(hi, pmax[i + step]);
+                    }
+                    if (below) {
+                        lo = minRGB(lo, pmin[i + down]);
+                        hi = maxRGB(hi, pmax[i + down]);
+                        if (right) {
+                            lo = minRGB(lo, pmin[i + down + step]);
+                            hi = maxRGB(hi, pmax[i + down + step]);
+                        }
+                    }
+                    min[i] = lo;
+                    max[i] = hi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Order the template pixels to be tested at the reduced levels. The
+     * heuristic pixels go first, followed by the remaining ones in an
+     * interleaved order which spreads the early tested pixels evenly over the
+     * template. Transparent pixels are never tested and no pixel is listed
+     * twice to keep the count of different pixels exact.
+     */
+    private void buildProbe(int desktopWidth) {
+        final int rw = r.width;
+        boolean[] used = new boolean[pixels.length];
+        List<Integer> l = new ArrayList<Integer>();
+        int[] heur = getHeuristicPixels();
+        if (heur != null) {
+            for (int i = 0; i < heur.length; i++) {
+                if (!used[heur[i]] && ((pixels[heur[i]] >> 24) & 0xFF) == 0xFF) {
+                    used[heur[i]] = true;
+                    l.add(heur[i]);
+                }
+            }
+        }
+        final int stride = Math.max(1, pixels.length / INTERLEAVE_STEP_COUNT);
+        for (int start = 0; start < stride; start++) {
+            for (int i = start; i < pixels.length; i += stride) {
+                if (!used[i] && ((pixels[i] >> 24) & 0xFF) == 0xFF) {
+                    used[i] = true;
+                    l.add(i);
+                }
+            }
+        }
+        probeColors = new int[l.size()];
+        probeOffsets = new int[l.size()];
+        int index;
+        for (int i = 0; i < probeColors.length; i++) {
+            index = l.get(i);
+            probeColors[i] = pixels[index];
+            probeOffsets[i] = (index / rw) * desktopWidth + index % rw;
+        }
+    }
+
+    private static int minRGB(int a, int b) {
+        return Math.min(a & 0xFF0000, b & 0xFF0000) | Math.min(a & 0xFF00, b & 0xFF00) | Math.min(a & 0xFF, b & 0xFF);
+    }
+
+    private static int maxRGB(int a, int b) {
+        return Math.max(a & 0xFF0000, b & 0xFF0000) | Math.max(a & 0xFF00, b & 0xFF00) | Math.max(a & 0xFF, b & 0xFF);
+    }
+
+    @Override
+    public String getCode() {
+        return "pyramid";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Pyramid Image Search";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Coarse-to-fine variant of the search image comparison algorithm suitable for large search areas.";
+    }
+
+    @Override
+    public String getUniqueId() {
+        return "VNCRobot_native_Pyramid_search_image_comparison_module";
+    }
+}
@@ -19,6 +19,7 @@
  */
 package com.tplan.robot.imagecomparison.search;
 
+import com.tplan.robot.util.PixelAccess;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.PixelGrabber;
@@ -112,7 +113,7 @@ public abstract class AbstractImagePattern {
 
         if (img instanceof BufferedImage) {
             BufferedImage bi = (BufferedImage)img;
-            ai = ((BufferedImage) img).getRGB(r.x, r.y, width, height, (int[])null, 0, width);
+            ai = PixelAccess.read(img, r, null);
             isTransparent = bi.getColorModel().hasAlpha();
 
         } else {
@@ -250,13 +251,30 @@ public abstract class AbstractImagePattern {
         for (int i = fromIndex; i <= maxOffset && !stop; i++) {
             //
             currX = i % srcWidth;
-            if (currX <= maxX && matches(source, i, sourceRect, passRate)) {
+            if (currX <= maxX && isCandidate(i, sourceRect) && matches(source, i, sourceRect, passRate)) {
                 return i;
             }
         }
         return -1;
     }
 
+    /**
+     * Pre-filter hook called by {@link #indexOf(int[], int, java.awt.Rectangle, float)}
+     * before a position gets tested through
+     * {@link #matches(int[], int, java.awt.Rectangle, float)}. Subclasses may
+     * override it to quickly reject positions which can't match.
+     * This implementation always returns true.
+     *
+     * @param offset position in the source pixel array.
+     * @param sourceRect geometry of the source image. The location is the
+     * position of the source pixels in the image they were loaded from.
+     * @return false if the pattern can't match at the position, true if it
+     * has to be tested.
+     */
+    protected boolean isCandidate(int offset, Rectangle sourceRect) {
+        return true;
+    }
+
     /**
      * Get details of this pattern as a String. If the pattern has less than 20
      * pixels, they are also included in the customary format specified by the
@@ -0,0 +1,112 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.search;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>List of the best match locations found by a search running in the best
+ * match mode. It keeps at most the given number of locations ordered by the
+ * number of different pixels; locations with the same number of different
+ * pixels are kept in the order they were offered.</p>
+ *
+ * <p>The list also provides the bound for the branch-and-bound search. Once
+ * it is full, a candidate location may be abandoned as soon as its number of
+ * different pixels reaches the worst one in the list because it can't get
+ * among the best locations anymore.</p>
+ * @product.signature
+ */
+public class BestMatchList {
+
+    private final Point[] points;
+    private final int[] mismatches;
+    private final int limit;
+    private int size;
+
+    /**
+     * Create an empty list.
+     * @param capacity maximum number of locations to keep.
+     * @param limit maximum number of different pixels allowed by the pass rate.
+     */
+    public BestMatchList(int capacity, int limit) {
+        points = new Point[Math.max(1, capacity)];
+        mismatches = new int[points.length];
+        this.limit = limit;
+    }
+
+    /**
+     * Get the maximum number of different pixels of a location which can
+     * still get into the list.
+     * @return maximum number of different pixels, -1 if no location can get
+     * into the list (it is full of exact matches).
+     */
+    public synchronized int getBound() {
+        return size < points.length ? limit : Math.min(limit, mismatches[size - 1] - 1);
+    }
+
+    /**
+     * Offer a location.
+     * @param p location (left upper corner of the matching rectangle).
+     * @param count number of different pixels.
+     * @return true if the location was added to the list.
+     */
+    public synchronized boolean offer(Point p, int count) {
+        if (count > getBound()) {
+            return false;
+        }
+        int i = Math.min(size, points.length - 1);
+        while (i > 0 && mismatches[i - 1] > count) {
+            points[i] = points[i - 1];
+            mismatches[i] = mismatches[i - 1];
+            i--;
+        }
+        points[i] = p;
+        mismatches[i] = count;
+        size = Math.min(size + 1, points.length);
+        return true;
+    }
+
+    /**
+     * Get the locations from the best one.
+     * @return list of locations.
+     */
+    public synchronized List<Point> getPoints() {
+        List<Point> l = new ArrayList<Point>(size);
+        for (int i = 0; i < size; i++) {
+            l.add(points[i]);
+        }
+        return l;
+    }
+
+    /**
+     * Get scores of the locations, i.e. percentages of matching template pixels.
+     * @param pixelCount number of the template pixels.
+     * @return scores in the order of {@link #getPoints()}.
+     */
+    public synchronized float[] getScores(int pixelCount) {
+        float[] scores = new float[size];
+        for (int i = 0; i < size; i++) {
+            scores[i] = pixelCount > 0 ? 100f * (pixelCount - mismatches[i]) / pixelCount : 100f;
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.search;
+
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.PixelAccess;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.lang.ref.SoftReference;
+
+/**
+ * <p>Summed-area tables (integral images) of a desktop image. The object keeps
+ * separate tables of the red, green and blue channels and a table of squared
+ * pixel intensities (sum of the three channels), which allows to calculate sums
+ * and sums of squares of any rectangle in constant time.</p>
+ *
+ * <p>Tables of the live image of a passive client are attached to the client's
+ * {@link FrameBufferMonitor} and maintained incrementally. As a change of a
+ * pixel affects all table values below and to the right of it, only the part
+ * of the tables starting at the left upper corner of the changed tiles gets
+ * recalculated. Repeated searches of a mostly static screen then cost almost
+ * nothing.</p>
+ *
+ * <p>Tables of other images are calculated for a single search. Their arrays
+ * are kept by the calling thread and reused by its next search, so the tables
+ * are valid only until the thread asks for tables of another unmonitored
+ * image.</p>
+ *
+ * @product.signature
+ */
+public class DesktopIntegralImage {
+
+    /** Key of the tables attached to the frame buffer monitor. */
+    private static final String ATTACHMENT_KEY = DesktopIntegralImage.class.getName();
+
+    /** Number of pixel rows loaded from the image at a time. */
+    private static final int BAND_HEIGHT = 64;
+
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    /** Image area covered by the tables. */
+    private final Rectangle bounds;
+    private final int[][] sums;
+    private final long[] squares;
+    /** Monitor generation the tables correspond to. */
+    private long generation = -1;
+    /** Tables of unmonitored images whose arrays are reused by the next search of the thread. */
+    private static final ThreadLocal<SoftReference<DesktopIntegralImage>> spare =
+            new ThreadLocal<SoftReference<DesktopIntegralImage>>();
+
+    private DesktopIntegralImage(Rectangle bounds) {
+        this.bounds = new Rectangle(bounds);
+        int length = (bounds.width + 1) * (bounds.height + 1);
+        sums = new int[][]{new int[length], new int[length], new int[length]};
+        squares = new long[length];
+    }
+
+    private DesktopIntegralImage(Rectangle bounds, DesktopIntegralImage arrays) {
+        this.bounds = new Rectangle(bounds);
+        sums = arrays.sums;
+        squares = arrays.squares;
+    }
+
+    /**
+     * Get up to date tables of a desktop image. If the image is the live image
+     * of a passive client, the method returns shared tables which are
+     * updated incrementally. Otherwise new tables are calculated for the
+     * requested area.
+     * @param desktopImage desktop image.
+     * @param area area of interest.
+     * @param repository context of the calling script.
+     * @return tables covering at least the requested area.
+     */
+    public static DesktopIntegralImage getInstance(Image desktopImage, Rectangle area, ScriptingContext repository) {
+        FrameBufferMonitor monitor = FrameBufferMonitor.getMonitor(repository.getClient(), desktopImage);
+        if (monitor == null) {
+            DesktopIntegralImage ii = reuse(area);
+            ii.recalculate(desktopImage, area);
+            return ii;
+        }
+        Rectangle full = new Rectangle(0, 0, desktopImage.getWidth(null), desktopImage.getHeight(null));
+        DesktopIntegralImage ii;
+        synchronized (monitor) {
+            ii = (DesktopIntegralImage) monitor.getAttachment(ATTACHMENT_KEY);
+            if (ii == null || !ii.bounds.equals(full)) {
+                ii = new DesktopIntegralImage(full);
+                monitor.setAttachment(ATTACHMENT_KEY, ii);
+            }
+        }
+        ii.update(desktopImage, monitor);
+        return ii;
+    }
+
+    /**
+     * Find out whether the tables of a desktop image are maintained
+     * incrementally, i.e. whether they are cheap to get for repeated searches.
+     * @param desktopImage desktop image.
+     * @param repository context of the calling script.
+     * @return true if the image is the monitored live image of a client.
+     */
+    public static boolean isMaintained(Image desktopImage, ScriptingContext repository) {
+        return FrameBufferMonitor.getMonitor(repository.getClient(), desktopImage) != null;
+    }
+
+    /**
+     * Get tables of the given bounds for an unmonitored image, reusing the
+     * arrays of the previous tables of the calling thread if they are large
+     * enough. The values are not calculated.
+     */
+    private static DesktopIntegralImage reuse(Rectangle bounds) {
+        SoftReference<DesktopIntegralImage> ref = spare.get();
+        DesktopIntegralImage old = ref == null ? null : ref.get();
+        if (old == null || old.squares.length < (bounds.width + 1) * (bounds.height + 1)) {
+            old = new DesktopIntegralImage(bounds);
+            spare.set(new SoftReference<DesktopIntegralImage>(old));
+            return old;
+        }
+        DesktopIntegralImage ii = new DesktopIntegralImage(bounds, old);
+        ii.clearBorders();
+        return ii;
+    }
+
+    /**
+     * Zero the first row and column of the tables. The recalculation expects
+     * them to be zero and doesn't write them.
+     */
+    private void clearBorders() {
+        final int sw = bounds.width + 1;
+        for (int i = 0; i < sw; i++) {
+            sums[RED][i] = sums[GREEN][i] = sums[BLUE][i] = 0;
+            squares[i] = 0;
+        }
+        for (int i = sw, end = sw * (bounds.height + 1); i < end; i += sw) {
+            sums[RED][i] = sums[GREEN][i] = sums[BLUE][i] = 0;
+            squares[i] = 0;
+        }
+    }
+
+    /**
+     * Bring the tables up to date with the monitored image.
+     */
+    private synchronized void update(Image desktopImage, FrameBufferMonitor monitor) {
+        long g = monitor.getGeneration();
+        Rectangle changed = monitor.getChangedArea(generation);
+        if (changed != null) {
+            recalculate(desktopImage, new Rectangle(changed.x, changed.y, bounds.width - changed.x, bounds.height - changed.y));
+        }
+        generation = g;
+    }
+
+    /**
+     * Recalculate a part of the tables. The rectangle must extend to the
+     * right and bottom edges of the covered area because changes propagate
+     * to all values below and to the right.
+     */
+    private void recalculate(Image desktopImage, Rectangle r) {
+        final int sw = bounds.width + 1;
+        final int[] red = sums[RED], green = sums[GREEN], blue = sums[BLUE];
+        final int dx = r.x - bounds.x;
+        Rectangle band = new Rectangle(r.x, r.y, r.width, Math.min(BAND_HEIGHT, r.height));
+        PixelAccess.View view = null;
+        int[] pixels;
+        int rowRed, rowGreen, rowBlue, p, cr, cg, cb, i, above, v;
+        long rowSquares;
+        while (band.height > 0) {
+            // Only the RGB components are used, the pixels may be read in place
+            view = PixelAccess.getView(desktopImage, band, view);
+            pixels = view.data;
+            for (int y = 0, row = view.index(band.x, band.y); y < band.height; y++, row += view.scanline) {
+                i = (band.y - bounds.y + y + 1) * sw + dx;
+                above = i - sw;
+
+                // Row sums of the unchanged part on the left
+                rowRed = red[i] - red[above];
+                rowGreen = green[i] - green[above];
+                rowBlue = blue[i] - blue[above];
+                rowSquares = squares[i] - squares[above];
+
+                for (int x = 0; x < band.width; x++) {
+                    p = pixels[row + x];
+                    cr = (p >> 16) & 0xFF;
+                    cg = (p >> 8) & 0xFF;
+                    cb = p & 0xFF;
+                    v = cr + cg + cb;
+                    rowRed += cr;
+                    rowGreen += cg;
+                    rowBlue += cb;
+                    rowSquares += v * v;
+                    i++;
+                    above++;
+                    red[i] = red[above] + rowRed;
+                    green[i] = green[above] + rowGreen;
+                    blue[i] = blue[above] + rowBlue;
+                    squares[i] = squares[above] + rowSquares;
+                }
+            }
+            band.y += band.height;
+            band.height = Math.min(BAND_HEIGHT, r.y + r.height - band.y);
+        }
+    }
+
+    /**
+     * Get the bounds of the image area covered by the tables.
+     * @return a rectangle in the image coordinates.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Get sum of one channel over a rectangle. The rectangle must lie within
+     * the covered area.
+     * @param channel one of {@link #RED}, {@link #GREEN} or {@link #BLUE}.
+     * @param x rectangle X coordinate in the image.
+     * @param y rectangle Y coordinate in the image.
+     * @param w rectangle width.
+     * @param h rectangle height.
+     * @return sum of the channel values.
+     */
+    public int getSum(int channel, int x, int y, int w, int h) {
+        final int sw = bounds.width + 1;
+        final int i = (y - bounds.y) * sw + x - bounds.x;
+        final int[] t = sums[channel];
+        return t[i + h * sw + w] - t[i + w] - t[i + h * sw] + t[i];
+    }
+
+    /**
+     * Get sum of squared pixel intensities over a rectangle, where the
+     * intensity is the sum of the red, green and blue values. The rectangle
+     * must lie within the covered area.
+     * @param x rectangle X coordinate in the image.
+     * @param y rectangle Y coordinate in the image.
+     * @param w rectangle width.
+     * @param h rectangle height.
+     * @return sum of squared intensities.
+     */
+    public long getSquareSum(int x, int y, int w, int h) {
+        final int sw = bounds.width + 1;
+        final int i = (y - bounds.y) * sw + x - bounds.x;
+        return squares[i + h * sw + w] - squares[i + w] - squares[i + h * sw] + squares[i];
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.search;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * <p>History of locations where templates were found by the image search.
+ * On stable user interfaces a template is usually found at the same place as
+ * the last time, so the search probes the remembered locations and their
+ * neighbourhoods before it scans the whole area.</p>
+ *
+ * <p>Templates are identified by a hash of their size and pixels (see
+ * {@link #getKey(int[], int, int)}) rather than by file names, so the history
+ * works for templates of any origin and it survives renaming of the files.
+ * The history is kept in a small index file in the user home directory; it
+ * is loaded on the first use and saved when the JVM exits. The class is
+ * thread safe.</p>
+ * @product.signature
+ */
+public class LocationHistory {
+
+    /** Maximum number of templates in the history. */
+    private static final int CAPACITY = 1000;
+    /** Maximum number of locations remembered for a template. */
+    private static final int MAX_LOCATIONS = 4;
+    private static final String INDEX_FILE = System.getProperty("user.home") + File.separator + "tplanrobot-locations.idx";
+    private static LocationHistory instance;
+
+    private final File file;
+    private final Map<String, List<Point>> entries = new LinkedHashMap<String, List<Point>>(16, 0.75f, true) {
+
+        protected boolean removeEldestEntry(Map.Entry<String, List<Point>> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private boolean loaded;
+    private boolean dirty;
+    private boolean saveScheduled;
+
+    LocationHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the shared history.
+     * @return location history backed by the index file in the user home directory.
+     */
+    public static synchronized LocationHistory getInstance() {
+        if (instance == null) {
+            instance = new LocationHistory(new File(INDEX_FILE));
+        }
+        return instance;
+    }
+
+    /**
+     * Get the key of a template.
+     * @param pixels template pixels.
+     * @param width template width.
+     * @param height template height.
+     * @return key identifying the template.
+     */
+    public static String getKey(int[] pixels, int width, int height) {
+        // 64-bit FNV-1a hash of the pixels
+        long hash = 0xcbf29ce484222325L;
+        for (int p : pixels) {
+            hash = (hash ^ p) * 0x100000001b3L;
+        }
+        return width + "x" + height + "-" + Long.toHexString(hash);
+    }
+
+    /**
+     * Get the remembered locations of a template, the most recent one first.
+     * @param key template key.
+     * @return list of locations, empty if the template hasn't been found yet.
+     */
+    public synchronized List<Point> getLocations(String key) {
+        load();
+        List<Point> l = entries.get(key);
+        List<Point> copy = new ArrayList<Point>();
+        if (l != null) {
+            for (Point p : l) {
+                copy.add(new Point(p));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Remember locations where a template was found. They are placed before
+     * the previously remembered ones.
+     * @param key template key.
+     * @param locations match locations.
+     */
+    public synchronized void add(String key, List<Point> locations) {
+        load();
+        List<Point> l = new ArrayList<Point>(MAX_LOCATIONS);
+        for (int i = 0; i < locations.size() && l.size() < MAX_LOCATIONS; i++) {
+            if (!l.contains(locations.get(i))) {
+                l.add(new Point(locations.get(i)));
+            }
+        }
+        List<Point> old = entries.get(key);
+        if (old != null) {
+            for (int i = 0; i < old.size() && l.size() < MAX_LOCATIONS; i++) {
+                if (!l.contains(old.get(i))) {
+                    l.add(old.get(i));
+                }
+            }
+            if (l.equals(old)) {
+                return;
+            }
+        }
+        entries.put(key, l);
+        dirty = true;
+        if (!saveScheduled) {
+            saveScheduled = true;
+            Runtime.getRuntime().addShutdownHook(new Thread("Location history writer") {
+
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the history to the index file if it has changed.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        Properties p = new Properties();
+        for (Map.Entry<String, List<Point>> e : entries.entrySet()) {
+            StringBuilder s = new StringBuilder();
+            for (Point pt : e.getValue()) {
+                if (s.length() > 0) {
+                    s.append(';');
+                }
+                s.append(pt.x).append(',').append(pt.y);
+            }
+            p.setProperty(e.getKey(), s.toString());
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            p.store(out, "Locations of templates found by the image search");
+            dirty = false;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the history from the index file unless it has been loaded already.
+     * Invalid entries are skipped. The lock must be held.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        Properties p = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            p.load(in);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+        for (String key : p.stringPropertyNames()) {
+            List<Point> l = new ArrayList<Point>();
+            for (String s : p.getProperty(key).split(";")) {
+                String xy[] = s.split(",");
+                if (xy.length == 2) {
+                    try {
+                        l.add(new Point(Integer.parseInt(xy[0].trim()), Integer.parseInt(xy[1].trim())));
+                    } catch (NumberFormatException ex) {
+                    }
+                }
+                if (l.size() == MAX_LOCATIONS) {
+                    break;
+                }
+            }
+            if (!l.isEmpty()) {
+                entries.put(key, l);
+            }
+        }
+    }
+}
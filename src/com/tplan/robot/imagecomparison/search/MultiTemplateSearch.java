@@ -0,0 +1,397 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.imagecomparison.search;
+
+import com.tplan.robot.imagecomparison.ImageComparisonModule;
+import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.util.PixelAccess;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Search for a list of alternative templates in a single pass over the
+ * desktop image. It produces the same results as searching for the templates
+ * one by one through {@link SearchImageComparisonModule} and stopping at the
+ * first template which matches, i.e. it finds the template with the lowest
+ * index and reports all its match locations.</p>
+ *
+ * <p>The search relies on the fact that a template may match with no more than
+ * <i>k</i> different pixels, where <i>k</i> is given by the pass rate. Out of
+ * any <i>k</i>+1 opaque template pixels (anchors) at least one must therefore
+ * be equal to the desktop pixel at a matching location. Anchors of all
+ * templates are indexed by color and every desktop pixel is looked up just
+ * once to collect candidate locations, which are then verified by a full pixel
+ * comparison. Anchors are chosen among the least frequent template colors to
+ * keep the number of candidates low. Templates which would need too many
+ * anchors (low pass rates of large templates) are searched the standard way
+ * when they are reached in the list.</p>
+ *
+ * @product.signature
+ */
+public class MultiTemplateSearch {
+
+    /** Maximum number of anchor pixels of a single template. */
+    private static final int MAX_ANCHORS = 256;
+
+    private final List<SearchImageComparisonModule> modules;
+
+    /**
+     * Constructor.
+     * @param modules list of search modules with the template images loaded
+     * through {@link SearchImageComparisonModule#setBaseImage(java.awt.Image)}.
+     * The list must pass the {@link #isSupported(java.util.List)} test and,
+     * if method parameters are specified, the
+     * {@link #isSupported(java.util.List, java.lang.String, com.tplan.robot.scripting.ScriptingContext)}
+     * one.
+     */
+    public MultiTemplateSearch(List<? extends ImageComparisonModule> modules) {
+        this.modules = new ArrayList<SearchImageComparisonModule>();
+        for (ImageComparisonModule m : modules) {
+            this.modules.add((SearchImageComparisonModule) m);
+        }
+    }
+
+    /**
+     * Find out whether the list of modules may be processed in a single pass.
+     * It is true for lists of at least two instances of the standard
+     * "search" module. Its subclasses implement different algorithms and are
+     * not supported.
+     * @param modules list of image comparison modules, one per template.
+     * @return true if the list can be searched through this class, false if
+     * the modules have to be called one by one.
+     */
+    public static boolean isSupported(List<? extends ImageComparisonModule> modules) {
+        if (modules == null || modules.size() < 2) {
+            return false;
+        }
+        for (ImageComparisonModule m : modules) {
+            if (m == null || m.getClass() != SearchImageComparisonModule.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find out whether the list of modules may be processed in a single pass
+     * with the given method parameters. The parameters are validated first, so
+     * invalid values are reported the same way as by the search of a single
+     * template. The single pass search supports only the default first match
+     * mode with exact colors; parameters selecting the best match mode or a
+     * color tolerance require the templates to be searched one by one.
+     * @param modules list of image comparison modules, one per template.
+     * @param methodParams method parameters, may be null.
+     * @param repository context of the calling script.
+     * @return true if the list can be searched through this class, false if
+     * the modules have to be called one by one.
+     * @throws IllegalArgumentException if a method parameter value is invalid.
+     */
+    public static boolean isSupported(List<? extends ImageComparisonModule> modules, String methodParams, ScriptingContext repository) {
+        if (!isSupported(modules)) {
+            return false;
+        }
+        if (methodParams == null || methodParams.trim().length() == 0) {
+            return true;
+        }
+        SearchImageComparisonModule m = (SearchImageComparisonModule) modules.get(0);
+        m.loadMethodParams(methodParams, repository);
+        return !m.bestMatchMode && m.colorTolerance == 0;
+    }
+
+    /**
+     * Search the desktop image for the templates. Search results (the list of
+     * match locations and the <code>_SEARCH_</code> variables) are published
+     * by the module of the matching template.
+     * @param desktopImage desktop image.
+     * @param area area of the desktop image to search or null to search the whole image.
+     * @param repository context of the calling script.
+     * @param passRate pass rate between 0 and 1.
+     * @return index of the first template which was found or -1 if none matches.
+     */
+    public int search(Image desktopImage, Rectangle area, ScriptingContext repository, float passRate) {
+        final int count = modules.size();
+        SearchImageComparisonModule module;
+        for (int t = 0; t < count; t++) {
+            modules.get(t).stop = false;
+        }
+        Rectangle fullRect = new Rectangle(0, 0, desktopImage.getWidth(null), desktopImage.getHeight(null));
+        if (area == null) {
+            area = fullRect;
+        } else {
+            area = area.intersection(fullRect);
+        }
+        modules.get(0).loadSearchSettings(repository);
+        final int maxHits = modules.get(0).MAX_HITS;
+
+        // Select the anchor pixels and index them by color
+        int[][] anchors = new int[count][];
+        int[] tolerance = new int[count];
+        AnchorIndex index = new AnchorIndex();
+        Rectangle r;
+        int[] pixels;
+        for (int t = 0; t < count; t++) {
+            module = modules.get(t);
+            pixels = module.getPixels();
+            r = module.getRectangle();
+            if (pixels == null || r.width > area.width || r.height > area.height) {
+                continue;
+            }
+            tolerance[t] = (int) (pixels.length - passRate * pixels.length);
+            anchors[t] = selectAnchors(pixels, tolerance[t] + 1);
+            if (anchors[t] != null) {
+                for (int a : anchors[t]) {
+                    index.add(pixels[a], t, a % r.width, a / r.width);
+                }
+            }
+        }
+
+        // Templates preceding the first indexed one don't need the scan
+        int first = 0;
+        for (; first < count && anchors[first] == null && !isStopped(); first++) {
+            module = modules.get(first);
+            if (module.getPixels() != null && module.compareWithHeuristics(desktopImage, area, repository, passRate) > 0) {
+                return first;
+            }
+        }
+
+        // Scan the desktop and mark the candidate locations
+        // The pixels of int rasters are read in place. Alpha of TYPE_INT_RGB
+        // pixels is undefined in the raster, it is set the way getRGB() does.
+        PixelAccess.View source = index.isEmpty() || first >= count ? null : PixelAccess.getView(desktopImage, area, null);
+        final int alpha = source != null && source.isDirect() && ((BufferedImage) desktopImage).getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+        BitSet[] candidates = new BitSet[count];
+        if (source != null) {
+            final int w = area.width, h = area.height;
+            final int[] data = source.data;
+            int[] entries;
+            int n, e, ox, oy, columns;
+            for (int y = 0; y < h && !isStopped(); y++) {
+                for (int x = 0, i = source.index(area.x, area.y + y); x < w; x++, i++) {
+                    entries = index.get(data[i] | alpha);
+                    if (entries == null) {
+                        continue;
+                    }
+                    n = entries[0];
+                    for (e = 1; e <= n; e += 3) {
+                        r = modules.get(entries[e]).r;
+                        ox = x - entries[e + 1];
+                        oy = y - entries[e + 2];
+                        columns = w - r.width + 1;
+                        if (ox >= 0 && oy >= 0 && ox < columns && oy <= h - r.height) {
+                            if (candidates[entries[e]] == null) {
+                                candidates[entries[e]] = new BitSet();
+                            }
+                            candidates[entries[e]].set(oy * columns + ox);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Verify the candidates in the order of templates
+        List<Point> pts = new ArrayList<Point>();
+        for (int t = first; t < count && !isStopped(); t++) {
+            module = modules.get(t);
+            if (anchors[t] == null) {
+                if (module.getPixels() != null && module.compareWithHeuristics(desktopImage, area, repository, passRate) > 0) {
+                    return t;
+                }
+                continue;
+            }
+            if (candidates[t] != null) {
+                r = module.r;
+                final int columns = area.width - r.width + 1;
+                for (int c = candidates[t].nextSetBit(0); c >= 0 && (maxHits <= 0 || pts.size() < maxHits); c = candidates[t].nextSetBit(c + 1)) {
+                    if (verify(module.pixels, r, source, alpha, source.index(area.x + c % columns, area.y + c / columns), tolerance[t])) {
+                        pts.add(new Point(area.x + c % columns, area.y + c / columns));
+                    }
+                }
+            }
+            if (pts.size() > 0) {
+                module.publishSearchResults(pts, repository);
+                return t;
+            }
+        }
+        modules.get(count - 1).publishSearchResults(pts, repository);
+        return -1;
+    }
+
+    private boolean isStopped() {
+        for (SearchImageComparisonModule m : modules) {
+            if (m.isStopped()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare the template with the source pixels at the given offset.
+     * The comparison is the same as the one of
+     * {@link SearchImageComparisonModule#matches(int[], int, java.awt.Rectangle, float)}.
+     * The alpha bits are added to the source pixels.
+     */
+    private static boolean verify(int[] pixels, Rectangle r, PixelAccess.View source, int alpha, int offset, int tolerance) {
+        final int[] data = source.data;
+        int failed = 0, p;
+        for (int y = 0, i = 0; y < r.height; y++) {
+            for (int x = 0, s = offset + y * source.scanline; x < r.width; x++, i++, s++) {
+                p = pixels[i];
+                if (((p >> 24) & 0xFF) == 0xFF && (data[s] | alpha) != p && ++failed > tolerance) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Select opaque template pixels of the least frequent colors.
+     * @param pixels template pixels.
+     * @param count required number of anchors.
+     * @return indices of the anchor pixels or null if the template doesn't
+     * have enough opaque pixels or too many anchors would be needed.
+     */
+    private static int[] selectAnchors(int[] pixels, int count) {
+        if (count > MAX_ANCHORS) {
+            return null;
+        }
+        Map<Integer, int[]> histogram = new HashMap<Integer, int[]>();
+        int[] counter;
+        int opaque = 0;
+        for (int p : pixels) {
+            if (((p >> 24) & 0xFF) == 0xFF) {
+                counter = histogram.get(p);
+                if (counter == null) {
+                    histogram.put(p, new int[]{1});
+                } else {
+                    counter[0]++;
+                }
+                opaque++;
+            }
+        }
+        if (opaque < count) {
+            return null;
+        }
+
+        // Sort colors by the number of pixels; the count is in the upper half of the long
+        long[] colors = new long[histogram.size()];
+        int i = 0;
+        for (Map.Entry<Integer, int[]> e : histogram.entrySet()) {
+            colors[i++] = ((long) e.getValue()[0] << 32) | (e.getKey() & 0xFFFFFFFFL);
+        }
+        Arrays.sort(colors);
+
+        Map<Integer, int[]> selected = new HashMap<Integer, int[]>();
+        int needed = count;
+        for (i = 0; i < colors.length && needed > 0; i++) {
+            int n = Math.min((int) (colors[i] >>> 32), needed);
+            selected.put((int) colors[i], new int[]{n});
+            needed -= n;
+        }
+        int[] anchors = new int[count];
+        int a = 0;
+        for (i = 0; i < pixels.length && a < count; i++) {
+            counter = selected.get(pixels[i]);
+            if (counter != null && counter[0] > 0 && ((pixels[i] >> 24) & 0xFF) == 0xFF) {
+                counter[0]--;
+                anchors[a++] = i;
+            }
+        }
+        return anchors;
+    }
+
+    /**
+     * Hash table mapping an opaque pixel color to a list of anchors of that
+     * color. Opaque colors are never zero which marks an empty slot. Each
+     * list is stored as an int array where the first element is the number of
+     * used elements followed by triplets of the template index and anchor
+     * coordinates.
+     */
+    private static class AnchorIndex {
+
+        private int[] keys = new int[64];
+        private int[][] values = new int[64][];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int color, int template, int x, int y) {
+            if (2 * (size + 1) > keys.length) {
+                rehash();
+            }
+            int slot = find(keys, color);
+            int[] v = values[slot];
+            if (keys[slot] == 0) {
+                keys[slot] = color;
+                v = new int[7];
+                size++;
+            } else if (v[0] + 4 > v.length) {
+                int[] a = new int[v.length * 2];
+                System.arraycopy(v, 0, a, 0, v.length);
+                v = a;
+            }
+            v[v[0] + 1] = template;
+            v[v[0] + 2] = x;
+            v[v[0] + 3] = y;
+            v[0] += 3;
+            values[slot] = v;
+        }
+
+        int[] get(int color) {
+            int slot = find(keys, color);
+            return keys[slot] == 0 ? null : values[slot];
+        }
+
+        private static int find(int[] keys, int color) {
+            final int mask = keys.length - 1;
+            int slot = (color * 0x9E3779B1) >>> 7 & mask;
+            while (keys[slot] != 0 && keys[slot] != color) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[][] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[keys.length][];
+            int slot;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    slot = find(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
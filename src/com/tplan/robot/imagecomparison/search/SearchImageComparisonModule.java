@@ -23,6 +23,8 @@ import com.sybase.robot.scripting.commands.impl.ImageUtil;
 import com.tplan.robot.ApplicationSupport;
 import com.tplan.robot.plugin.PluginManager;
 import com.tplan.robot.util.Measurable;
+import com.tplan.robot.util.PixelAccess;
+import com.tplan.robot.util.PixelKernel;
 import com.tplan.robot.scripting.ScriptManager;
 import com.tplan.robot.util.Stoppable;
 import com.tplan.robot.preferences.ConfigurationKeys;
@@ -35,6 +37,8 @@ import com.tplan.robot.plugin.DependencyMissingException;
 import com.tplan.robot.plugin.Plugin;
 import com.tplan.robot.scripting.ScriptEvent;
 import com.tplan.robot.scripting.ScriptingContext;
+import com.tplan.robot.scripting.TokenParser;
+import com.tplan.robot.scripting.TokenParserImpl;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -46,17 +50,32 @@ import java.util.Map;
 
 /**
  * Search image comparison module.
+ * <p>
+ * The module accepts the following method parameters:
+ * </p>
+ * <ul>
+ * <li><code>mode=best</code> - instead of all locations matching at the pass
+ * rate in the scan order report the best matching ones, ordered from the best
+ * one. Their scores (percentages of matching pixels) are saved to the
+ * <code>_SEARCH_SCORE_&lt;n&gt;</code> variables.</li>
+ * <li><code>top=&lt;number&gt;</code> - number of the best locations to report
+ * in the best match mode. The default value is 1.</li>
+ * <li><code>tolerance=&lt;0-255&gt;</code> - maximum difference of the red, green
+ * and blue components of matching pixels. Pixels with slightly shifted colors
+ * (anti-aliasing, gradients) then match and the search doesn't need a lower
+ * pass rate. The default value is 0 (exact colors).</li>
+ * </ul>
  * @product.signature
  */
 public class SearchImageComparisonModule extends AbstractImagePattern
         implements ImageComparisonModule, ExtendedSearchCapabilities, ConfigurationKeys, Stoppable, Measurable, Plugin {
 
     /* An image consumer used to figure out image size. */
-    private JLabel imgConsumer = new JLabel();
+    protected JLabel imgConsumer = new JLabel();
     protected int MAX_LOADED_PIXEL_ROWS = 200;
     /** Maximum number of occurences. */
     protected int MAX_HITS = 100;
-    float offsetCount;
+    protected float offsetCount;
     final int histogramDelayInSearchCycles = 2000;
     private boolean enableHeuristics = true;
     /**
@@ -71,6 +90,66 @@ public class SearchImageComparisonModule extends AbstractImagePattern
     public long heurTime;
     public long endTime;
     private List<Rectangle> hits;
+    /** Flag enabling the summed-area table pre-filter. */
+    private boolean enablePrefilter = true;
+    /** Summed-area tables of the searched image, null if the pre-filter is not in use. */
+    private DesktopIntegralImage prefilter;
+    /** Sums of template channels and squared template intensities. */
+    private int[] templateSums = new int[3];
+    private long templateSquares;
+    /** Number of different pixels allowed by the pass rate. */
+    private int prefilterTolerance;
+    /**
+     * Flag enabling probing of the locations where the template was found
+     * before. It is off by default because it changes the search results.
+     */
+    private boolean enableLocationHints = false;
+    /** Pixel array the location history key was calculated for. */
+    private int[] hintKeyPixels;
+    private String hintKey;
+    /** Distances from the remembered locations probed before the full search. */
+    private static final int[] HINT_RADII = {0, 16};
+    /** Pre-filter allowance for the color differences of matching pixels. */
+    private long prefilterSumSlack, prefilterSquareSlack;
+    /**
+     * Estimated cost of calculation of the summed-area tables per pixel,
+     * in pixel comparisons. It includes the table lookups of every position.
+     */
+    private static final int PREFILTER_PIXEL_COST = 16;
+    /** Method parameter selecting the search mode. */
+    public static final String PARAM_MODE = "mode";
+    /** Method parameter specifying number of the best locations to report. */
+    public static final String PARAM_TOP = "top";
+    /** Method parameter specifying the maximum difference of color components. */
+    public static final String PARAM_TOLERANCE = "tolerance";
+    /** Default search mode reporting all matching locations in the scan order. */
+    public static final String MODE_FIRST = "first";
+    /** Search mode reporting the best matching locations. */
+    public static final String MODE_BEST = "best";
+    /** True if the best match mode was requested by the method parameters. */
+    protected boolean bestMatchMode;
+    /** Number of the best locations to report in the best match mode. */
+    protected int bestMatchCount = 1;
+    /** Maximum difference of color components of matching pixels. */
+    protected int colorTolerance;
+    /**
+     * Template pixels for the tolerant comparison, see {@link #spread(int)}.
+     * Every channel is increased by 256 so that subtraction of a desktop
+     * pixel never borrows from the next channel.
+     */
+    private int[] biasedPixels;
+    /** Addends setting the carry bits of channels within the tolerance. */
+    private int toleranceLow, toleranceHigh;
+    /** Kernel of the row comparison. */
+    private final PixelKernel kernel = PixelKernel.getInstance();
+    /** Pixel array the opacity flag was calculated for. */
+    private int[] opacityPixels;
+    private boolean opaqueTemplate;
+    /** One in every ten bit channel of a spread pixel. */
+    private static final int CHANNEL_ONES = 0x00100401;
+    /** Carry (highest) bits of the ten bit channels of a spread pixel. */
+    private static final int CHANNEL_CARRIES = 0x20080200;
+    private static TokenParser parser = new TokenParserImpl();
 
     public String getMethodName() {
         return "search";
@@ -132,28 +211,133 @@ public class SearchImageComparisonModule extends AbstractImagePattern
         // to reflect the time spent by creation of histogram. Used as 100% value for progress measuring.
         offsetCount = (area.width - r.width) * (area.height - r.height) + pxcnt;
 
-        UserConfiguration cfg = (UserConfiguration) repository.get(ScriptingContext.CONTEXT_USER_CONFIGURATION);
-        Integer max = cfg == null ? null : cfg.getInteger(COMPARETO_MAX_SEARCH_HITS);
-        if (max != null) {
-            MAX_HITS = max.intValue();
+        loadSearchSettings(repository);
+        loadMethodParams(methodParams, repository);
+        initTolerance();
+
+        List<Point> pts = new ArrayList<Point>();
+        BestMatchList best = bestMatchMode
+                ? new BestMatchList(bestMatchCount, (int) (pixels.length - passRate * pixels.length))
+                : null;
+        if (enablePrefilter) {
+            initPrefilter(desktopImage, area, repository, passRate);
         }
-        max = cfg == null ? null : cfg.getInteger(COMPARETO_MAX_LOADED_PIXEL_ROWS);
-        if (max != null) {
-            MAX_LOADED_PIXEL_ROWS = max.intValue();
+
+        try {
+            if (prefilter != null) {
+                // Shared tables must not be updated by another search while in use
+                synchronized (prefilter) {
+                    search(desktopImage, area, passRate, pts, best);
+                }
+            } else {
+                search(desktopImage, area, passRate, pts, best);
+            }
+        } finally {
+            prefilter = null;
+        }
+
+        if (best != null) {
+            return publishSearchResults(best.getPoints(), best.getScores(pixels.length), repository);
+        }
+        return publishSearchResults(pts, repository);
+    }
+
+    private void search(Image desktopImage, Rectangle area, float passRate, List<Point> pts, BestMatchList best) {
+        if (best != null) {
+            searchBest(desktopImage, area, best);
+        } else if (!enableLocationHints) {
+            searchBands(desktopImage, area, passRate, pts);
+        } else if (!searchHints(desktopImage, area, passRate, pts)) {
+            searchBands(desktopImage, area, passRate, pts);
+            if (!pts.isEmpty() && !stop) {
+                LocationHistory.getInstance().add(getHintKey(), pts);
+            }
+        }
+    }
+
+    /**
+     * Probe the locations where the template was found by the previous
+     * searches, first the exact locations and then their neighbourhoods.
+     * If the template is found there, the rest of the area is not searched
+     * and only the matches found near the remembered locations are reported.
+     * The number and order of the reported matches (the
+     * <code>_SEARCH_MATCH_COUNT</code>, <code>_SEARCH_X</code>,
+     * <code>_SEARCH_Y</code> and indexed <code>_SEARCH_</code> variables) then
+     * differ from the full search and they depend on the history kept in the
+     * user home folder. That's why the hints are used only when the user
+     * enables them in the preferences.
+     * @return true if the template was found.
+     */
+    private boolean searchHints(Image desktopImage, Rectangle area, float passRate, List<Point> pts) {
+        LocationHistory history = LocationHistory.getInstance();
+        List<Point> hints = history.getLocations(getHintKey());
+        int pixels[] = null;
+        for (int radius : HINT_RADII) {
+            for (int i = 0; i < hints.size() && !stop; i++) {
+                Point p = hints.get(i);
+                Rectangle probe = new Rectangle(p.x - radius, p.y - radius, r.width + 2 * radius, r.height + 2 * radius).intersection(area);
+                if (probe.width < r.width || probe.height < r.height) {
+                    continue;
+                }
+                pixels = PixelAccess.read(desktopImage, probe, pixels);
+                for (Object index : findPattern(pixels, probe, MAX_HITS, passRate)) {
+                    Point pt = getPointFromPixelIndex(((Number) index).intValue(), probe.width, probe.getLocation());
+                    if (!pts.contains(pt) && (MAX_HITS <= 0 || pts.size() < MAX_HITS)) {
+                        pts.add(pt);
+                    }
+                }
+            }
+            if (!pts.isEmpty()) {
+                history.add(getHintKey(), pts);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the location history key of the current template.
+     */
+    private String getHintKey() {
+        if (hintKeyPixels != pixels) {
+            hintKey = LocationHistory.getKey(pixels, r.width, r.height);
+            hintKeyPixels = pixels;
         }
+        return hintKey;
+    }
 
+    /**
+     * Search for the template loaded through {@link #setBaseImage(java.awt.Image)}
+     * with heuristics built for the given pass rate the same way as
+     * {@link #compare(java.awt.Image, java.awt.Rectangle, java.awt.Image, java.lang.String, com.tplan.robot.scripting.ScriptingContext, float)}
+     * does.
+     */
+    float compareWithHeuristics(Image desktopImage, Rectangle area, ScriptingContext repository, float passRate) {
+        if (isEnableHeuristics()) {
+            rebuildHeuristics(passRate);
+        }
+        try {
+            return compareToBaseImage(desktopImage, area, null, repository, passRate);
+        } finally {
+            resetHeuristics();
+        }
+    }
+
+    /**
+     * Search the area band by band and collect the match locations.
+     */
+    private void searchBands(Image desktopImage, Rectangle area, float passRate, List<Point> pts) {
         int imgHeight = area.height;
 
         // Load the remote desktop image pixels
         Rectangle r = new Rectangle(area.x, area.y, area.width, Math.min(area.height, this.r.height + MAX_LOADED_PIXEL_ROWS));
         int pixels[] = null;
-        List<Point> pts = new ArrayList<Point>();
         List tmp;
         Number index;
         Point pt;
 
         while (r.y <= (imgHeight + area.y) && r.height >= this.r.height && (MAX_HITS <= 0 || pts.size() < MAX_HITS)) {
-            pixels = Utils.getPixels(desktopImage, r);
+            pixels = PixelAccess.read(desktopImage, r, pixels);
             tmp = findPattern(pixels, r, MAX_HITS, passRate);
             for (int i = 0; i < tmp.size() && (MAX_HITS <= 0 || pts.size() < MAX_HITS); i++) {
                 index = (Number) tmp.get(i);
@@ -169,8 +353,306 @@ public class SearchImageComparisonModule extends AbstractImagePattern
             r.y += MAX_LOADED_PIXEL_ROWS;
             r.height = Math.min(imgHeight + area.y - r.y, r.height);
         }
+    }
+
+    /**
+     * Search the area band by band for the best matching locations. Template
+     * pixels are compared in the order of the heuristics (the least frequent
+     * colors first) and a location is abandoned as soon as the number of
+     * different pixels exceeds the bound given by the list of the best
+     * locations. The bound shrinks as better locations are found, the
+     * pre-filter tolerance follows it.
+     */
+    private void searchBest(Image desktopImage, Rectangle area, BestMatchList best) {
+        final int rw = this.r.width, rh = this.r.height, aw = area.width;
+
+        // Opaque template pixels, the heuristic ones first
+        int[] order = new int[pixels.length];
+        boolean[] used = new boolean[pixels.length];
+        int n = 0;
+        if (heurPixels != null) {
+            for (int i = 0; i < heurPixels.length; i++) {
+                int k = heurPixels[i];
+                if (!used[k] && ((pixels[k] >> 24) & 0xFF) == 0xFF) {
+                    used[k] = true;
+                    order[n++] = k;
+                }
+            }
+        }
+        for (int k = 0; k < pixels.length; k++) {
+            if (!used[k] && ((pixels[k] >> 24) & 0xFF) == 0xFF) {
+                order[n++] = k;
+            }
+        }
+        final int[] offsets = new int[n];
+        final int[] colors = new int[n];
+        final int[] biased = new int[n];
+        for (int i = 0; i < n; i++) {
+            offsets[i] = (order[i] / rw) * aw + order[i] % rw;
+            colors[i] = pixels[order[i]];
+            biased[i] = biasedPixels == null ? 0 : biasedPixels[order[i]];
+        }
+        final boolean tolerant = biasedPixels != null;
+
+        // Bands overlap, positions of the rows searched in the previous band are skipped
+        Rectangle r = new Rectangle(area.x, area.y, aw, Math.min(area.height, rh + MAX_LOADED_PIXEL_ROWS));
+        int nextRow = area.y;
+        int[] source = null;
+        while (r.y <= area.height + area.y && r.height >= rh && !stop) {
+            source = PixelAccess.read(desktopImage, r, source);
+            int maxX = aw - rw, maxY = r.height - rh;
+            for (int y = nextRow - r.y; y <= maxY && !stop; y++) {
+                for (int x = 0, base = y * aw; x <= maxX; x++, base++) {
+                    int bound = best.getBound();
+                    if (bound < 0) {
+                        // The list is full of exact matches
+                        return;
+                    }
+                    prefilterTolerance = bound;
+                    if (!isCandidate(base, r)) {
+                        continue;
+                    }
+                    pxcnt++;
+                    int failed = 0;
+                    int i = 0;
+                    for (; i < n; i++) {
+                        int spx = source[base + offsets[i]];
+                        if (spx != colors[i] && (!tolerant || !isWithinTolerance(biased[i], spx)) && ++failed > bound) {
+                            break;
+                        }
+                    }
+                    if (i == n) {
+                        best.offer(new Point(r.x + x, r.y + y), failed);
+                    }
+                }
+            }
+            nextRow = r.y + maxY + 1;
+            r.y += MAX_LOADED_PIXEL_ROWS;
+            r.height = Math.min(area.height + area.y - r.y, r.height);
+        }
+    }
+
+    /**
+     * Prepare the summed-area table pre-filter. It is used only for fully
+     * opaque templates because the desktop pixels under transparent template
+     * pixels are unknown. It is also skipped for the exact search (100% pass
+     * rate) where the heuristic pixels reject most positions on the first
+     * comparison anyway. Tables of images which are not monitored (see
+     * {@link DesktopIntegralImage#isMaintained(java.awt.Image, com.tplan.robot.scripting.ScriptingContext)})
+     * have to be calculated for this search only, so they are used only when
+     * the direct scan is estimated to be more expensive. A position which
+     * doesn't match is rejected by the scan after about as many comparisons
+     * as the number of different pixels allowed by the pass rate.
+     */
+    private void initPrefilter(Image desktopImage, Rectangle area, ScriptingContext repository, float passRate) {
+        prefilter = null;
+        prefilterTolerance = (int) (pixels.length - passRate * pixels.length);
+        if (prefilterTolerance <= 0 || area.width < r.width || area.height < r.height) {
+            return;
+        }
+        if (!DesktopIntegralImage.isMaintained(desktopImage, repository)) {
+            long positions = (long) (area.width - r.width + 1) * (area.height - r.height + 1);
+            long scanCost = positions * Math.min(pixels.length, prefilterTolerance + 1);
+            if (scanCost <= (long) PREFILTER_PIXEL_COST * area.width * area.height) {
+                return;
+            }
+        }
+        int[] s = new int[3];
+        long sq = 0;
+        int p, v;
+        for (int i = 0; i < pixels.length; i++) {
+            p = pixels[i];
+            if (((p >> 24) & 0xFF) != 0xFF) {
+                return;
+            }
+            s[DesktopIntegralImage.RED] += (p >> 16) & 0xFF;
+            s[DesktopIntegralImage.GREEN] += (p >> 8) & 0xFF;
+            s[DesktopIntegralImage.BLUE] += p & 0xFF;
+            v = ((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF);
+            sq += v * v;
+        }
+        templateSums = s;
+        templateSquares = sq;
+        // Each channel of a matching pixel may differ by the tolerance,
+        // the intensity (0-765) by three times as much
+        prefilterSumSlack = (long) colorTolerance * pixels.length;
+        prefilterSquareSlack = 3L * colorTolerance * 2 * 765 * pixels.length;
+        prefilter = DesktopIntegralImage.getInstance(desktopImage, area, repository);
+    }
+
+    /**
+     * Reject positions where the window sums can't match the template.
+     * Every different pixel may change a channel sum by at most 255 and
+     * the sum of squared intensities by at most 765<sup>2</sup>. If the
+     * difference of sums is greater than the number of different pixels
+     * allowed by the pass rate multiplied by these limits, the position
+     * can't match.
+     */
+    @Override
+    protected boolean isCandidate(int offset, Rectangle sourceRect) {
+        if (prefilter == null) {
+            return true;
+        }
+        final int x = sourceRect.x + offset % sourceRect.width;
+        final int y = sourceRect.y + offset / sourceRect.width;
+        final int w = r.width, h = r.height;
+        final long tolerance = prefilterTolerance;
+        final long maxSumDiff = 255 * tolerance + prefilterSumSlack;
+        if (Math.abs(prefilter.getSum(DesktopIntegralImage.RED, x, y, w, h) - templateSums[DesktopIntegralImage.RED]) > maxSumDiff
+                || Math.abs(prefilter.getSum(DesktopIntegralImage.GREEN, x, y, w, h) - templateSums[DesktopIntegralImage.GREEN]) > maxSumDiff
+                || Math.abs(prefilter.getSum(DesktopIntegralImage.BLUE, x, y, w, h) - templateSums[DesktopIntegralImage.BLUE]) > maxSumDiff
+                || Math.abs(prefilter.getSquareSum(x, y, w, h) - templateSquares) > 765L * 765 * tolerance + prefilterSquareSlack) {
+            pxcnt++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Load the search limits (maximum number of hits and size of the pixel
+     * band loaded from the desktop image), the pre-filter flag and the
+     * location hint flag from the user configuration.
+     * @param repository context of the calling script.
+     */
+    protected void loadSearchSettings(ScriptingContext repository) {
+        UserConfiguration cfg = (UserConfiguration) repository.get(ScriptingContext.CONTEXT_USER_CONFIGURATION);
+        Integer max = cfg == null ? null : cfg.getInteger(COMPARETO_MAX_SEARCH_HITS);
+        if (max != null) {
+            MAX_HITS = max.intValue();
+        }
+        max = cfg == null ? null : cfg.getInteger(COMPARETO_MAX_LOADED_PIXEL_ROWS);
+        if (max != null) {
+            MAX_LOADED_PIXEL_ROWS = max.intValue();
+        }
+        Boolean b = cfg == null ? null : cfg.getBoolean(COMPARETO_ENABLE_SEARCH_PREFILTER);
+        if (b != null) {
+            enablePrefilter = b.booleanValue();
+        }
+        b = cfg == null ? null : cfg.getBoolean(COMPARETO_ENABLE_LOCATION_HINTS);
+        if (b != null) {
+            enableLocationHints = b.booleanValue();
+        }
+    }
+
+    /**
+     * Read the search mode from the method parameters. Supported parameters
+     * are described in the class documentation, other ones are ignored.
+     * @param methodParams method parameters, may be null.
+     * @param repository context of the calling script.
+     * @throws IllegalArgumentException if a parameter value is invalid.
+     */
+    protected void loadMethodParams(String methodParams, ScriptingContext repository) {
+        bestMatchMode = false;
+        bestMatchCount = 1;
+        colorTolerance = 0;
+        if (methodParams == null || methodParams.trim().length() == 0) {
+            return;
+        }
+        Map<String, String> params = parser.parse(methodParams, null);
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            String key = e.getKey().toLowerCase();
+            String value = e.getValue();
+            if (PARAM_MODE.equals(key)) {
+                if (MODE_BEST.equalsIgnoreCase(value)) {
+                    bestMatchMode = true;
+                } else if (!MODE_FIRST.equalsIgnoreCase(value)) {
+                    throw new IllegalArgumentException("Invalid search mode '" + value + "'. Supported modes are '"
+                            + MODE_FIRST + "' and '" + MODE_BEST + "'.");
+                }
+            } else if (PARAM_TOP.equals(key)) {
+                try {
+                    bestMatchCount = Integer.parseInt(value.trim());
+                } catch (NumberFormatException ex) {
+                    bestMatchCount = 0;
+                }
+                if (bestMatchCount < 1) {
+                    throw new IllegalArgumentException("Invalid number of best matches '" + value
+                            + "'. It must be a positive integer.");
+                }
+            } else if (PARAM_TOLERANCE.equals(key)) {
+                try {
+                    colorTolerance = Integer.parseInt(value.trim());
+                } catch (NumberFormatException ex) {
+                    colorTolerance = -1;
+                }
+                if (colorTolerance < 0 || colorTolerance > 255) {
+                    throw new IllegalArgumentException("Invalid color tolerance '" + value
+                            + "'. It must be an integer between 0 and 255.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Prepare the template for the tolerant comparison of pixels if a color
+     * tolerance was requested.
+     */
+    private void initTolerance() {
+        if (colorTolerance <= 0) {
+            biasedPixels = null;
+            return;
+        }
+        if (biasedPixels == null || biasedPixels.length != pixels.length) {
+            biasedPixels = new int[pixels.length];
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            biasedPixels[i] = spread(pixels[i]) + 256 * CHANNEL_ONES;
+        }
+        toleranceLow = (256 + colorTolerance) * CHANNEL_ONES;
+        toleranceHigh = (255 - colorTolerance) * CHANNEL_ONES;
+    }
 
+    /**
+     * Spread the red, green and blue components of a pixel to ten bit
+     * channels (bits 20-29, 10-19 and 0-9). The alpha component is dropped.
+     */
+    private static int spread(int rgb) {
+        return ((rgb & 0xFF0000) << 4) | ((rgb & 0xFF00) << 2) | (rgb & 0xFF);
+    }
+
+    /**
+     * Find out whether all color components of a desktop pixel are within the
+     * tolerance of the template pixel. All three channels are tested at once
+     * without branches. A channel of <code>d = biased - spread(pixel)</code>
+     * holds <code>256 + template - desktop</code> in the range of 1-511;
+     * adding <code>256 + tolerance</code> sets its carry bit if the difference
+     * is not below <code>-tolerance</code> and adding
+     * <code>255 - tolerance</code> leaves it clear if the difference is not
+     * above <code>tolerance</code>.
+     * @param biased template pixel from {@link #biasedPixels}.
+     * @param pixel desktop pixel.
+     * @return true if the pixels are similar.
+     */
+    private boolean isWithinTolerance(int biased, int pixel) {
+        final int d = biased - spread(pixel);
+        return ((d + toleranceLow) & ~(d + toleranceHigh) & CHANNEL_CARRIES) == CHANNEL_CARRIES;
+    }
+
+    /**
+     * Save the list of match locations to the context, populate the
+     * <code>_SEARCH_</code> variables and the list of hits and notify
+     * script listeners of the variable update.
+     * @param pts list of match locations (left upper corners of the matching
+     * desktop rectangles).
+     * @param repository context of the calling script.
+     * @return comparison result, 1.0f if at least one match was found or
+     * 0.0f otherwise.
+     */
+    protected float publishSearchResults(List<Point> pts, ScriptingContext repository) {
+        return publishSearchResults(pts, null, repository);
+    }
 
+    /**
+     * Save the list of match locations and their scores to the context. It
+     * works as {@link #publishSearchResults(java.util.List, com.tplan.robot.scripting.ScriptingContext)}
+     * and besides it populates the <code>_SEARCH_SCORE</code> variables.
+     * @param pts list of match locations.
+     * @param scores scores of the locations in percents or null if not available.
+     * @param repository context of the calling script.
+     * @return comparison result, 1.0f if at least one match was found or
+     * 0.0f otherwise.
+     */
+    protected float publishSearchResults(List<Point> pts, float[] scores, ScriptingContext repository) {
         List matchPoints = pts;
         hits = new ArrayList();
 
@@ -187,10 +669,16 @@ public class SearchImageComparisonModule extends AbstractImagePattern
                 suffix = "_" + (i + 1);
                 variables.put("_SEARCH_X" + suffix, new Integer(p.x));
                 variables.put("_SEARCH_Y" + suffix, new Integer(p.y));
-                hits.add(new Rectangle(p.x,p.y, r.width, r.height));
+                if (scores != null) {
+                    variables.put("_SEARCH_SCORE" + suffix, Float.valueOf(scores[i]));
+                }
+                hits.add(new Rectangle(p.x, p.y, this.r.width, this.r.height));
             }
             variables.put("_SEARCH_X", variables.get("_SEARCH_X_1"));
             variables.put("_SEARCH_Y", variables.get("_SEARCH_Y_1"));
+            if (scores != null) {
+                variables.put("_SEARCH_SCORE", variables.get("_SEARCH_SCORE_1"));
+            }
             result = 1.0f;
         } else {
             variables.put("_SEARCH_X", new Integer(-1));
@@ -210,7 +698,7 @@ public class SearchImageComparisonModule extends AbstractImagePattern
     }
 
     public boolean isMethodParamsSupported() {
-        return false;
+        return true;
     }
 
     public boolean isEnableHeuristics() {
@@ -382,6 +870,7 @@ public class SearchImageComparisonModule extends AbstractImagePattern
         }
 
         int y, x, ppx, spx;
+        final int[] biased = biasedPixels;
 
         // First process all the heuristics pixels
         if (heurPixels != null) {
@@ -396,8 +885,8 @@ public class SearchImageComparisonModule extends AbstractImagePattern
                 // Compare the pattern and source pixel colors
                 // Ignore the transparent pattern pixels with value Integer.MAX_VALUE
                 ppx = pixels[patternIndex];
-                spx = source[sourceIndex];
-                if (sourceIndex >= sourceLength || (((ppx >> 24) & 0xFF) == 0xFF && spx != ppx)) {
+                if (sourceIndex >= sourceLength || (((ppx >> 24) & 0xFF) == 0xFF && (spx = source[sourceIndex]) != ppx
+                        && (biased == null || !isWithinTolerance(biased[patternIndex], spx)))) {
 
                     failedPixelCount++;
 
@@ -420,6 +909,18 @@ public class SearchImageComparisonModule extends AbstractImagePattern
         failedPixelCount = 0;
         if (failedPixels != null) {
             failedPixels.clear();
+        } else if (biased == null && offset + (rh - 1) * srcWidth + rw <= sourceLength) {
+            // Exact comparison without tracking of the failed pixels, compare whole rows
+            final boolean opaque = isTemplateOpaque();
+            for (y = 0; y < rh; y++) {
+                failedPixelCount += opaque
+                        ? kernel.countDifferent(pixels, y * rw, source, y * srcWidth + offset, rw, allowedFailedPixelCount - failedPixelCount)
+                        : kernel.countDifferentOpaque(pixels, y * rw, source, y * srcWidth + offset, rw, allowedFailedPixelCount - failedPixelCount);
+                if (failedPixelCount > allowedFailedPixelCount) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         // Process all pixels of pattern specified by [x,y] within pattern rectangle r
@@ -433,7 +934,8 @@ public class SearchImageComparisonModule extends AbstractImagePattern
 
                 // Compare the pattern and source pixel colors.
                 // Ignore the transparent pattern pixels with value Integer.MAX_VALUE
-                if (sourceIndex >= sourceLength || (((pixels[patternIndex] >> 24) & 0xFF) == 0xFF && source[sourceIndex] != pixels[patternIndex])) {
+                if (sourceIndex >= sourceLength || (((pixels[patternIndex] >> 24) & 0xFF) == 0xFF && (spx = source[sourceIndex]) != pixels[patternIndex]
+                        && (biased == null || !isWithinTolerance(biased[patternIndex], spx)))) {
 
                     failedPixelCount++;
 
@@ -453,6 +955,22 @@ public class SearchImageComparisonModule extends AbstractImagePattern
         return true;
     }
 
+    /**
+     * Find out whether all template pixels are opaque. The result is cached
+     * for the current pixel array.
+     */
+    private boolean isTemplateOpaque() {
+        if (opacityPixels != pixels) {
+            boolean opaque = true;
+            for (int i = 0; i < pixels.length && opaque; i++) {
+                opaque = ((pixels[i] >> 24) & 0xFF) == 0xFF;
+            }
+            opaqueTemplate = opaque;
+            opacityPixels = pixels;
+        }
+        return opaqueTemplate;
+    }
+
     public List<Point> getFailedPixels() {
         return failedPixels;
     }
@@ -466,6 +984,17 @@ public class SearchImageComparisonModule extends AbstractImagePattern
         heurPixels = null;
     }
 
+    /**
+     * Get indices of the template pixels which are compared first because
+     * their colors are the least frequent ones in the template.
+     * @return array of template pixel indices or null if heuristics are not
+     * available (for example when the template was loaded through
+     * {@link #setBaseImage(java.awt.Image)}).
+     */
+    protected int[] getHeuristicPixels() {
+        return heurPixels;
+    }
+
     public void checkDependencies(PluginManager manager) throws DependencyMissingException {
     }
 
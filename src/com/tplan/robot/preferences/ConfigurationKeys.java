@@ -45,6 +45,12 @@ public interface ConfigurationKeys {
     
     public final String COMPARETO_MAX_LOADED_PIXEL_ROWS = "CompareToCommand.maxLoadedPixelRows";
     public final String COMPARETO_MAX_SEARCH_HITS = "CompareToCommand.maxSearchHits";
+    public final String COMPARETO_ENABLE_SEARCH_PREFILTER = "CompareToCommand.enableSearchPrefilter";
+    public final String COMPARETO_ENABLE_LOCATION_HINTS = "CompareToCommand.enableLocationHints";
+
+    public final String DIAGNOSTICS_OUTPUT_DIR = "DiagnosticImageSink.outputDir";
+    public final String DIAGNOSTICS_SAMPLING = "DiagnosticImageSink.sampling";
+    public final String DIAGNOSTICS_QUEUE_SIZE = "DiagnosticImageSink.queueSize";
     
     public final String MODULE_LIST_PARAM_NAME = "CompareToCommand.customComparisonClasses";
     public final String DEFAULT_MODULE_PARAM_NAME = "CompareToCommand.defaultComparisonModule";
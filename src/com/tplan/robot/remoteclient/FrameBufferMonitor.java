@@ -0,0 +1,275 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.remoteclient;
+
+import com.tplan.robot.remoteclient.capabilities.ImageOwner;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * <p>Frame buffer monitor keeps track of which parts of the desktop image of
+ * a passive client have changed. The image is divided into square tiles of
+ * {@link #TILE_SIZE} pixels and each tile carries the generation number of
+ * the last update which touched it. The monitor listens to server update
+ * events and increases the global generation with every update.</p>
+ *
+ * <p>Components which derive data from the desktop image (such as summed-area
+ * tables or histograms) may remember the generation they were calculated for
+ * and later recalculate just the area which changed since then
+ * (see {@link #getChangedArea(long)}). Such derived data may be stored in the
+ * monitor as attachments to share them among components and to release them
+ * together with the client.</p>
+ *
+ * <p>The monitor is reliable only when the client notifies of all image
+ * changes. It is therefore available only for passive {@link ImageOwner}
+ * clients and only for the live image returned by the client; see
+ * {@link #getMonitor(RemoteDesktopClient, java.awt.Image)}.</p>
+ *
+ * @product.signature
+ */
+public class FrameBufferMonitor implements RemoteDesktopServerListener {
+
+    /** Tile size in pixels. */
+    public static final int TILE_SIZE = 64;
+
+    private static final Map<RemoteDesktopClient, FrameBufferMonitor> monitors =
+            new WeakHashMap<RemoteDesktopClient, FrameBufferMonitor>();
+
+    private final WeakReference<RemoteDesktopClient> client;
+
+    /** Image the tile grid was created for. */
+    private WeakReference<Image> image;
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private long[] tiles;
+    private long generation;
+    private final Map<Object, Object> attachments = new HashMap<Object, Object>();
+
+    private FrameBufferMonitor(RemoteDesktopClient client) {
+        this.client = new WeakReference<RemoteDesktopClient>(client);
+        image = new WeakReference<Image>(null);
+        tiles = new long[0];
+    }
+
+    /**
+     * Get the monitor of a desktop image. The method returns a non-null value
+     * only if the image is the live image of a connected passive client
+     * which reliably reports all image updates. The monitor is created and
+     * registered with the client on the first call.
+     *
+     * @param client a desktop client.
+     * @param desktopImage desktop image to be analyzed.
+     * @return frame buffer monitor of the client or null if the changes of
+     * the image can't be tracked.
+     */
+    public static FrameBufferMonitor getMonitor(RemoteDesktopClient client, Image desktopImage) {
+        if (client == null || desktopImage == null || !client.isConnected()
+                || !(client instanceof ImageOwner) || ((ImageOwner) client).isActivelyUpdating()
+                || client.getImage() != desktopImage) {
+            return null;
+        }
+        FrameBufferMonitor m;
+        synchronized (monitors) {
+            m = monitors.get(client);
+            if (m == null) {
+                m = new FrameBufferMonitor(client);
+                monitors.put(client, m);
+                client.addServerListener(m);
+            }
+        }
+        m.checkImage(desktopImage);
+        return m;
+    }
+
+    /**
+     * Get the current generation. The number grows with every update of the image.
+     * @return current generation number.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get the generation of the last update which touched the given rectangle.
+     * @param r a rectangle of the image or null for the whole image.
+     * @return generation of the last update of the rectangle.
+     */
+    public synchronized long getGeneration(Rectangle r) {
+        if (r == null) {
+            return generation;
+        }
+        long g = 0;
+        Rectangle t = toTiles(r);
+        for (int y = t.y; y < t.y + t.height; y++) {
+            for (int x = t.x; x < t.x + t.width; x++) {
+                g = Math.max(g, tiles[y * columns + x]);
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Get bounds of the tiles which have been updated after the given generation.
+     * @param sinceGeneration a generation number previously obtained from
+     * {@link #getGeneration()}.
+     * @return bounding rectangle of the changed tiles (clipped to the image
+     * bounds) or null if nothing has changed.
+     */
+    public synchronized Rectangle getChangedArea(long sinceGeneration) {
+        int minX = columns, minY = rows, maxX = -1, maxY = -1;
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+                if (tiles[y * columns + x] > sinceGeneration) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        Rectangle r = new Rectangle(minX * TILE_SIZE, minY * TILE_SIZE,
+                (maxX - minX + 1) * TILE_SIZE, (maxY - minY + 1) * TILE_SIZE);
+        return r.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Find out whether a particular tile has been updated after the given generation.
+     * @param column tile column.
+     * @param row tile row.
+     * @param sinceGeneration a generation number previously obtained from
+     * {@link #getGeneration()}.
+     * @return true if the tile has changed, false otherwise.
+     */
+    public synchronized boolean isTileChanged(int column, int row, long sinceGeneration) {
+        return tiles[row * columns + column] > sinceGeneration;
+    }
+
+    /**
+     * Get the number of tile columns.
+     * @return number of tile columns.
+     */
+    public synchronized int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of tile rows.
+     * @return number of tile rows.
+     */
+    public synchronized int getRows() {
+        return rows;
+    }
+
+    /**
+     * Get data attached to the monitor.
+     * @param key attachment key.
+     * @return attached object or null if there's no object attached under the key.
+     */
+    public synchronized Object getAttachment(Object key) {
+        return attachments.get(key);
+    }
+
+    /**
+     * Attach data to the monitor.
+     * @param key attachment key.
+     * @param value an object to attach.
+     */
+    public synchronized void setAttachment(Object key, Object value) {
+        attachments.put(key, value);
+    }
+
+    /**
+     * Get the client the monitor belongs to.
+     * @return monitored client or null if it has been garbage collected.
+     */
+    public RemoteDesktopClient getClient() {
+        return client.get();
+    }
+
+    public void serverMessageReceived(RemoteDesktopServerEvent evt) {
+        switch (evt.getMessageType()) {
+            case RemoteDesktopServerEvent.SERVER_UPDATE_EVENT:
+                markChanged(evt.getUpdateRect());
+                break;
+            case RemoteDesktopServerEvent.SERVER_CONNECTED_EVENT:
+            case RemoteDesktopServerEvent.SERVER_INIT_EVENT:
+            case RemoteDesktopServerEvent.SERVER_DISCONNECTED_EVENT:
+                markChanged(null);
+                break;
+        }
+    }
+
+    /**
+     * Mark a rectangle of the image as changed.
+     * @param r a rectangle or null to mark the whole image.
+     */
+    private synchronized void markChanged(Rectangle r) {
+        generation++;
+        if (r == null) {
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = generation;
+            }
+        } else {
+            Rectangle t = toTiles(r);
+            for (int y = t.y; y < t.y + t.height; y++) {
+                for (int x = t.x; x < t.x + t.width; x++) {
+                    tiles[y * columns + x] = generation;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reset the tile grid if the client has replaced the image, for example
+     * after a change of the desktop resolution.
+     */
+    private synchronized void checkImage(Image desktopImage) {
+        if (image.get() != desktopImage) {
+            image = new WeakReference<Image>(desktopImage);
+            width = desktopImage.getWidth(null);
+            height = desktopImage.getHeight(null);
+            columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            tiles = new long[columns * rows];
+            markChanged(null);
+        }
+    }
+
+    /**
+     * Convert a rectangle in pixels to the range of tiles it intersects.
+     */
+    private Rectangle toTiles(Rectangle r) {
+        Rectangle c = r.intersection(new Rectangle(0, 0, width, height));
+        if (c.isEmpty()) {
+            return new Rectangle();
+        }
+        int x = c.x / TILE_SIZE, y = c.y / TILE_SIZE;
+        return new Rectangle(x, y, (c.x + c.width - 1) / TILE_SIZE - x + 1, (c.y + c.height - 1) / TILE_SIZE - y + 1);
+    }
+}
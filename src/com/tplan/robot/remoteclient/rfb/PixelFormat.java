@@ -19,6 +19,7 @@
  */
 package com.tplan.robot.remoteclient.rfb;
 
+import com.tplan.robot.util.PixelKernel;
 import java.awt.Color;
 import java.awt.image.ColorModel;
 import java.awt.image.DirectColorModel;
@@ -214,6 +215,42 @@ public class PixelFormat implements RfbConstants {
         return getColorModel().getRGB(p);
     }
 
+    /**
+     * Read a row of pixels from the buffer. Rows of 32-bit true color pixels
+     * with 8-bit color components (the usual format) are decoded at once by
+     * the {@link PixelKernel}, other formats pixel by pixel through the color
+     * model.
+     * @param buf source buffer.
+     * @param offset offset of the first pixel in the buffer.
+     * @param dst array of RGB pixels to save the row to.
+     * @param dstOffset index of the first pixel in the target array.
+     * @param count number of pixels.
+     * @throws IOException never thrown, declared for consistency with
+     * {@link #readRgb(byte[], int)}.
+     */
+    public void readRgb(byte[] buf, int offset, int[] dst, int dstOffset, int count) throws IOException {
+        if (isRgb32()) {
+            PixelKernel.getInstance().decodeRgb32(buf, offset, bigEndian, redShift, greenShift, blueShift, dst, dstOffset, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = readRgb(buf, offset + i * bytesPerPixel);
+            }
+        }
+    }
+
+    /**
+     * Find out whether the pixels are 32-bit true color ones with 8-bit
+     * components lying within the color depth. Only these bits are read by
+     * {@link #readRgb(byte[], int)}, so the whole pixel may be decoded.
+     */
+    private boolean isRgb32() {
+        final int bits = colorDepthInBytes * 8;
+        return trueColor && bytesPerPixel == 4 && getColorModel() instanceof DirectColorModel
+                && redMax == 0xFF && greenMax == 0xFF && blueMax == 0xFF
+                && redShift >= 0 && redShift + 8 <= bits && greenShift >= 0 && greenShift + 8 <= bits
+                && blueShift >= 0 && blueShift + 8 <= bits;
+    }
+
     /**
      * Read a color from the buffer and offset.
      */
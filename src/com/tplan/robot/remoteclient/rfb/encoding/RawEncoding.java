@@ -62,7 +62,7 @@ public class RawEncoding extends AbstractEncoding {
         // Buffer for row pixels32bit (width * 4 bytes)
         final int rowlen = w * bytesPerPixel;
         byte[] buf = new byte[rowlen];
-        int j, offsetX, offsetBuf;
+        int j, offsetX;
         Object o = image.getRaster().getDataBuffer();
 
         // Branch for INT buffer
@@ -76,10 +76,7 @@ public class RawEncoding extends AbstractEncoding {
 
                 // For each pixel of the row
                 if (bytesPerPixel > 1) {
-                    for (j = 0; j < w; j++) {
-                        offsetBuf = j * bytesPerPixel;
-                        px[offsetX + j] = pxf.readRgb(buf, offsetBuf);
-                    }
+                    pxf.readRgb(buf, 0, px, offsetX, w);
                 } else {
                     for (j = 0; j < w; j++) {
 
@@ -491,8 +491,11 @@ import javax.imageio.ImageIO;
  *       Provided through the {@link #waitForBell(int, java.lang.String, java.lang.String) waitForBell()},
  *       {@link #waitForUpdate(java.awt.Rectangle, java.lang.String, boolean, java.lang.String, java.lang.String) waitForUpdate()},
  *       {@link #waitForMatch(java.io.File[], float, java.lang.String, java.lang.String, java.lang.String, java.awt.Rectangle, java.lang.String, java.lang.String) waitForMatch()},
- *       {@link #waitForMismatch(java.io.File[], float, java.lang.String, java.lang.String, java.lang.String, java.awt.Rectangle, java.lang.String, java.lang.String) waitForMismatch()} and
- *       {@link #waitForClipboard(java.lang.String, java.lang.String) waitForClipboard()} methods.
+ *       {@link #waitForMismatch(java.io.File[], float, java.lang.String, java.lang.String, java.lang.String, java.awt.Rectangle, java.lang.String, java.lang.String) waitForMismatch()},
+ *       {@link #waitForClipboard(java.lang.String, java.lang.String) waitForClipboard()},
+ *       {@link #waitForStable(java.awt.Rectangle, java.lang.String, java.awt.Rectangle[], java.lang.String, java.lang.String) waitForStable()},
+ *       {@link #waitForAny(java.lang.String[], java.lang.String, java.lang.String) waitForAny()} and
+ *       {@link #waitForAll(java.lang.String[], java.lang.String, java.lang.String) waitForAll()} methods.
  *     </td>
  *   </tr>
  *   <tr>
@@ -4044,4 +4047,155 @@ public class DefaultJavaTestScript extends AbstractJavaTestScript {
     public int waitForClipboard(@Param(name = "timeout") String timeout) throws IOException {
         return waitFor(WaitforCommand.EVENT_CLIPBOARD, null, null, null, null, -1f, null, null, null, null, -1, timeout, null);
     }
+
+    // ====== WAITFOR STABLE
+    /**
+     * <p>Wait until the screen stops changing. The method returns when the
+     * server has sent no update of the specified area for the quiet period.
+     * It is driven only by the update events received from the server and it
+     * doesn't compare any images. Updates which fall completely into the
+     * ignored regions, such as a blinking caret or a clock, are not considered
+     * a change.</p>
+     *
+     * @param area screen area to watch or null to watch the whole screen.
+     * @param period quiet period, for example "2s". The default value is one second.
+     * @param ignore regions to ignore or null.
+     * @param timeout timeout specifying how long to wait at a maximum.
+     * @param wait time to wait after the screen becomes stable.
+     * @return command exit code as is specified in the {@doc.cmd waitfor WaitFor} specification.
+     * @throws java.io.IOException when the command fails with an I/O error.
+     */
+    public int waitForStable(Rectangle area, String period, Rectangle ignore[], String timeout, String wait) throws IOException {
+        List l = new ArrayList();
+        Map m = new HashMap();
+        l.add(WaitforCommand.EVENT_STABLE);
+        if (area != null) {
+            l.add(WaitforCommand.PARAM_AREA);
+            m.put(WaitforCommand.PARAM_AREA, area);
+        }
+        if (period != null) {
+            l.add(WaitforCommand.PARAM_PERIOD);
+            m.put(WaitforCommand.PARAM_PERIOD, period);
+        }
+        if (ignore != null && ignore.length > 0) {
+            l.add(WaitforCommand.PARAM_IGNORE);
+            m.put(WaitforCommand.PARAM_IGNORE, ignore);
+        }
+        if (wait != null) {
+            l.add(AbstractCommandHandler.PARAM_WAIT);
+            m.put(AbstractCommandHandler.PARAM_WAIT, wait);
+        }
+        if (timeout != null) {
+            l.add(WaitforCommand.PARAM_TIMEOUT);
+            m.put(WaitforCommand.PARAM_TIMEOUT, timeout);
+        }
+        return runScriptCommand("waitFor", l, m);
+    }
+
+    @Command(name = "waitfor stable")
+    public int waitForStable(@Param(name = "area") Rectangle area,
+            @Param(name = "period") String period,
+            @Param(name = "timeout") String timeout,
+            @Param(name = "wait") String wait) throws IOException {
+        return waitForStable(area, period, null, timeout, wait);
+    }
+
+    @Command(name = "waitfor stable")
+    public int waitForStable(@Param(name = "period") String period, @Param(name = "timeout") String timeout) throws IOException {
+        return waitForStable(null, period, null, timeout, null);
+    }
+
+    // ====== WAITFOR ANY/ALL
+    private int waitFor(String event, String conditions[], String timeout, String wait) throws IOException {
+        List l = new ArrayList();
+        Map m = new HashMap();
+        l.add(event);
+        if (conditions != null) {
+            l.addAll(Arrays.asList(conditions));
+        }
+        if (wait != null) {
+            l.add(AbstractCommandHandler.PARAM_WAIT);
+            m.put(AbstractCommandHandler.PARAM_WAIT, wait);
+        }
+        if (timeout != null) {
+            l.add(WaitforCommand.PARAM_TIMEOUT);
+            m.put(WaitforCommand.PARAM_TIMEOUT, timeout);
+        }
+        return runScriptCommand("waitFor", l, m);
+    }
+
+    /**
+     * <p>Wait until any of the specified conditions is met. Each condition
+     * is specified as arguments of a standalone {@doc.cmd waitfor WaitFor}
+     * command without the command name, for example
+     * <code>"match template=dialog.png passrate=90"</code>,
+     * <code>"update area=x:0,y:0,w:200,h:100 extent=50%"</code>,
+     * <code>"bell"</code> or <code>"clipboard"</code>. All conditions are
+     * evaluated at the same time over the same stream of desktop updates.
+     * The conditions may not specify the timeout, wait, onpass and ontimeout
+     * parameters.</p>
+     *
+     * <p>The index of the condition which has been met (starting from zero)
+     * is stored to the <code>_WAITFOR_CONDITION</code> variable. It is -1
+     * when the timeout has been reached.</p>
+     *
+     * @param conditions list of conditions.
+     * @param timeout timeout specifying how long to wait at a maximum.
+     * @param wait time to wait after the condition is met.
+     * @return command exit code as is specified in the {@doc.cmd waitfor WaitFor} specification.
+     * @throws java.io.IOException when the command fails with an I/O error.
+     */
+    public int waitForAny(String conditions[], String timeout, String wait) throws IOException {
+        return waitFor(WaitforCommand.EVENT_ANY, conditions, timeout, wait);
+    }
+
+    /**
+     * <p>Wait until any of the specified conditions is met. The method is equivalent to
+     * {@link #waitForAny(java.lang.String[], java.lang.String, java.lang.String) waitForAny()}
+     * with no wait time after the condition is met.</p>
+     *
+     * @param conditions list of conditions.
+     * @param timeout timeout specifying how long to wait at a maximum.
+     * @return command exit code as is specified in the {@doc.cmd waitfor WaitFor} specification.
+     * @throws java.io.IOException when the command fails with an I/O error.
+     */
+    @Command(name = "waitfor any")
+    public int waitForAny(String conditions[], @Param(name = "timeout") String timeout) throws IOException {
+        return waitFor(WaitforCommand.EVENT_ANY, conditions, timeout, null);
+    }
+
+    /**
+     * <p>Wait until all of the specified conditions are met. A condition
+     * doesn't have to last until the others are met; once met it is no longer
+     * evaluated. The conditions are specified the same way as in
+     * {@link #waitForAny(java.lang.String[], java.lang.String, java.lang.String) waitForAny()}.</p>
+     *
+     * <p>The index of the condition which has been met as the last one is
+     * stored to the <code>_WAITFOR_CONDITION</code> variable. It is -1
+     * when the timeout has been reached.</p>
+     *
+     * @param conditions list of conditions.
+     * @param timeout timeout specifying how long to wait at a maximum.
+     * @param wait time to wait after the conditions are met.
+     * @return command exit code as is specified in the {@doc.cmd waitfor WaitFor} specification.
+     * @throws java.io.IOException when the command fails with an I/O error.
+     */
+    public int waitForAll(String conditions[], String timeout, String wait) throws IOException {
+        return waitFor(WaitforCommand.EVENT_ALL, conditions, timeout, wait);
+    }
+
+    /**
+     * <p>Wait until all of the specified conditions are met. The method is equivalent to
+     * {@link #waitForAll(java.lang.String[], java.lang.String, java.lang.String) waitForAll()}
+     * with no wait time after the conditions are met.</p>
+     *
+     * @param conditions list of conditions.
+     * @param timeout timeout specifying how long to wait at a maximum.
+     * @return command exit code as is specified in the {@doc.cmd waitfor WaitFor} specification.
+     * @throws java.io.IOException when the command fails with an I/O error.
+     */
+    @Command(name = "waitfor all")
+    public int waitForAll(String conditions[], @Param(name = "timeout") String timeout) throws IOException {
+        return waitFor(WaitforCommand.EVENT_ALL, conditions, timeout, null);
+    }
 }
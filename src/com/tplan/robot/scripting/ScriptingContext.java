@@ -638,6 +638,7 @@ public interface ScriptingContext extends Map {
     public static final String WAITUNTIL_W = "_W";
     public static final String WAITUNTIL_H = "_H";
     public static final String WAITUNTIL_TIMEOUT = "_TIMEOUT";
+    public static final String WAITUNTIL_CONDITION = "_WAITFOR_CONDITION";
 
     public static final String REPORT_REPORT_FILE = "_REPORT_FILE";
     public static final String REPORT_REPORT_FILENAME = "_REPORT_FILENAME";
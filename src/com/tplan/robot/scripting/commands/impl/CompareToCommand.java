@@ -24,7 +24,12 @@ import com.tplan.robot.gui.MainFrame;
 import com.tplan.robot.gui.components.ImageFileFilter;
 import com.tplan.robot.gui.editor.ImageFileChooser;
 import com.tplan.robot.scripting.commands.ExtendedParamsObject;
+import com.tplan.robot.imagecomparison.ComparisonResultCache;
+import com.tplan.robot.imagecomparison.DesktopSnapshot;
+import com.tplan.robot.imagecomparison.TemplateCache;
 import com.tplan.robot.imagecomparison.ImageComparisonModule;
+import com.tplan.robot.imagecomparison.search.MultiTemplateSearch;
+import com.tplan.robot.imagecomparison.search.SearchImageComparisonModule;
 import com.tplan.robot.scripting.ScriptManager;
 import com.tplan.robot.preferences.UserConfiguration;
 import com.tplan.robot.preferences.Preference;
@@ -34,6 +39,7 @@ import com.tplan.robot.scripting.TokenParser;
 import com.tplan.robot.preferences.ConfigurationKeys;
 import com.tplan.robot.scripting.wrappers.TextBlockWrapper;
 import com.tplan.robot.imagecomparison.ImageComparisonModuleFactory;
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
 import com.tplan.robot.remoteclient.RemoteDesktopClient;
 import com.tplan.robot.scripting.ScriptEvent;
 import com.tplan.robot.scripting.ScriptingContext;
@@ -56,7 +62,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.ResourceBundle;
-import javax.imageio.ImageIO;
 import static com.tplan.robot.scripting.ScriptingContext.*;
 
 /**
@@ -257,6 +262,18 @@ public class CompareToCommand extends AbstractCommandHandler implements Configur
         } else if (argument instanceof String) {
             l.addAll(validateTemplateFileList((String) argument, ctx, reportMissingTemplates));
         }
+
+        // Decode the templates in the background while the script is being
+        // compiled so that the command doesn't wait for them when executed
+        if (ctx.isCompilationContext()) {
+            List<File> files = new ArrayList<File>();
+            for (Object o : l) {
+                if (o instanceof File) {
+                    files.add((File) o);
+                }
+            }
+            TemplateCache.getInstance().prewarm(files);
+        }
         return l;
     }
 
@@ -306,7 +323,7 @@ public class CompareToCommand extends AbstractCommandHandler implements Configur
                     }
 
                     try {
-                        templates.add(ImageIO.read(f));
+                        templates.add(TemplateCache.getInstance().getImage(f));
                     } catch (IOException e) {
                         return null;
                     }
@@ -377,20 +394,70 @@ public class CompareToCommand extends AbstractCommandHandler implements Configur
         float rate = 0;
         Image templateImage = null;
         int i = 0;
-        Rectangle r;
-        for (; i < templates.size(); i++) {
-            templateImage = templates.get(i);
-            r = params.containsKey(PARAM_CMPAREA)
-                    ? context.getParser().parseRectangle(params.get(PARAM_CMPAREA), PARAM_CMPAREA)
-                    : null;
-            rate = 100 * comparisonModule.compare(img,
-                    r,
-                    templateImage,
-                    (String) params.get(PARAM_METHODPARAMS),
-                    context,
-                    passRate / 100);
-            if (passRate <= rate) {
-                break;
+        Rectangle r = params.containsKey(PARAM_CMPAREA)
+                ? context.getParser().parseRectangle(params.get(PARAM_CMPAREA), PARAM_CMPAREA)
+                : null;
+
+        // Identical comparisons of an unchanged screen are served from the cache.
+        // State of modules with custom parameters is unknown, they are not cached.
+        ComparisonResultCache cache = comparisonModule instanceof ExtendedParamsObject
+                ? null : ComparisonResultCache.getInstance(client, img);
+        ComparisonResultCache.Key key = null;
+        ComparisonResultCache.Result cached = null;
+        if (cache != null) {
+            key = new ComparisonResultCache.Key(comparisonModule, tmplList, r, passRate, (String) params.get(PARAM_METHODPARAMS), null, context);
+            cached = cache.get(key, context);
+        }
+
+        if (cached != null) {
+            rate = cached.getRate();
+            i = cached.getTemplateIndex() >= 0 ? cached.getTemplateIndex() : templates.size();
+            templateImage = i < templates.size() ? templates.get(i) : null;
+        } else {
+            ComparisonResultCache.Recording recording = cache == null ? null : cache.record(key, context);
+
+            // All templates must be compared to the same pixels of the screen. A monitored
+            // live image is compared directly, so that the data maintained incrementally
+            // for it (summed-area tables, histograms) are reused. If the compared area
+            // gets updated meanwhile, the comparison is repeated with a copy of the screen.
+            FrameBufferMonitor monitor = FrameBufferMonitor.getMonitor(client, img);
+            Image source = monitor == null ? DesktopSnapshot.create(client, img, r).getImage() : img;
+            List<ImageComparisonModule> modules = getMultiTemplateModules(comparisonModule, templates, (String) params.get(PARAM_METHODPARAMS), context);
+            while (true) {
+                long generation = monitor == null ? 0 : monitor.getGeneration(r);
+                i = 0;
+                rate = 0;
+                templateImage = null;
+
+                // Alternative templates of the standard search are searched in a single pass
+                if (modules != null) {
+                    i = new MultiTemplateSearch(modules).search(source, r, context, passRate / 100);
+                    if (i >= 0) {
+                        rate = 100;
+                        templateImage = templates.get(i);
+                    } else {
+                        i = templates.size();
+                    }
+                }
+                for (; modules == null && i < templates.size(); i++) {
+                    templateImage = templates.get(i);
+                    rate = 100 * comparisonModule.compare(source,
+                            r,
+                            templateImage,
+                            (String) params.get(PARAM_METHODPARAMS),
+                            context,
+                            passRate / 100);
+                    if (passRate <= rate) {
+                        break;
+                    }
+                }
+                if (source != img || monitor.getGeneration(r) == generation) {
+                    break;
+                }
+                source = DesktopSnapshot.create(client, img, r).getImage();
+            }
+            if (recording != null) {
+                cache.put(recording, rate, passRate <= rate ? i : -1);
             }
         }
         time = System.currentTimeMillis() - time;
@@ -440,6 +507,32 @@ public class CompareToCommand extends AbstractCommandHandler implements Configur
         return returnValue;
     }
 
+    /**
+     * Create search modules for single pass search of alternative templates.
+     * @param comparisonModule image comparison module specified by the command.
+     * @param templates list of template images.
+     * @param methodParams method parameters of the command, may be null.
+     * @param ctx context of the calling script.
+     * @return list of modules with the templates loaded (one module per template)
+     * or null if the templates have to be compared one by one.
+     * @throws IllegalArgumentException if a method parameter value is invalid.
+     */
+    static List<ImageComparisonModule> getMultiTemplateModules(ImageComparisonModule comparisonModule, List<? extends Image> templates,
+            String methodParams, ScriptingContext ctx) {
+        if (templates.size() < 2 || comparisonModule == null || comparisonModule.getClass() != SearchImageComparisonModule.class
+                || ((SearchImageComparisonModule) comparisonModule).getFailedPixels() != null) {
+            return null;
+        }
+        List<ImageComparisonModule> modules = new ArrayList<ImageComparisonModule>();
+        ImageComparisonModule m;
+        for (Image template : templates) {
+            m = new SearchImageComparisonModule();
+            m.setBaseImage(template);
+            modules.add(m);
+        }
+        return MultiTemplateSearch.isSupported(modules, methodParams, ctx) ? modules : null;
+    }
+
     @Override
     public List<Preference> getPreferences() {
         List v = new ArrayList();
@@ -490,6 +583,20 @@ public class CompareToCommand extends AbstractCommandHandler implements Configur
         o.setPreferredContainerName(res.getString("options.compareto.groupTitle.search"));
         v.add(o);
 
+        o = new Preference("CompareToCommand.enableSearchPrefilter",
+                Preference.TYPE_BOOLEAN,
+                res.getString("options.compareto.searchPrefilter.name"),
+                res.getString("options.compareto.searchPrefilter.desc"));
+        o.setPreferredContainerName(res.getString("options.compareto.groupTitle.search"));
+        v.add(o);
+
+        o = new Preference("CompareToCommand.enableLocationHints",
+                Preference.TYPE_BOOLEAN,
+                res.getString("options.compareto.locationHints.name"),
+                res.getString("options.compareto.locationHints.desc"));
+        o.setPreferredContainerName(res.getString("options.compareto.groupTitle.search"));
+        v.add(o);
+
         return v;
     }
 
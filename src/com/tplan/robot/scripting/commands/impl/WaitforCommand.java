@@ -21,7 +21,10 @@ package com.tplan.robot.scripting.commands.impl;
 
 import com.tplan.robot.scripting.commands.CommandEditAction;
 import com.tplan.robot.ApplicationSupport;
+import com.tplan.robot.imagecomparison.ComparisonResultCache;
+import com.tplan.robot.imagecomparison.DesktopSnapshot;
 import com.tplan.robot.imagecomparison.ImageComparisonModule;
+import com.tplan.robot.imagecomparison.search.MultiTemplateSearch;
 import com.tplan.robot.remoteclient.rfb.RfbClient;
 import com.tplan.robot.remoteclient.RemoteDesktopServerEvent;
 import com.tplan.robot.remoteclient.RemoteDesktopServerListener;
@@ -35,6 +38,7 @@ import com.tplan.robot.scripting.ScriptManagerImpl;
 import com.tplan.robot.scripting.wrappers.TextBlockWrapper;
 import com.tplan.robot.imagecomparison.ImageComparisonModuleFactory;
 import com.tplan.robot.remoteclient.RemoteDesktopClient;
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
 import com.tplan.robot.util.Stoppable;
 import com.tplan.robot.scripting.ScriptEvent;
 import com.tplan.robot.scripting.TokenParser;
@@ -46,6 +50,7 @@ import com.tplan.robot.scripting.commands.TimerAction;
 import com.tplan.robot.scripting.interpret.TestScriptInterpret;
 import com.tplan.robot.scripting.interpret.proprietary.ProprietaryTestScriptInterpret;
 import com.tplan.robot.util.CaseTolerantHashMap;
+import com.tplan.robot.util.RegionAccumulator;
 import com.tplan.robot.util.Utils;
 
 import javax.swing.*;
@@ -82,6 +87,8 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
     public static final String PARAM_CUMULATIVE = "cumulative";
     public static final String PARAM_TEMPLATE = "template";
     public static final String PARAM_INTERVAL = "interval";
+    public static final String PARAM_PERIOD = "period";
+    public static final String PARAM_IGNORE = "ignore";
     final String PARAM_EXTENT_PERCENTAGE = "extent_percentage";
     final String PARAM_EXTENT_PIXELS = "extent_pixels";
     final String PARAM_UPDATE_AREA_PIXEL_COUNT = "update_pixels";
@@ -90,10 +97,16 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
     public static final String EVENT_MATCH = "MATCH";
     public static final String EVENT_MISMATCH = "MISMATCH";
     public static final String EVENT_CLIPBOARD = "CLIPBOARD";
+    public static final String EVENT_STABLE = "STABLE";
+    public static final String EVENT_ANY = "ANY";
+    public static final String EVENT_ALL = "ALL";
+    final String PARAM_CONDITIONS = "conditions";
     public static final String ACTION_EDIT_WAITFOR = "waitforProperties";
     private final static KeyStroke contextShortcut = KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_MASK | InputEvent.SHIFT_MASK);
     private static Map contextAttributes;
     private static final String PARAM_MODULEPARAMS = "modparams";
+    /** Default quiet period of 'Waitfor stable' in milliseconds. */
+    private static final int DEFAULT_STABLE_PERIOD = 1000;
 
     /**
      * Get a map with context attributes.
@@ -115,6 +128,8 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             contextAttributes.put(PARAM_TEMPLATE, res.getString("screenshot.param.template"));
             contextAttributes.put(PARAM_PASSRATE, res.getString("compareto.param.passrate"));
             contextAttributes.put(PARAM_INTERVAL, res.getString("waitfor.param.interval"));
+            contextAttributes.put(PARAM_PERIOD, res.getString("waitfor.param.period"));
+            contextAttributes.put(PARAM_IGNORE, res.getString("waitfor.param.ignore"));
             String methods = "";
             for (Object s : ImageComparisonModuleFactory.getInstance().getAvailableModules()) {
                 methods += s.toString() + "|";
@@ -141,7 +156,8 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
      */
     public String getContextArgument() {
         return EVENT_BELL.toLowerCase() + "|" + EVENT_UPDATE.toLowerCase() + "|" +
-                EVENT_MATCH.toLowerCase() + "|" + EVENT_MISMATCH.toLowerCase() + "|" + EVENT_CLIPBOARD.toLowerCase();
+                EVENT_MATCH.toLowerCase() + "|" + EVENT_MISMATCH.toLowerCase() + "|" + EVENT_CLIPBOARD.toLowerCase() + "|" +
+                EVENT_STABLE.toLowerCase() + "|" + EVENT_ANY.toLowerCase() + "|" + EVENT_ALL.toLowerCase();
     }
 
     /**
@@ -172,12 +188,19 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
 
         if (!(parName.equalsIgnoreCase(EVENT_BELL) || parName.equalsIgnoreCase(EVENT_UPDATE) ||
                 parName.equalsIgnoreCase(EVENT_MATCH) || parName.equalsIgnoreCase(EVENT_MISMATCH) ||
-                parName.equalsIgnoreCase(EVENT_CLIPBOARD))) {
+                parName.equalsIgnoreCase(EVENT_CLIPBOARD) || parName.equalsIgnoreCase(EVENT_STABLE) ||
+                isComposite(parName))) {
             String s = res.getString("waitfor.syntaxErr.invalidEvent");
             throw new SyntaxErrorException(MessageFormat.format(s, parName, getContextArgument().replace("|", ", ")));
         }
         vt.put(PARAM_EVENT, parName);
 
+        // Waitfor any|all takes a list of conditions instead of the event parameters
+        if (isComposite(parName)) {
+            validateConditions(args, values, vt, ctx);
+            return;
+        }
+
         UserConfiguration cfg = ctx.getConfiguration();
         TokenParser parser = ctx.getParser();
         ScriptManager handler = ctx.getScriptManager();
@@ -214,6 +237,12 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                 value = ((String) value).trim();
             }
 
+            // The quiet period and ignored areas apply only to the screen stability
+            if ((parName.equals(PARAM_PERIOD) || parName.equals(PARAM_IGNORE)) && !EVENT_STABLE.equalsIgnoreCase((String) vt.get(PARAM_EVENT))) {
+                String s = res.getString("waitfor.syntaxErr.stableOnly");
+                throw new SyntaxErrorException(MessageFormat.format(s, parName));
+            }
+
             if (parName.equals(PARAM_TIMEOUT)) {
                 vt.put(PARAM_TIMEOUT, value instanceof Number ? value : parser.parseTime(value, PARAM_TIMEOUT));
             } else if (parName.equals(PARAM_WAIT)) {
@@ -239,6 +268,23 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                 vt.put(PARAM_PASSRATE, value instanceof Number ? value : parser.parsePercentage(value, PARAM_PASSRATE));
             } else if (parName.equals(PARAM_INTERVAL)) {
                 vt.put(PARAM_INTERVAL, value instanceof Number ? value : parser.parseTime(value, PARAM_INTERVAL));
+            } else if (parName.equals(PARAM_PERIOD)) {
+                vt.put(PARAM_PERIOD, value instanceof Number ? value : parser.parseTime(value, PARAM_PERIOD));
+            } else if (parName.equals(PARAM_IGNORE)) {
+                List<Rectangle> ignored = new ArrayList();
+                if (value instanceof Rectangle) {
+                    ignored.add((Rectangle) value);
+                } else if (value instanceof Rectangle[]) {
+                    ignored.addAll(Arrays.asList((Rectangle[]) value));
+                } else {
+                    // Rectangles are separated by semicolons
+                    for (String r : value.toString().split(";")) {
+                        if (r.trim().length() > 0) {
+                            ignored.add(parser.parseRectangle(r.trim(), PARAM_IGNORE));
+                        }
+                    }
+                }
+                vt.put(PARAM_IGNORE, ignored);
             } else if (parName.equals(PARAM_EXTENT)) {
                 String ex = value.toString();
                 if (ex.endsWith("%")) {
@@ -309,6 +355,79 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
         }
     }
 
+    /**
+     * Validate a composite wait, i.e. 'Waitfor any' or 'Waitfor all'. Each
+     * argument without a value is a condition, for example
+     * <code>"match template=dialog.png"</code> or <code>bell</code>, which
+     * is validated as arguments of a standalone Waitfor command. The
+     * parameters controlling the wait as a whole (timeout, wait, onpass and
+     * ontimeout) may not be specified by the conditions.
+     */
+    private void validateConditions(List args, Map values, Map vt, ScriptingContext ctx) throws SyntaxErrorException {
+        ResourceBundle res = ApplicationSupport.getResourceBundle();
+        TokenParser parser = ctx.getParser();
+        List<Map> conditions = new ArrayList();
+        String parName;
+        Object value;
+
+        for (int j = 1; j < args.size(); j++) {
+            parName = args.get(j).toString();
+            value = values.get(parName);
+
+            if (value == null) {
+                List condArgs = new ArrayList();
+                Map condValues = parser.parse(parName, condArgs);
+                if (condArgs.size() > 0 && isComposite(condArgs.get(0).toString())) {
+                    String s = res.getString("waitfor.syntaxErr.invalidEvent");
+                    throw new SyntaxErrorException(MessageFormat.format(s, condArgs.get(0), getContextArgument().replace("|", ", ")));
+                }
+                Map condParams = new HashMap();
+                validate(condArgs, condValues, condParams, ctx);
+                for (String p : new String[]{PARAM_TIMEOUT, PARAM_WAIT, PARAM_ONPASS, PARAM_ONFAIL}) {
+                    if (condParams.containsKey(p)) {
+                        String s = res.getString("waitfor.syntaxErr.conditionParam");
+                        throw new SyntaxErrorException(MessageFormat.format(s, p.equals(PARAM_ONFAIL) ? PARAM_ONTIMEOUT : p, parName));
+                    }
+                }
+                conditions.add(condParams);
+                continue;
+            }
+
+            if (value instanceof String) {
+                value = ((String) value).trim();
+            }
+            parName = parName.toLowerCase();
+            if (parName.equals(PARAM_TIMEOUT)) {
+                vt.put(PARAM_TIMEOUT, value instanceof Number ? value : parser.parseTime(value, PARAM_TIMEOUT));
+            } else if (parName.equals(PARAM_WAIT)) {
+                vt.put(PARAM_WAIT, value instanceof Number ? value : parser.parseTime(value, PARAM_WAIT));
+            } else if (parName.equals(PARAM_ONTIMEOUT)) {
+                vt.put(PARAM_ONFAIL, value);
+            } else if (parName.equals(PARAM_ONPASS)) {
+                vt.put(PARAM_ONPASS, value);
+            } else {
+                String s = res.getString("command.syntaxErr.unknownParam");
+                throw new SyntaxErrorException(MessageFormat.format(s, parName));
+            }
+        }
+
+        if (conditions.size() == 0) {
+            throw new SyntaxErrorException(res.getString("waitfor.syntaxErr.conditionMissing"));
+        }
+        vt.put(PARAM_CONDITIONS, conditions);
+
+        validateOnPassAndOnFail(ctx, vt);
+
+        // Update the implicit variables with dummy ones
+        Map vars = ctx.getVariables();
+        vars.put(ScriptingContext.WAITUNTIL_TIMEOUT, "false");
+        vars.put(ScriptingContext.WAITUNTIL_CONDITION, "-1");
+    }
+
+    private boolean isComposite(String event) {
+        return event.equalsIgnoreCase(EVENT_ANY) || event.equalsIgnoreCase(EVENT_ALL);
+    }
+
     public String[] getCommandNames() {
         return new String[]{"waitfor"};
     }
@@ -412,7 +531,8 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
     public List getArguments(String command, ScriptingContext context) {
         return Arrays.asList(new String[]{EVENT_BELL.toLowerCase(),
                     EVENT_CLIPBOARD.toLowerCase(), EVENT_MATCH.toLowerCase(),
-                    EVENT_MISMATCH.toLowerCase(), EVENT_UPDATE.toLowerCase()});
+                    EVENT_MISMATCH.toLowerCase(), EVENT_UPDATE.toLowerCase(), EVENT_STABLE.toLowerCase(),
+                    EVENT_ANY.toLowerCase(), EVENT_ALL.toLowerCase()});
     }
 
     public List getParameters(String command, ScriptingContext context) {
@@ -427,6 +547,9 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             } else if (arg.equalsIgnoreCase(EVENT_UPDATE)) {
                 common.addAll(Arrays.asList(new String[]{PARAM_COUNT, PARAM_EXTENT, PARAM_AREA, PARAM_CUMULATIVE}));
                 return common;
+            } else if (arg.equalsIgnoreCase(EVENT_STABLE)) {
+                common.addAll(Arrays.asList(new String[]{PARAM_PERIOD, PARAM_AREA, PARAM_IGNORE}));
+                return common;
             } else if (arg.equalsIgnoreCase(EVENT_MATCH) || arg.equalsIgnoreCase(EVENT_MISMATCH)) {
                 common.addAll(Arrays.asList(new String[]{PARAM_CMPAREA, PARAM_INTERVAL, PARAM_PASSRATE, PARAM_TEMPLATE, PARAM_METHOD}));
                 ImageComparisonModule m = ImageComparisonModuleFactory.getInstance().getModule(t.get(PARAM_METHOD));
@@ -439,7 +562,7 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                     }
                 }
                 return common;
-            } else if (arg.equalsIgnoreCase(EVENT_CLIPBOARD)) {
+            } else if (arg.equalsIgnoreCase(EVENT_CLIPBOARD) || isComposite(arg)) {
                 return common;
             }
         }
@@ -484,8 +607,8 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
         return null;
     }
 
-    private class WaitForListener
-            implements RemoteDesktopServerListener, GUIConstants, ActionListener, PropertyChangeListener, Runnable {
+    class WaitForListener
+            implements RemoteDesktopServerListener, GUIConstants, ActionListener, PropertyChangeListener, WaitforEngine.Comparison {
 
         private int counter = 0;
         private int count = 1;
@@ -493,7 +616,7 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
         private int pixels = 0;
         private Rectangle rectangle;
         private Rectangle cmpArea;
-        private List cumulativeRects;
+        private RegionAccumulator updatedRegion;
         private float percentage = 100;
         private int delay = 0;
         private int updateAreaPixelCount = 0;
@@ -505,21 +628,43 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
         private float passrate = 95f;
         boolean ignoreMissingTemplate;
         private long interval;
-        private Timer comparisonTimer = null;
+        private WaitforEngine engine;
         private List<ImageComparisonModule> comparisonModules;
         private String methodParams;
+        private Map<String, String> moduleParams;
         private ScriptingContext context;
         private RemoteDesktopClient client;
         private UserConfiguration cfg;
         private boolean match = true;
         private boolean debug = System.getProperty("debug.waitfor") != null;
-        private Thread comparisonThread = null;
         private boolean templateNotFound = false;
         private List inputTemplates;
         private List<Image> templateImages;
+        private boolean matching = false;
+        private final int index;
+        private ConditionGroup group;
+        private long quietPeriod = DEFAULT_STABLE_PERIOD;
+        private long lastUpdate;
+        private List<Rectangle> ignoredAreas;
+        private Runnable stableCheck;
 
         WaitForListener(Map params, ScriptingContext context) {
+            this(params, context, null, 0);
+        }
+
+        /**
+         * Create a listener. If an engine is provided, the listener is a
+         * condition of a composite wait. It is only set up; the composite
+         * passes the server events to it, runs its comparisons and waits.
+         *
+         * @param params validated command parameters.
+         * @param context scripting context.
+         * @param sharedEngine engine of the composite wait or null.
+         * @param index condition index within the composite wait.
+         */
+        WaitForListener(Map params, ScriptingContext context, WaitforEngine sharedEngine, int index) {
             this.context = context;
+            this.index = index;
             cfg = context.getConfiguration();
             try {
                 String method = null;
@@ -567,15 +712,27 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             cumulative = params.containsKey(PARAM_CUMULATIVE) ? ((Boolean) params.get(PARAM_CUMULATIVE)).booleanValue() : false;
             interval = params.containsKey(PARAM_INTERVAL) ? ((Number) params.get(PARAM_INTERVAL)).intValue() : interval;
             passrate = params.containsKey(PARAM_PASSRATE) ? ((Number) params.get(PARAM_PASSRATE)).floatValue() : passrate;
+            quietPeriod = params.containsKey(PARAM_PERIOD) ? ((Number) params.get(PARAM_PERIOD)).longValue() : quietPeriod;
+            ignoredAreas = (List<Rectangle>) params.get(PARAM_IGNORE);
 
             variables = context.getVariables();
             updateRectVariables(context, variables, null);
             variables.put(ScriptingContext.WAITUNTIL_TIMEOUT, "false");
             methodParams = (String) params.get(PARAM_METHODPARAMS);
+            moduleParams = (Map<String, String>) params.get(PARAM_MODULEPARAMS);
             cmpArea = (Rectangle) params.get(CompareToCommand.PARAM_CMPAREA);
             inputTemplates = (List) params.get(PARAM_TEMPLATE);
 
             client = context.getClient();
+            List<Map> conditions = (List<Map>) params.get(PARAM_CONDITIONS);
+            if (sharedEngine != null) {
+                engine = sharedEngine;
+            } else if (conditions != null) {
+                boolean all = EVENT_ALL.equalsIgnoreCase((String) params.get(PARAM_EVENT));
+                engine = new WaitforEngine(client, context.getInterpret(), conditions.size(), all);
+            } else {
+                engine = new WaitforEngine(client, context.getInterpret());
+            }
 
             Object currentElement = context.get(ScriptingContext.CONTEXT_CURRENT_DOCUMENT_ELEMENT);
 
@@ -590,7 +747,7 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             // If the width and height param haven't been set, update them to the frame buffer width/height
             int w = client.getDesktopWidth();
             int h = client.getDesktopHeight();
-            if (event.equalsIgnoreCase(EVENT_UPDATE)) {
+            if (event.equalsIgnoreCase(EVENT_UPDATE) || event.equalsIgnoreCase(EVENT_STABLE)) {
                 if (rectangle.width == 0) {
                     rectangle.width = w - rectangle.x;
                 }
@@ -604,8 +761,6 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                 Rectangle r = new Rectangle(0, 0, w, h);
                 cmpArea = cmpArea.intersection(r);
             }
-            boolean matching = false;
-
             // If the timeout is set, set the end time
             if (params.containsKey(PARAM_TIMEOUT)) {
                 endTime = ((Number) params.get(PARAM_TIMEOUT)).intValue() + System.currentTimeMillis();
@@ -672,12 +827,37 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                 }
                 this.comparisonModules = modules;
 
-                // Image comparison is handled by a timer which fires an action event
-                // at scheduled intervals
-                comparisonTimer = new Timer((int) interval, this);
-                comparisonTimer.setRepeats(true);
-                comparisonTimer.start();
-                actionPerformed(new ActionEvent(comparisonTimer, 0, ""));
+                // Comparisons are run by the engine after the desktop updates,
+                // at most once per interval
+                if (sharedEngine == null) {
+                    engine.startComparisons(this, cmpArea, interval);
+                }
+            } else if (conditions != null) {
+                group = new ConditionGroup(conditions, context, engine);
+                if (group.templateNotFound) {
+                    templateNotFound = true;
+                    return;
+                }
+                matching = group.matching;
+                if (matching) {
+                    engine.startComparisons(group, group.area, group.interval);
+                }
+            } else if (event.equalsIgnoreCase(EVENT_STABLE)) {
+
+                // The quiet period starts now; past updates can't prove the screen was stable before
+                lastUpdate = System.currentTimeMillis();
+                stableCheck = new Runnable() {
+
+                    public void run() {
+                        checkStable();
+                    }
+                };
+                engine.schedule(stableCheck, quietPeriod);
+            }
+
+            // A condition of a composite wait doesn't wait on its own
+            if (sharedEngine != null) {
+                return;
             }
 
             BreakAction action = new BreakAction(new TimerAction(endTime, context));
@@ -698,41 +878,29 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                 // First proceed the list of events
                 List v = (List) context.get(ScriptingContext.CONTEXT_RFB_EVENT_LIST);
                 for (int i = 0; i < v.size(); i++) {
-                    if (!conditionReached) {
+                    if (!engine.isConditionReached()) {
                         serverMessageReceived((RemoteDesktopServerEvent) v.get(i));
                     }
                 }
 
                 // Stay in the waiting loop until the script gets stopped, the condition of the event are met or
                 // timeout is reached
-                while (!interpret.isStop() && !conditionReached && !action.isBreak()) {
+                while (!interpret.isStop() && !engine.isConditionReached() && !action.isBreak()) {
 
                     // If waiting is interrupted by user, behave as if passed
                     if (action.breakCountDown) {
-                        conditionReached = true;
+                        engine.setConditionReached();
                     }
 
                     if (endTime > 0 && System.currentTimeMillis() > endTime) {
-                        // Set up one last comparison
+                        // Perform one last comparison
                         if (matching) {
-                            comparisonTimer.stop();
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Timeout reached, performing one last comparison");
                             }
-                            stopAllComparisons(interpret);
-                            comparisonThread = null;
-                            actionPerformed(new ActionEvent(comparisonTimer, 0, ""));
-                            do {
-                                Thread.sleep(5);
-                            } while (comparisonThread != null && !interpret.isStop());
-                            if (interpret.isStop() && comparisonModules != null) {
-                                if (debug) {
-                                    System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Stop requested, interrupting image comparison");
-                                }
-                                stopAllComparisons(interpret);
-                            }
+                            engine.compareLastTime();
                         }
-                        if (!conditionReached && !interpret.isStop()) {
+                        if (!engine.isConditionReached() && !interpret.isStop()) {
                             variables.put(ScriptingContext.WAITUNTIL_TIMEOUT, "true");
                             client.removeServerListener(this);
 
@@ -742,13 +910,10 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                             break;
                         }
                     }
-                    Thread.sleep(5);
+                    engine.await(endTime, action);
                 }
-                if (interpret.isStop() && comparisonModules != null) {
-                    if (debug) {
-                        System.out.println("-- Thread #" + Thread.currentThread().getId() + "(main thread): Stop requested, interrupting image comparison");
-                    }
-                    stopAllComparisons(interpret);
+                if (interpret.isStop() && comparisonModules != null && debug) {
+                    System.out.println("-- Thread #" + Thread.currentThread().getId() + "(main thread): Stop requested, interrupting image comparison");
                 }
 
             } catch (Exception ex) {
@@ -768,28 +933,23 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                 handler.fireScriptEvent(new ScriptEvent(this, null, context, ""));
             }
 
-            if (comparisonTimer != null) {
-                comparisonTimer.stop();
-                comparisonTimer.removeActionListener(this);
-                comparisonTimer = null;
-            }
+            // Cancel the scheduled comparisons and interrupt the running one
+            engine.close();
+            conditionReached = engine.isConditionReached();
 
-            synchronized (this) {
-                comparisonModules = null;
+            // Report which condition of a composite wait has finished it
+            if (group != null) {
+                int condition = conditionReached ? engine.getLastReachedCondition() : -1;
+                variables.put(ScriptingContext.WAITUNTIL_CONDITION, "" + condition);
             }
         }
 
-        private void stopAllComparisons(TestScriptInterpret interpret) {
-            if (comparisonModules != null) {
-                for (ImageComparisonModule comparisonModule : comparisonModules) {
+        public void stop() {
+            List<ImageComparisonModule> modules = comparisonModules;
+            if (modules != null) {
+                for (ImageComparisonModule comparisonModule : modules) {
                     if (comparisonModule instanceof Stoppable) {
                         ((Stoppable) comparisonModule).stop();
-                        do {
-                            try {
-                                Thread.sleep(5);
-                            } catch (InterruptedException ex) {
-                            }
-                        } while (comparisonThread != null && !interpret.isStop());
                     }
                 }
             }
@@ -815,27 +975,22 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                     // Clear the status bar
                     context.getScriptManager().fireScriptEvent(new ScriptEvent(this, null, context, ""));
                 }
-            } else if (e.getSource().equals(comparisonTimer)) {
-                if (comparisonModules != null) {
-                	
-                    if (comparisonThread == null) {
-                        Thread t = new Thread(this);
-                        t.start();
-                    } else if (debug) {
-                        System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Skipping comparison after interval " + interval + "ms because the previous one hasn't finished yet");
-                    }
-                } else {
-                    if (ignoreMissingTemplate) {
-                        this.conditionReached = true;
-                    } else {
-                        endTime = System.currentTimeMillis() - 1;
-                    }
-                }
             }
         }
 
-        public void run() {
-            comparisonThread = Thread.currentThread();
+        public boolean compare() {
+            return compare(client.getImage(), -1);
+        }
+
+        /**
+         * Compare a desktop image to the templates.
+         * @param source the live desktop image or its snapshot.
+         * @param generation generation of the compared area obtained from
+         * the frame buffer monitor before the snapshot was taken, or -1 if
+         * the source is the live image.
+         * @return true if the condition is met.
+         */
+        boolean compare(Image source, long generation) {
 
             // Compare the images and get the result as percentage.
             long time = System.currentTimeMillis();
@@ -849,12 +1004,64 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             }
 
             float rate = 0;
+            boolean reached = false;
 
             // Bug 2941023 - WaitFor match throws NPE intermittently
             // It was caused by another thread setting the list of modules to null.
             ImageComparisonModule comparisonModule;
             int i = 0;
-            for (; comparisonModules != null && i < comparisonModules.size(); i++) {
+            List<ImageComparisonModule> modules = comparisonModules;
+
+            // A match of an unchanged screen is served from the cache
+            ComparisonResultCache cache = null;
+            ComparisonResultCache.Result cached = null;
+            ComparisonResultCache.Recording recording = null;
+            if (match && modules != null && modules.size() > 0) {
+                cache = ComparisonResultCache.getInstance(client, client.getImage());
+            }
+            if (cache != null) {
+                ComparisonResultCache.Key key = new ComparisonResultCache.Key(modules.get(0), inputTemplates, cmpArea, passrate, methodParams, moduleParams, context);
+                cached = cache.get(key, context);
+                if (cached != null) {
+                    rate = cached.getRate();
+                    reached = cached.getTemplateIndex() >= 0;
+                    i = reached ? cached.getTemplateIndex() : modules.size();
+                } else {
+                    recording = generation < 0 ? cache.record(key, context) : cache.record(key, context, generation);
+                }
+            }
+
+            // Alternative templates of the standard search are searched in a single pass
+            // unless the method parameters require another mode or a color tolerance.
+            // Invalid parameters are reported by the comparison of the first template.
+            boolean multiTemplate = false;
+            if (cached == null && match) {
+                try {
+                    multiTemplate = MultiTemplateSearch.isSupported(modules, methodParams, context);
+                } catch (IllegalArgumentException ex) {
+                    multiTemplate = false;
+                }
+            }
+            if (multiTemplate) {
+                synchronized (this) {
+                    try {
+                        i = new MultiTemplateSearch(modules).search(source, cmpArea, context, passrate / 100f);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        i = modules.size();
+                    }
+                    if (debug) {
+                        System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Multi-template search finished, template index=" + i + ", comparison time=" + (System.currentTimeMillis() - time) + "ms, required pass rate=" + passrate);
+                    }
+                    if (i >= 0 && i < modules.size()) {
+                        rate = 100;
+                        reached = true;
+                    } else {
+                        i = modules.size();
+                    }
+                }
+            }
+            for (; cached == null && !multiTemplate && comparisonModules != null && i < comparisonModules.size(); i++) {
 
                 synchronized (this) {
                     try {
@@ -862,13 +1069,13 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                     } catch (NullPointerException ex) {
                         ex.printStackTrace();
                         i = -1;
-                        conditionReached = false;
+                        reached = false;
                         break;
                     }
 
                     // Security update in 2.0.2 - handle exceptions thrown by the module correctly
                     try {
-                        rate = 100 * comparisonModule.compareToBaseImage(client.getImage(), cmpArea, methodParams, context, passrate / 100f);
+                        rate = 100 * comparisonModule.compareToBaseImage(source, cmpArea, methodParams, context, passrate / 100f);
                     } catch (Exception ex) {
                         ex.printStackTrace();
                         rate = 0;
@@ -883,10 +1090,7 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Pass rate is greater than the given passrate " + passrate + "%. Finishing the Waitfor match listener.");
                             }
-                            this.conditionReached = true;
-                            if (comparisonTimer != null) {
-                                comparisonTimer.stop();
-                            }
+                            reached = true;
                             break;
                         }
                     } else {   // We are waiting for a mismatch
@@ -894,16 +1098,17 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                             if (debug) {
                                 System.out.println("-- Thread #" + Thread.currentThread().getId() + ": Pass rate is lower than the given passrate " + passrate + "%. Finishing the Waitfor mismatch listener.");
                             }
-                            this.conditionReached = true;
-                            if (comparisonTimer != null) {
-                                comparisonTimer.stop();
-                            }
+                            reached = true;
                             break;
                         }
                     }
                 }
             }
 
+            if (recording != null) {
+                cache.put(recording, rate, reached ? i : -1);
+            }
+
             // Bug fix: Populate the _COMPARETO* variables
             Map vars = context.getVariables();
             vars.remove(COMPARETO_TEMPLATE);
@@ -912,7 +1117,7 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             vars.remove(COMPARETO_TEMPLATE_HEIGHT);
             vars.put(COMPARETO_TIME_IN_MS, "" + (System.currentTimeMillis() - time));
 
-            if (conditionReached && i >= 0) {
+            if (reached && i >= 0) {
 
                 // Update the implicit variables
                 vars.put(COMPARETO_RESULT, "" + rate);
@@ -935,10 +1140,55 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
             } else {
                 vars.put(COMPARETO_RESULT, "0");
             }
-            comparisonThread = null;
+            return reached;
+        }
+
+        /**
+         * Finish 'Waitfor stable' if there has been no update of the area for
+         * the quiet period. Otherwise check again when the period after the
+         * last update elapses. The check is not rescheduled by every update
+         * so that a burst of updates costs just the time stamps.
+         */
+        private void checkStable() {
+            long remaining;
+            synchronized (this) {
+                remaining = lastUpdate + quietPeriod - System.currentTimeMillis();
+            }
+            if (remaining > 0) {
+                engine.schedule(stableCheck, remaining);
+            } else {
+                if (debug) {
+                    System.out.println("-- Thread #" + Thread.currentThread().getId() + ": No update for " + quietPeriod + "ms, the screen is stable");
+                }
+                engine.setConditionReached(index);
+            }
+        }
+
+        /**
+         * Find out whether an update breaks the quiet period of 'Waitfor
+         * stable', i.e. whether it touches a part of the area which is not
+         * covered by the ignored regions.
+         */
+        private boolean isStabilityBroken(Rectangle updateRect) {
+            Rectangle overlap = updateRect.intersection(rectangle);
+            if (overlap.isEmpty()) {
+                return false;
+            }
+            if (ignoredAreas == null || ignoredAreas.isEmpty()) {
+                return true;
+            }
+            RegionAccumulator ignored = new RegionAccumulator(overlap);
+            for (Rectangle r : ignoredAreas) {
+                ignored.add(r);
+            }
+            return ignored.getArea() < (long) overlap.width * overlap.height;
         }
 
         public void serverMessageReceived(RemoteDesktopServerEvent evt) {
+            if (group != null) {
+                group.serverMessageReceived(evt);
+                return;
+            }
 
             boolean conditionReached = false;
             if (evt.getMessageType() == RemoteDesktopServerEvent.SERVER_BELL_EVENT && event.equalsIgnoreCase(EVENT_BELL)) {
@@ -954,11 +1204,12 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
 
                     // We are waiting for a cumulative update
                     if (cumulative) {
-                        if (cumulativeRects == null) {
-                            cumulativeRects = new ArrayList();
+                        if (updatedRegion == null) {
+                            updatedRegion = new RegionAccumulator(rectangle);
                         }
                         long time = System.currentTimeMillis();
-                        updatedPixelCount = calculateCumulativeUpdate(rectangle, overlap);
+                        updatedRegion.add(overlap);
+                        updatedPixelCount = updatedRegion.getArea();
 
                         if (System.getProperty("debug.waitfor") != null) {
                             time = System.currentTimeMillis() - time;
@@ -1003,11 +1254,17 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
 
                     if (counter >= count) {   // Specified number of SCREENUPDATE messages was reached
                         conditionReached = true;
-                        ln = null;
+                        updatedRegion = null;
                     }
                 }
             } else if (evt.getMessageType() == RemoteDesktopServerEvent.SERVER_CLIPBOARD_EVENT && event.equalsIgnoreCase(EVENT_CLIPBOARD)) {
                 conditionReached = true;
+            } else if (evt.getMessageType() == RemoteDesktopServerEvent.SERVER_UPDATE_EVENT && event.equalsIgnoreCase(EVENT_STABLE)) {
+                if (isStabilityBroken(evt.getUpdateRect())) {
+                    synchronized (this) {
+                        lastUpdate = Math.max(lastUpdate, evt.getWhen());
+                    }
+                }
             }
 
             // If the delay param is set, wait the specified amount of time. Otherwise set the conditionReached flag directly.
@@ -1018,169 +1275,105 @@ public class WaitforCommand extends AbstractCommandHandler implements AdvancedCo
                     // If the endTime is set, update it only if our end time is lower. This will preserve
                     // the functionality of preset timeout.
                     endTime = System.currentTimeMillis() + delay;
-                    this.conditionReached = true;
+                    engine.setConditionReached(index);
                 } else {
-                    this.conditionReached = true;
+                    engine.setConditionReached(index);
                 }
             }
         }
-        private List[] ln;
-
-        private long calculateCumulativeUpdate(Rectangle rect, Rectangle overlap) {
-            if (ln == null) {
-                ln = new List[rect.height];
-            }
-
-            int end = overlap.y - rect.y + overlap.height;
-            List v;
-            for (int i = overlap.y - rect.y; i < end; i++) {
-                v = ln[i];
-                if (v == null) {
-                    v = new ArrayList();
-                    ln[i] = v;
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (evt.getPropertyName().equals("replayFinished")) {
+                if (updateTimer != null && updateTimer.isRunning()) {
+                    updateTimer.stop();
                 }
-                adjustLine(v, new Interval(overlap.x, overlap.x + overlap.width));
-            }
-
-            return countPixels(ln);
-        }
-
-        private long countPixels(List[] lines) {
-            long count = 0;
-            List v;
-            Interval iv;
-            for (int i = 0; lines != null && i < lines.length; i++) {
-                v = (List) lines[i];
-                for (int j = 0; v != null && j < v.size(); j++) {
-                    iv = (Interval) v.get(j);
-                    count += iv.end - iv.start + 1;
+                engine.close();
+                updatedRegion = null;
+                if (evt.getSource() instanceof ScriptManagerImpl) {
+                    ((ScriptManagerImpl) evt.getSource()).removePropertyChangeListener(this);
                 }
             }
-            return count;
         }
+    }
 
-        private void adjustLine(List v, Interval p) {
-            Interval cp = null;
-
-            if (v.size() > 0) {
-                int size = v.size();
-                for (int i = 0; i < size;) {
-                    cp = (Interval) v.get(i);
-                    if (cp.intersects(p)) {
-                        v.remove(cp);
-                        p.join(cp);
-                        if (!v.contains(p)) {
-                            v.add(i, p);
-                        } else {
-                            i--;
-                        }
-                    } else if (p.isBelow(cp) && !v.contains(p)) {
-                        v.add(i, p);
+    /**
+     * Conditions of a composite wait ('Waitfor any' or 'Waitfor all'). All
+     * conditions share the engine of the wait. Server events are received by
+     * a single listener and passed to the event conditions, and the image
+     * comparisons of all match and mismatch conditions are performed in one
+     * pass after an update of the desktop, so a changed screen is examined
+     * once for all templates rather than by a separate wait for each of them.
+     * All comparisons of a pass run against one snapshot of the desktop.
+     */
+    private class ConditionGroup implements WaitforEngine.Comparison, RemoteDesktopServerListener {
+
+        private final List<WaitForListener> conditions = new ArrayList();
+        private final WaitforEngine engine;
+        private final RemoteDesktopClient client;
+        /** Union of the compared areas or null for the whole desktop. */
+        private Rectangle area;
+        /** The shortest comparison interval of the conditions. */
+        private long interval = Long.MAX_VALUE;
+        private boolean matching;
+        private boolean templateNotFound;
+
+        ConditionGroup(List<Map> params, ScriptingContext context, WaitforEngine engine) {
+            this.engine = engine;
+            this.client = context.getClient();
+            boolean wholeDesktop = false;
+            for (int i = 0; i < params.size() && !templateNotFound; i++) {
+                WaitForListener l = new WaitForListener(params.get(i), context, engine, i);
+                conditions.add(l);
+                templateNotFound = l.templateNotFound;
+                if (l.matching) {
+                    matching = true;
+                    interval = Math.min(interval, l.interval);
+                    if (l.cmpArea == null) {
+                        wholeDesktop = true;
+                    } else {
+                        area = area == null ? new Rectangle(l.cmpArea) : area.union(l.cmpArea);
                     }
-                    size = v.size();
-                    i++;
                 }
-                if (!v.contains(p)) {
-                    v.add(p);
-                }
-            } else {
-                v.add(p);
+            }
+            if (wholeDesktop) {
+                area = null;
             }
         }
 
-        private class Interval {
+        public boolean compare() {
 
-            int start;
-            int end;
-
-            Interval(int start, int end) {
-                this.start = start;
-                this.end = end;
+            // Generations of the compared areas must be read before the snapshot
+            // is taken, an update made afterwards then invalidates the cached results
+            Image img = client.getImage();
+            FrameBufferMonitor monitor = FrameBufferMonitor.getMonitor(client, img);
+            long generations[] = new long[conditions.size()];
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = monitor == null ? -1 : monitor.getGeneration(conditions.get(i).cmpArea);
             }
-
-            Interval join(Interval i) {
-                if (!intersects(i)) {
-                    return null;
+            Image source = DesktopSnapshot.create(client, img, area).getImage();
+            for (int i = 0; i < conditions.size(); i++) {
+                WaitForListener l = conditions.get(i);
+                if (l.matching && !engine.isConditionReached(l.index) && l.compare(source, generations[i])) {
+                    engine.setConditionReached(l.index);
+
+                    // Don't let other comparisons overwrite the _COMPARETO variables
+                    if (engine.isConditionReached()) {
+                        break;
+                    }
                 }
-                start = Math.min(start, i.start);
-                end = Math.max(end, i.end);
-                return this;
-            }
-
-            boolean contains(Interval i) {
-                return start <= i.start && end >= i.end;
-            }
-
-            boolean intersects(Interval i) {
-                return (i.start >= start && i.start <= end) || (i.end >= start && i.end <= end) || (end >= i.start && end <= i.end);
-            }
-
-            boolean isBelow(Interval i) {
-                return end < i.start;
-            }
-
-            boolean isAbove(Interval i) {
-                return start > i.end;
             }
+            return engine.isConditionReached();
+        }
 
-            public String toString() {
-                return "[" + start + "," + end + "]";
+        public void stop() {
+            for (WaitForListener l : conditions) {
+                l.stop();
             }
         }
-//        private void testCumulativeMethod() {
-//            List v = new ArrayList();
-//            v.add(new Interval(5,10));
-//            v.add(new Interval(50,80));
-//            v.add(new Interval(90,100));
-//            v.add(new Interval(150,180));
-//
-//            adjustLine(v, new Interval(100,180));
-//            System.out.println("Test #1: "+v);
-//            adjustLine(v, new Interval(3,12));
-//            System.out.println("Test #2: "+v);
-//            adjustLine(v, new Interval(190,200));
-//            System.out.println("Test #3: "+v);
-//            adjustLine(v, new Interval(180,190));
-//            System.out.println("Test #4: "+v);
-//            adjustLine(v, new Interval(0,220));
-//            System.out.println("Test #5: "+v);
-//        }
-//        private long calculateCumulativeUpdate(Rectangle rect, Rectangle overlap, List cumulativeRects) {
-////            System.out.println("cumulative update");
-//            if (px == null) {
-//                px = new byte[rect.height][rect.width];
-//                for (int i = 0; i < px.length; i++) {
-//                    Arrays.fill(px[i], (byte) 0);
-//                }
-//            }
-//            int end = overlap.y - rect.y + overlap.height;
-////            System.out.println(" -- fill from "+(overlap.y-rect.y)+" to "+end);
-//            for (int i = overlap.y - rect.y; i < end; i++) {
-////                System.out.println(" -- filling row #"+i+" start="+(overlap.x-rect.x)+" end="+(overlap.x-rect.x+overlap.width));
-//                Arrays.fill(px[i], overlap.x - rect.x, overlap.x - rect.x + overlap.width, (byte) 1);
-//            }
-//
-//            long cnt = 0;
-//            for (int i = 0; i < rect.height; i++) {
-//                for (int j = 0; j < rect.width; j++) {
-//                    cnt += px[i][j];
-//                }
-//            }
-////            System.out.println(" -- cnt="+cnt);
-//            return cnt;
-//        }
 
-        public void propertyChange(PropertyChangeEvent evt) {
-            if (evt.getPropertyName().equals("replayFinished")) {
-                if (updateTimer != null && updateTimer.isRunning()) {
-                    updateTimer.stop();
-                }
-                if (comparisonTimer != null && comparisonTimer.isRunning()) {
-                    comparisonTimer.stop();
-                }
-                ln = null;
-                if (evt.getSource() instanceof ScriptManagerImpl) {
-                    ((ScriptManagerImpl) evt.getSource()).removePropertyChangeListener(this);
+        public void serverMessageReceived(RemoteDesktopServerEvent evt) {
+            for (WaitForListener l : conditions) {
+                if (!l.matching && !engine.isConditionReached(l.index)) {
+                    l.serverMessageReceived(evt);
                 }
             }
         }
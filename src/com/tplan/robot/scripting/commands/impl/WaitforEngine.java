@@ -0,0 +1,424 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.scripting.commands.impl;
+
+import com.tplan.robot.remoteclient.FrameBufferMonitor;
+import com.tplan.robot.remoteclient.RemoteDesktopClient;
+import com.tplan.robot.remoteclient.RemoteDesktopServerEvent;
+import com.tplan.robot.remoteclient.RemoteDesktopServerListener;
+import com.tplan.robot.scripting.commands.BreakAction;
+import com.tplan.robot.scripting.interpret.TestScriptInterpret;
+import com.tplan.robot.util.ComparisonExecutor;
+import com.tplan.robot.util.Stoppable;
+
+import java.awt.Rectangle;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Engine of the {@doc.cmd WaitFor} command and its image comparison
+ * variants. The engine keeps the state of a single wait: whether the waited
+ * for condition has been reached, and optionally the periodic image
+ * comparison. The script thread blocks in
+ * {@link #await(long, BreakAction)} until the condition is reached or the
+ * timeout expires instead of polling the state.</p>
+ *
+ * <p>A composite wait ({@doc.cmd WaitFor} any/all) shares one engine among
+ * several conditions identified by their indices. The wait is over when any
+ * or all of them have been reached, see
+ * {@link #WaitforEngine(RemoteDesktopClient, TestScriptInterpret, int, boolean)}.</p>
+ *
+ * <p>Comparisons are executed by the {@link ComparisonExecutor} shared by all
+ * sessions. If the
+ * updates of the desktop image are reliably reported by the client (see
+ * {@link FrameBufferMonitor#getMonitor(RemoteDesktopClient, java.awt.Image)}),
+ * a comparison is started only after an update touching the compared area
+ * and no sooner than the interval after the previous one. Otherwise
+ * comparisons are repeated at the interval. A comparison is never started
+ * while the previous one is still running. Closing the engine drops the queued
+ * comparison and stops the running one.</p>
+ * @product.signature
+ */
+public class WaitforEngine implements RemoteDesktopServerListener, Runnable {
+
+    /**
+     * Image comparison performed repeatedly by the engine.
+     */
+    public interface Comparison {
+
+        /**
+         * Compare the current desktop image.
+         * @return true if the waited for condition has been reached.
+         */
+        boolean compare();
+
+        /**
+         * Interrupt a running comparison. It is called from another thread
+         * than the comparison one.
+         */
+        void stop();
+    }
+
+    /** How often the waiting thread checks the stop and break flags, in milliseconds. */
+    private static final long CHECK_PERIOD = 50;
+
+    private static ScheduledExecutorService timer;
+
+    private final RemoteDesktopClient client;
+    private final TestScriptInterpret interpret;
+    private final boolean debug = System.getProperty("debug.waitfor") != null;
+    private boolean conditionReached;
+    private final boolean[] reached;
+    private final boolean all;
+    private int lastReached = -1;
+
+    private Comparison comparison;
+    private Rectangle area;
+    private long interval;
+    private boolean eventDriven;
+    /** True if the compared area may have changed since the last comparison start. */
+    private boolean changed;
+    private boolean running;
+    /** True if no more comparisons should be scheduled after the current one. */
+    private boolean last;
+    private boolean closed;
+    private long lastStart;
+    private int finished;
+    /** Scheduled or queued comparison. */
+    private Future<?> pending;
+    /** The last comparison submitted to the executor. */
+    private Future<?> current;
+    /** Incremented when the pending comparison is cancelled to invalidate the timer task. */
+    private int timerToken;
+    private final Stoppable stopper = new Stoppable() {
+
+        public void stop() {
+            comparison.stop();
+        }
+
+        public boolean isStopped() {
+            synchronized (WaitforEngine.this) {
+                return closed;
+            }
+        }
+    };
+
+    /**
+     * Create an engine of a wait.
+     * @param client desktop client.
+     * @param interpret interpret executing the waiting script. The wait ends
+     * when the interpret gets stopped.
+     */
+    public WaitforEngine(RemoteDesktopClient client, TestScriptInterpret interpret) {
+        this(client, interpret, 1, false);
+    }
+
+    /**
+     * Create an engine of a composite wait.
+     * @param client desktop client.
+     * @param interpret interpret executing the waiting script. The wait ends
+     * when the interpret gets stopped.
+     * @param conditionCount number of conditions.
+     * @param all true if all conditions must be reached, false if any of them
+     * is enough.
+     */
+    public WaitforEngine(RemoteDesktopClient client, TestScriptInterpret interpret, int conditionCount, boolean all) {
+        this.client = client;
+        this.interpret = interpret;
+        this.reached = new boolean[Math.max(1, conditionCount)];
+        this.all = all;
+    }
+
+    /**
+     * Start the comparisons. The first one is executed immediately.
+     * @param comparison the comparison.
+     * @param area compared area of the desktop or null for the whole desktop.
+     * Updates outside of the area don't trigger comparisons.
+     * @param interval minimum time between starts of two comparisons, in milliseconds.
+     */
+    public void startComparisons(Comparison comparison, Rectangle area, long interval) {
+        boolean reliable = FrameBufferMonitor.getMonitor(client, client.getImage()) != null;
+
+        // The client calls the listeners with its own lock held; don't hold ours
+        if (reliable) {
+            client.addServerListener(this);
+        }
+        synchronized (this) {
+            this.comparison = comparison;
+            this.area = area == null ? null : new Rectangle(area);
+            this.interval = Math.max(1, interval);
+            eventDriven = reliable;
+            changed = true;
+            submit(0);
+        }
+    }
+
+    /**
+     * Run a task after a delay on the timer thread unless the wait is
+     * over by then. It serves conditions which are driven by time rather than
+     * by comparisons, such as the quiet period of 'Waitfor stable'.
+     * @param task a task.
+     * @param delay delay in milliseconds.
+     */
+    public synchronized void schedule(final Runnable task, long delay) {
+        if (closed || conditionReached) {
+            return;
+        }
+        getTimer().schedule(new Runnable() {
+
+            public void run() {
+                synchronized (WaitforEngine.this) {
+                    if (closed || conditionReached) {
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mark the waited for condition as reached and wake up the waiting thread.
+     * In a composite wait it finishes the wait regardless of the state of
+     * the individual conditions.
+     */
+    public synchronized void setConditionReached() {
+        conditionReached = true;
+        notifyAll();
+    }
+
+    /**
+     * Mark a condition of the wait as reached. The waiting thread is woken up
+     * when the wait is over.
+     * @param index condition index.
+     */
+    public synchronized void setConditionReached(int index) {
+        if (!reached[index]) {
+            reached[index] = true;
+            lastReached = index;
+        }
+        boolean done = true;
+        if (all) {
+            for (boolean r : reached) {
+                done &= r;
+            }
+        }
+        if (done) {
+            setConditionReached();
+        }
+    }
+
+    public synchronized boolean isConditionReached() {
+        return conditionReached;
+    }
+
+    /**
+     * Find out whether a condition of the wait has been reached.
+     * @param index condition index.
+     * @return true if the condition has been reached.
+     */
+    public synchronized boolean isConditionReached(int index) {
+        return reached[index];
+    }
+
+    /**
+     * Get the condition which was reached as the last one. In a wait for any
+     * condition it is the one which finished the wait.
+     * @return condition index or -1 if no condition has been reached.
+     */
+    public synchronized int getLastReachedCondition() {
+        return lastReached;
+    }
+
+    /**
+     * Wait until the condition is reached, the end time passes, the script
+     * gets stopped or the user breaks the wait.
+     * @param endTime end time in milliseconds or a value lower than or equal
+     * to zero to wait without a timeout.
+     * @param action break action of the wait or null.
+     * @return true if the condition has been reached.
+     * @throws InterruptedException when the thread is interrupted.
+     */
+    public synchronized boolean await(long endTime, BreakAction action) throws InterruptedException {
+        while (!conditionReached && !interpret.isStop() && (action == null || !action.isBreak())) {
+            long wait = CHECK_PERIOD;
+            if (endTime > 0) {
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining < 0) {
+                    break;
+                }
+                wait = Math.min(wait, remaining + 1);
+            }
+            wait(wait);
+        }
+        return conditionReached;
+    }
+
+    /**
+     * Perform the last comparison after the timeout. No more comparisons
+     * are scheduled, a running one is stopped. The method returns after the
+     * last comparison finishes or the script gets stopped.
+     * @return true if the condition has been reached.
+     * @throws InterruptedException when the thread is interrupted.
+     */
+    public synchronized boolean compareLastTime() throws InterruptedException {
+        last = true;
+        cancelPending();
+        if (running) {
+            if (debug) {
+                System.out.println("-- Thread #" + Thread.currentThread().getId() + " (main thread): Timeout reached, stopping the running comparison");
+            }
+            current.cancel(true);
+            while (running && !interpret.isStop()) {
+                wait(CHECK_PERIOD);
+            }
+        }
+        if (conditionReached || interpret.isStop()) {
+            return conditionReached;
+        }
+        int count = finished;
+        submit(0);
+        while (finished == count && !interpret.isStop()) {
+            wait(CHECK_PERIOD);
+        }
+        return conditionReached;
+    }
+
+    /**
+     * Finish the wait. Scheduled comparisons are cancelled and the running one
+     * is stopped.
+     */
+    public void close() {
+        boolean listening;
+        synchronized (this) {
+            closed = true;
+            cancelPending();
+            if (running) {
+                current.cancel(true);
+            }
+            listening = eventDriven;
+            notifyAll();
+        }
+        if (listening) {
+            client.removeServerListener(this);
+        }
+    }
+
+    public void run() {
+        synchronized (this) {
+            pending = null;
+            if (closed || conditionReached || running) {
+                return;
+            }
+            running = true;
+            changed = false;
+            lastStart = System.currentTimeMillis();
+        }
+        boolean reached = false;
+        try {
+            reached = comparison.compare();
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        } finally {
+            synchronized (this) {
+                running = false;
+                finished++;
+                if (reached) {
+                    conditionReached = true;
+                } else {
+                    scheduleNext();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    public void serverMessageReceived(RemoteDesktopServerEvent evt) {
+        int type = evt.getMessageType();
+        if (type == RemoteDesktopServerEvent.SERVER_UPDATE_EVENT || type == RemoteDesktopServerEvent.SERVER_INIT_EVENT
+                || type == RemoteDesktopServerEvent.SERVER_CONNECTED_EVENT) {
+            Rectangle r = type == RemoteDesktopServerEvent.SERVER_UPDATE_EVENT ? evt.getUpdateRect() : null;
+            synchronized (this) {
+                if (r == null || area == null || r.intersects(area)) {
+                    changed = true;
+                    scheduleNext();
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule the next comparison unless it is already scheduled or running.
+     * The lock must be held.
+     */
+    private void scheduleNext() {
+        if (comparison == null || pending != null || running || closed || last || conditionReached || (eventDriven && !changed)) {
+            return;
+        }
+        submit(Math.max(0, lastStart + interval - System.currentTimeMillis()));
+    }
+
+    /**
+     * Submit a comparison to the executor after a delay. The lock must be held.
+     * @param delay delay in milliseconds.
+     */
+    private void submit(long delay) {
+        if (delay <= 0) {
+            pending = current = ComparisonExecutor.getInstance().submit(client, this, stopper);
+            return;
+        }
+        final int token = ++timerToken;
+        pending = getTimer().schedule(new Runnable() {
+
+            public void run() {
+                synchronized (WaitforEngine.this) {
+                    if (token == timerToken && pending != null && !closed && !conditionReached) {
+                        pending = current = ComparisonExecutor.getInstance().submit(client, WaitforEngine.this, stopper);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPending() {
+        timerToken++;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Waitfor timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+}
@@ -21,12 +21,16 @@ package com.tplan.robot.scripting.interpret.java;
 
 import com.tplan.robot.scripting.interpret.*;
 import com.tplan.robot.ApplicationSupport;
+import com.tplan.robot.imagecomparison.TemplateCache;
 import com.tplan.robot.scripting.*;
 import com.tplan.robot.util.DocumentUtils;
+import com.tplan.robot.util.Utils;
 import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Document;
@@ -59,6 +63,9 @@ public class JavaTestScriptInterpret extends AbstractTestScriptInterpret impleme
     private JavaElementMapper errorHandler = this;
     private boolean debug = System.getProperty("javainterpret.debug") != null;
 
+    // String literal of the Java code, used to look for template paths
+    private static final Pattern STRING_LITERAL = Pattern.compile("\"((?:[^\"\\\\\\n]|\\\\.)*)\"");
+
     public int getType() {
         return TYPE_JAVA;
     }
@@ -245,6 +252,7 @@ public class JavaTestScriptInterpret extends AbstractTestScriptInterpret impleme
                 if (compiledCode != null) {
                     setTestInstance(compiledCode.newInstance());
                     modified = false;
+                    prewarmTemplates(text);
                 }
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -265,6 +273,28 @@ public class JavaTestScriptInterpret extends AbstractTestScriptInterpret impleme
         return isCompiler && errors.size() == 0;
     }
 
+    /**
+     * Start loading of template images referenced by string literals of the
+     * source code, such as <code>new File("button.png")</code>, in the
+     * background. Relative paths are resolved against the template directory
+     * the same way the {@doc.cmd CompareTo} command does it.
+     * @param code Java source code.
+     */
+    private void prewarmTemplates(String code) {
+        List<File> files = new ArrayList<File>();
+        ScriptManager sm = compilationContext.getScriptManager();
+        Matcher m = STRING_LITERAL.matcher(code);
+        while (m.find()) {
+            for (String path : m.group(1).replace("\\\\", "\\").split(TokenParser.FILE_PATH_SEPARATOR)) {
+                String ext = Utils.getExtension(path.trim());
+                if (ext != null && Utils.getSupportedImageExtensions().contains(ext.toLowerCase())) {
+                    files.add(new File(sm.assembleFileName(path.trim(), compilationContext, ScriptingContext.IMPLICIT_VARIABLE_TEMPLATE_DIR)));
+                }
+            }
+        }
+        TemplateCache.getInstance().prewarm(files);
+    }
+
     public void processErrors(JavaTestScriptInterpret interpret, DiagnosticCollector<JavaFileObject> src, List<SyntaxErrorException> target, SimpleJavaFileObject mo) {
         SyntaxErrorException e;
         int line;
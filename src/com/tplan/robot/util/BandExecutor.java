@@ -0,0 +1,160 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Executor of image processing tasks which may be split into independent
+ * bands (typically ranges of pixel rows). The range is divided into one band
+ * per available processor; the bands are executed by a shared pool of daemon
+ * threads while the calling thread processes the first band and then waits
+ * for the others. Small ranges are processed directly in the calling thread.</p>
+ *
+ * <p>Tasks executed by the pool may call this class again; nested calls are
+ * processed sequentially in the pool thread to avoid starving the pool.</p>
+ * @product.signature
+ */
+public final class BandExecutor {
+
+    /**
+     * Task processing a band of a range.
+     */
+    public interface Task {
+
+        /**
+         * Process the band.
+         * @param from first index of the band.
+         * @param to index following the last index of the band.
+         */
+        void run(int from, int to);
+    }
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor;
+
+    private BandExecutor() {
+    }
+
+    /**
+     * Get the maximum number of bands processed in parallel.
+     * @return number of available processors.
+     */
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+
+    /**
+     * Process the range <code>[0, count)</code> in parallel bands and wait
+     * until all bands are finished. Runtime exceptions and errors thrown by
+     * the task are rethrown in the calling thread.
+     * @param count size of the range.
+     * @param minBandSize minimum band size. Ranges shorter than twice the
+     * value are processed in the calling thread.
+     * @param task task to execute.
+     */
+    public static void execute(int count, int minBandSize, final Task task) {
+        int bands = Math.min(PARALLELISM, count / Math.max(1, minBandSize));
+        if (bands < 2 || Thread.currentThread() instanceof Worker) {
+            if (count > 0) {
+                task.run(0, count);
+            }
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+        ExecutorService e = getExecutor();
+        for (int b = 1; b < bands; b++) {
+            final int from = (int) ((long) count * b / bands);
+            final int to = (int) ((long) count * (b + 1) / bands);
+            futures.add(e.submit(new Runnable() {
+
+                public void run() {
+                    task.run(from, to);
+                }
+            }));
+        }
+        Throwable failure = null;
+        try {
+            task.run(0, count / bands);
+        } catch (Throwable t) {
+            failure = t;
+        }
+
+        // Wait for all bands even if interrupted because they work on shared data
+        boolean interrupted = false;
+        for (Future<?> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+
+                private int counter = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Worker(r, "BandExecutor-" + (++counter));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Pool thread. Used to detect nested calls.
+     */
+    private static class Worker extends Thread {
+
+        Worker(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+}
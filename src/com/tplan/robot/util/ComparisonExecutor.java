@@ -0,0 +1,188 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>Process-wide executor of image comparisons. The number of threads is
+ * limited to the number of available processors regardless of how many
+ * test scripts and desktop sessions run in parallel.</p>
+ *
+ * <p>Tasks are queued per session (typically a desktop client) and the
+ * sessions are served in a round-robin fashion, so a session submitting many
+ * comparisons can't delay the comparisons of the other ones. Tasks of a
+ * single session are executed in the order of submission.</p>
+ *
+ * <p>The returned futures may be cancelled. A task which hasn't started yet
+ * is dropped. When a running task is cancelled with the
+ * <code>mayInterruptIfRunning</code> flag, its {@link Stoppable} is asked to
+ * stop instead of interrupting the thread, so that a long search ends as soon
+ * as the comparison module checks its stop flag.</p>
+ * @product.signature
+ */
+public final class ComparisonExecutor {
+
+    private static ComparisonExecutor instance;
+
+    private final int parallelism;
+    /** Sessions with queued tasks in the order they will be served. */
+    private final LinkedList<Object> sessions = new LinkedList<Object>();
+    private final Map<Object, LinkedList<Job>> queues = new HashMap<Object, LinkedList<Job>>();
+    private int queued;
+    private int threads;
+    private int idle;
+    private int counter;
+
+    private ComparisonExecutor(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Get the shared instance of the executor.
+     * @return the executor.
+     */
+    public static synchronized ComparisonExecutor getInstance() {
+        if (instance == null) {
+            instance = new ComparisonExecutor(BandExecutor.getParallelism());
+        }
+        return instance;
+    }
+
+    /**
+     * Get the maximum number of tasks executed in parallel.
+     * @return number of executor threads.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Submit a task for execution.
+     * @param session session the task belongs to, for example the desktop
+     * client. It must not be null.
+     * @param task the task.
+     * @param stopper object able to stop the running task or null if the
+     * task can't be stopped.
+     * @return future of the task.
+     */
+    public Future<?> submit(Object session, Runnable task, Stoppable stopper) {
+        Job job = new Job(task, stopper);
+        synchronized (this) {
+            LinkedList<Job> queue = queues.get(session);
+            if (queue == null) {
+                queue = new LinkedList<Job>();
+                queues.put(session, queue);
+                sessions.addLast(session);
+            }
+            queue.addLast(job);
+            queued++;
+            if (queued > idle && threads < parallelism) {
+                Thread t = new Thread(new Worker(), "ComparisonExecutor-" + (++counter));
+                t.setDaemon(true);
+                threads++;
+                t.start();
+            } else {
+                notify();
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Take the next task, waiting until there is one. The session which is
+     * served is moved to the end of the line.
+     */
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            while (sessions.isEmpty()) {
+                idle++;
+                try {
+                    wait();
+                } finally {
+                    idle--;
+                }
+            }
+            Object session = sessions.removeFirst();
+            LinkedList<Job> queue = queues.get(session);
+            Job job = queue.removeFirst();
+            queued--;
+            if (queue.isEmpty()) {
+                queues.remove(session);
+            } else {
+                sessions.addLast(session);
+            }
+            if (!job.isCancelled()) {
+                return job;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = take();
+                } catch (InterruptedException ex) {
+                    synchronized (ComparisonExecutor.this) {
+                        threads--;
+                    }
+                    return;
+                }
+                job.run();
+            }
+        }
+    }
+
+    /**
+     * Cancellable task which stops the running task through its stopper.
+     */
+    private static class Job extends FutureTask<Object> {
+
+        private final Stoppable stopper;
+        private volatile boolean started;
+
+        Job(Runnable task, Stoppable stopper) {
+            super(task, null);
+            this.stopper = stopper;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            super.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(false);
+            if (cancelled && mayInterruptIfRunning && started && stopper != null) {
+                stopper.stop();
+            }
+            return cancelled;
+        }
+    }
+}
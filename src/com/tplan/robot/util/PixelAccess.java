@@ -0,0 +1,219 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.util;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelGrabber;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * <p>Fast access to image pixels. {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}
+ * converts every pixel through the color model of the image, which makes
+ * reading of large desktop images slow. This class reads the packed
+ * <code>int</code> rasters (<code>TYPE_INT_RGB</code>, <code>TYPE_INT_ARGB</code>)
+ * and the interleaved <code>byte</code> ones (<code>TYPE_3BYTE_BGR</code>,
+ * <code>TYPE_4BYTE_ABGR</code>) directly from their data buffers. Other
+ * images fall back to <code>getRGB()</code> or a {@link PixelGrabber}.</p>
+ *
+ * <p>Pixels are read into a caller supplied buffer which is reused when it is
+ * large enough (see {@link #read(Image, Rectangle, int[])}), so that code
+ * reading an image band by band doesn't allocate an array for every band.
+ * Code which only needs the RGB components may avoid the copy altogether and
+ * read the pixels of <code>int</code> rasters in place through a
+ * {@link View}.</p>
+ * @product.signature
+ */
+public final class PixelAccess {
+
+    private PixelAccess() {
+    }
+
+    /**
+     * Read pixels of an image rectangle in the default RGB color model, i.e.
+     * with the same values as {@link BufferedImage#getRGB(int, int)} returns.
+     * The rectangle is cut off at the right and bottom edges of the image.
+     * Pixels are stored row by row with the width of the (cut off) rectangle.
+     *
+     * @param img an image.
+     * @param r rectangle to read the pixels from.
+     * @param buffer buffer to read the pixels to. It may be null or smaller
+     * than the rectangle, a new buffer is allocated in such a case.
+     * @return the buffer with the pixels. It may be larger than the rectangle.
+     */
+    public static int[] read(Image img, Rectangle r, int[] buffer) {
+        if (!(img instanceof BufferedImage)) {
+            int[] ai = buffer != null && buffer.length >= r.width * r.height ? buffer : new int[r.width * r.height];
+            PixelGrabber pixelgrabber =
+                    new PixelGrabber(img, r.x, r.y, r.width, r.height, ai, 0, r.width);
+            try {
+                pixelgrabber.grabPixels();
+            } catch (InterruptedException interruptedexception) {
+                interruptedexception.printStackTrace();
+            }
+            return ai;
+        }
+
+        BufferedImage bi = (BufferedImage) img;
+        int width = Math.max(0, Math.min(r.width, bi.getWidth() - r.x));
+        int height = Math.max(0, Math.min(r.height, bi.getHeight() - r.y));
+        int[] ai = buffer != null && buffer.length >= width * height ? buffer : new int[width * height];
+        if (width == 0 || height == 0) {
+            return ai;
+        }
+
+        WritableRaster raster = bi.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        int tx = raster.getSampleModelTranslateX(), ty = raster.getSampleModelTranslateY();
+        switch (bi.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+                    int[] data = ((DataBufferInt) db).getData();
+                    int scan = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+                    int src = db.getOffset() + (r.y - ty) * scan + r.x - tx;
+                    for (int y = 0; y < height; y++, src += scan) {
+                        System.arraycopy(data, src, ai, y * width, width);
+                    }
+                    if (bi.getType() == BufferedImage.TYPE_INT_RGB) {
+                        for (int i = 0, n = width * height; i < n; i++) {
+                            ai[i] |= 0xFF000000;
+                        }
+                    }
+                    return ai;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (db instanceof DataBufferByte && sm instanceof PixelInterleavedSampleModel) {
+                    readBytes(bi, (DataBufferByte) db, (PixelInterleavedSampleModel) sm,
+                            r.x - tx, r.y - ty, width, height, ai);
+                    return ai;
+                }
+                break;
+        }
+        bi.getRGB(r.x, r.y, width, height, ai, 0, width);
+        return ai;
+    }
+
+    /**
+     * Assemble pixels of an interleaved byte raster.
+     */
+    private static void readBytes(BufferedImage bi, DataBufferByte db, PixelInterleavedSampleModel sm,
+            int x, int y, int width, int height, int[] dst) {
+        byte[] data = db.getData();
+        int ps = sm.getPixelStride();
+        int scan = sm.getScanlineStride();
+        int[] bands = sm.getBandOffsets();
+        int base = db.getOffset() + y * scan + x * ps;
+        int red = bands[0], green = bands[1], blue = bands[2];
+        boolean alpha = bi.getType() == BufferedImage.TYPE_4BYTE_ABGR;
+        int a = alpha ? bands[3] : 0;
+        for (int row = 0, i = 0; row < height; row++, base += scan) {
+            for (int col = 0, s = base; col < width; col++, s += ps) {
+                dst[i++] = (alpha ? (data[s + a] & 0xFF) << 24 : 0xFF000000)
+                        | (data[s + red] & 0xFF) << 16
+                        | (data[s + green] & 0xFF) << 8
+                        | (data[s + blue] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Get a view of pixels of an image rectangle. Pixels of packed
+     * <code>int</code> rasters are not copied, the view reads them directly
+     * from the raster; pixels of other images are read into a buffer like
+     * {@link #read(Image, Rectangle, int[])} does.
+     * The rectangle must lie within the image.
+     * As the alpha bits of <code>TYPE_INT_RGB</code> pixels are undefined,
+     * the view is suitable only for code which ignores the alpha channel.
+     * The view of a live image reflects its changes.
+     *
+     * @param img an image.
+     * @param r rectangle of the image.
+     * @param previous view returned by a previous call or null. Its buffer is
+     * reused if it is large enough.
+     * @return view of the pixels.
+     */
+    public static View getView(Image img, Rectangle r, View previous) {
+        if (img instanceof BufferedImage) {
+            BufferedImage bi = (BufferedImage) img;
+            WritableRaster raster = bi.getRaster();
+            DataBuffer db = raster.getDataBuffer();
+            SampleModel sm = raster.getSampleModel();
+            if ((bi.getType() == BufferedImage.TYPE_INT_RGB || bi.getType() == BufferedImage.TYPE_INT_ARGB)
+                    && db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+                int scan = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+                int origin = db.getOffset() - raster.getSampleModelTranslateY() * scan - raster.getSampleModelTranslateX();
+                return new View(((DataBufferInt) db).getData(), origin, scan, null);
+            }
+        }
+        int[] buffer = read(img, r, previous == null ? null : previous.buffer);
+        return new View(buffer, -r.y * r.width - r.x, r.width, buffer);
+    }
+
+    /**
+     * View of image pixels. The pixel at <code>[x, y]</code> (in the image
+     * coordinates) is stored in {@link #data} at index {@link #index(int, int)}.
+     */
+    public static final class View {
+
+        /** Pixel data. */
+        public final int[] data;
+        /** Index of the pixel at <code>[0, 0]</code>. It may be negative. */
+        public final int origin;
+        /** Distance between indices of vertically adjacent pixels. */
+        public final int scanline;
+        private final int[] buffer;
+
+        private View(int[] data, int origin, int scanline, int[] buffer) {
+            this.data = data;
+            this.origin = origin;
+            this.scanline = scanline;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Get index of a pixel in the data array.
+         * @param x x-coordinate in the image.
+         * @param y y-coordinate in the image.
+         * @return index of the pixel.
+         */
+        public int index(int x, int y) {
+            return origin + y * scanline + x;
+        }
+
+        /**
+         * Find out whether the view reads the pixels directly from the image.
+         * @return true if the pixels are not copied.
+         */
+        public boolean isDirect() {
+            return buffer == null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.util;
+
+import java.util.Random;
+
+/**
+ * <p>Kernels of the pixel loops of image comparison and decoding of the
+ * remote desktop updates. They process whole rows of pixels at once so that
+ * the loops may be replaced with vector (SIMD) implementations.</p>
+ *
+ * <p>This class implements the kernels in plain Java, unrolled by four pixels
+ * and without branches in the comparison loops. An accelerated implementation
+ * (for example one built on the vector API of a newer Java version, which
+ * can't be a part of this code base) may be plugged in as a subclass whose
+ * name is given by the <code>vncrobot.pixelkernel</code> system property. It
+ * is loaded at runtime and verified against the plain implementation; if it
+ * can't be loaded or it gives different results, the plain one is used. The
+ * reason is printed out only if the <code>vncrobot.pixelkernel.debug</code>
+ * system property is set.</p>
+ * @product.signature
+ */
+public class PixelKernel {
+
+    /** System property with the class name of an accelerated implementation. */
+    public static final String PROPERTY_KERNEL = "vncrobot.pixelkernel";
+    private static final boolean debug = System.getProperty("vncrobot.pixelkernel.debug") != null;
+
+    private static PixelKernel instance;
+
+    /**
+     * Get the kernel implementation selected for this Java runtime.
+     * @return kernel instance.
+     */
+    public static synchronized PixelKernel getInstance() {
+        if (instance == null) {
+            instance = load(System.getProperty(PROPERTY_KERNEL));
+        }
+        return instance;
+    }
+
+    /**
+     * Load an implementation of the kernels.
+     * @param className class name of the implementation, it may be null.
+     * @return the implementation or the plain one if it is not available.
+     */
+    static PixelKernel load(String className) {
+        PixelKernel plain = new PixelKernel();
+        if (className == null || className.trim().length() == 0) {
+            return plain;
+        }
+        try {
+            PixelKernel k = (PixelKernel) Class.forName(className.trim()).getDeclaredConstructor().newInstance();
+            if (k.verify(plain)) {
+                return k;
+            }
+            if (debug) {
+                System.out.println("Pixel kernel " + className + " failed the self test, using the default one.");
+            }
+        } catch (Exception ex) {
+            // Missing class or constructor, not a kernel or a failure of the kernel code
+            if (debug) {
+                System.out.println("Pixel kernel " + className + " is not available, using the default one: " + ex);
+            }
+        } catch (LinkageError err) {
+            // Class compiled for a newer Java runtime or a missing module
+            if (debug) {
+                System.out.println("Pixel kernel " + className + " is not available, using the default one: " + err);
+            }
+        }
+        return plain;
+    }
+
+    /**
+     * Compare results of this implementation with another one on random
+     * rows of all lengths up to a couple of vector sizes.
+     */
+    boolean verify(PixelKernel reference) {
+        Random rnd = new Random(1);
+        int[] a = new int[80], b = new int[80], c = new int[80], d = new int[80];
+        byte[] bytes = new byte[320];
+        for (int length = 0; length <= 70; length++) {
+            for (int i = 0; i < a.length; i++) {
+                // Runs of equal pixels with random ones in between
+                a[i] = rnd.nextInt(8) == 0 ? rnd.nextInt() : 0xFF000000 | (i / 5 % 3);
+                b[i] = rnd.nextInt(8) == 0 ? rnd.nextInt() : 0xFF000000 | (i / 5 % 3);
+            }
+            rnd.nextBytes(bytes);
+            int offset = rnd.nextInt(8), limit = rnd.nextInt(length + 2);
+            if (Math.min(countDifferent(a, offset, b, 1, length, limit), limit + 1)
+                    != Math.min(reference.countDifferent(a, offset, b, 1, length, limit), limit + 1)
+                    || Math.min(countDifferentOpaque(a, offset, b, 1, length, limit), limit + 1)
+                    != Math.min(reference.countDifferentOpaque(a, offset, b, 1, length, limit), limit + 1)
+                    || runLength(a, offset, offset + length) != reference.runLength(a, offset, offset + length)) {
+                return false;
+            }
+            decodeRgb32(bytes, offset, length % 2 == 0, 16, 8, 0, c, 1, length);
+            reference.decodeRgb32(bytes, offset, length % 2 == 0, 16, 8, 0, d, 1, length);
+            for (int i = 0; i < c.length; i++) {
+                if (c[i] != d[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count different pixels of two rows.
+     * @param a first row array.
+     * @param aOffset offset of the first row.
+     * @param b second row array.
+     * @param bOffset offset of the second row.
+     * @param length row length.
+     * @param limit maximum count of interest. Once it is exceeded, the method
+     * may stop and return any number greater than the limit.
+     * @return number of different pixels or a number greater than the limit.
+     */
+    public int countDifferent(int[] a, int aOffset, int[] b, int bOffset, int length, int limit) {
+        int count = 0, i = 0;
+        int d0, d1, d2, d3;
+        for (final int end = length - 3; i < end; i += 4) {
+            d0 = a[aOffset + i] ^ b[bOffset + i];
+            d1 = a[aOffset + i + 1] ^ b[bOffset + i + 1];
+            d2 = a[aOffset + i + 2] ^ b[bOffset + i + 2];
+            d3 = a[aOffset + i + 3] ^ b[bOffset + i + 3];
+            // (d | -d) has the sign bit set for any non-zero d
+            count += ((d0 | -d0) >>> 31) + ((d1 | -d1) >>> 31) + ((d2 | -d2) >>> 31) + ((d3 | -d3) >>> 31);
+            if (count > limit) {
+                return count;
+            }
+        }
+        for (; i < length; i++) {
+            d0 = a[aOffset + i] ^ b[bOffset + i];
+            count += (d0 | -d0) >>> 31;
+        }
+        return count;
+    }
+
+    /**
+     * Count different pixels of a template row and a row of an image.
+     * Template pixels which are not fully opaque are ignored.
+     * @param template template row array.
+     * @param tOffset offset of the template row.
+     * @param image image row array.
+     * @param iOffset offset of the image row.
+     * @param length row length.
+     * @param limit maximum count of interest. Once it is exceeded, the method
+     * may stop and return any number greater than the limit.
+     * @return number of different opaque pixels or a number greater than
+     * the limit.
+     */
+    public int countDifferentOpaque(int[] template, int tOffset, int[] image, int iOffset, int length, int limit) {
+        int count = 0, i = 0;
+        for (final int end = length - 3; i < end; i += 4) {
+            count += differentOpaque(template[tOffset + i], image[iOffset + i])
+                    + differentOpaque(template[tOffset + i + 1], image[iOffset + i + 1])
+                    + differentOpaque(template[tOffset + i + 2], image[iOffset + i + 2])
+                    + differentOpaque(template[tOffset + i + 3], image[iOffset + i + 3]);
+            if (count > limit) {
+                return count;
+            }
+        }
+        for (; i < length; i++) {
+            count += differentOpaque(template[tOffset + i], image[iOffset + i]);
+        }
+        return count;
+    }
+
+    /**
+     * Return 1 if the template pixel is opaque and different from the image
+     * one, 0 otherwise.
+     */
+    private static int differentOpaque(int t, int p) {
+        // The inverted alpha is zero for an opaque pixel
+        final int a = ~t >>> 24;
+        final int d = t ^ p;
+        return ((d | -d) >>> 31) & (((a | -a) >>> 31) ^ 1);
+    }
+
+    /**
+     * Get length of the run of pixels equal to the first one.
+     * @param a pixel array.
+     * @param offset index of the first pixel of the run.
+     * @param end index following the last pixel which may belong to the run.
+     * @return number of pixels in the run, at least 1 if offset is lower
+     * than end.
+     */
+    public int runLength(int[] a, int offset, int end) {
+        if (offset >= end) {
+            return 0;
+        }
+        final int v = a[offset];
+        int i = offset + 1;
+        while (i + 3 < end && ((a[i] ^ v) | (a[i + 1] ^ v) | (a[i + 2] ^ v) | (a[i + 3] ^ v)) == 0) {
+            i += 4;
+        }
+        while (i < end && a[i] == v) {
+            i++;
+        }
+        return i - offset;
+    }
+
+    /**
+     * Decode a row of 32-bit pixels with 8-bit red, green and blue components
+     * to opaque RGB pixels.
+     * @param src source bytes.
+     * @param srcOffset offset of the first pixel in the source.
+     * @param bigEndian true if the pixels are stored in the big endian order.
+     * @param redShift position of the red component in the pixel.
+     * @param greenShift position of the green component in the pixel.
+     * @param blueShift position of the blue component in the pixel.
+     * @param dst target pixels.
+     * @param dstOffset offset of the first pixel in the target.
+     * @param count number of pixels.
+     */
+    public void decodeRgb32(byte[] src, int srcOffset, boolean bigEndian, int redShift, int greenShift, int blueShift,
+            int[] dst, int dstOffset, int count) {
+        // Byte positions within the pixel in the little endian order
+        final int b0 = bigEndian ? 3 : 0, b1 = bigEndian ? 2 : 1, b2 = bigEndian ? 1 : 2, b3 = bigEndian ? 0 : 3;
+        int p;
+        for (int i = 0, s = srcOffset; i < count; i++, s += 4) {
+            p = (src[s + b0] & 0xFF) | (src[s + b1] & 0xFF) << 8 | (src[s + b2] & 0xFF) << 16 | (src[s + b3] & 0xFF) << 24;
+            dst[dstOffset + i] = 0xFF000000 | ((p >>> redShift) & 0xFF) << 16 | ((p >>> greenShift) & 0xFF) << 8 | ((p >>> blueShift) & 0xFF);
+        }
+    }
+}
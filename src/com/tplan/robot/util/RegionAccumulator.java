@@ -0,0 +1,157 @@
+/*
+ * T-Plan Robot, automated testing tool based on remote desktop technologies.
+ * Copyright (C) 2009  T-Plan Limited (http://www.t-plan.co.uk),
+ * Tolvaddon Energy Park, Cornwall, TR14 0HX, United Kingdom
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.tplan.robot.util;
+
+import java.awt.Rectangle;
+
+/**
+ * <p>Union of rectangles within fixed bounds, for example the area of the
+ * desktop updated since some moment. Every row keeps a sorted list of
+ * disjoint pixel spans in a plain <code>int</code> array, so adding a
+ * rectangle takes time proportional to its height and to the number of
+ * spans it overlaps, and the covered area is maintained incrementally.</p>
+ *
+ * <p>The class is not thread safe.</p>
+ * @product.signature
+ */
+public class RegionAccumulator {
+
+    private final Rectangle bounds;
+    /** Spans of the rows as pairs of the first and the following-the-last x coordinate. */
+    private final int[][] spans;
+    /** Numbers of spans in the rows. */
+    private final int[] counts;
+    private long area;
+
+    /**
+     * Create an empty region.
+     * @param bounds bounds of the region. Rectangles added to the region are
+     * clipped to them.
+     */
+    public RegionAccumulator(Rectangle bounds) {
+        this.bounds = new Rectangle(bounds);
+        spans = new int[Math.max(0, bounds.height)][];
+        counts = new int[spans.length];
+    }
+
+    /**
+     * Add a rectangle to the region.
+     * @param r a rectangle.
+     * @return number of pixels of the rectangle which were not in the region yet.
+     */
+    public long add(Rectangle r) {
+        Rectangle c = r.intersection(bounds);
+        if (c.isEmpty()) {
+            return 0;
+        }
+        long added = 0;
+        for (int y = c.y - bounds.y, end = y + c.height; y < end; y++) {
+            added += addSpan(y, c.x, c.x + c.width);
+        }
+        area += added;
+        return added;
+    }
+
+    /**
+     * Get the area of the region.
+     * @return number of pixels covered by the region.
+     */
+    public long getArea() {
+        return area;
+    }
+
+    /**
+     * Get the bounds of the region.
+     * @return copy of the bounds.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Remove all rectangles from the region.
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        area = 0;
+    }
+
+    /**
+     * Merge the span <code>[from, to)</code> into a row.
+     * @return number of pixels added to the row.
+     */
+    private int addSpan(int row, int from, int to) {
+        int[] s = spans[row];
+        int n = counts[row];
+        if (s == null) {
+            s = new int[8];
+            spans[row] = s;
+        }
+
+        // First span ending at or after the new one's start; touching spans merge
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s[2 * mid + 1] < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int first = lo;
+
+        // Spans starting at or before the new one's end
+        int last = first;
+        int covered = 0;
+        while (last < n && s[2 * last] <= to) {
+            covered += s[2 * last + 1] - s[2 * last];
+            last++;
+        }
+
+        if (first == last) {
+            // No overlap, insert a new span
+            if (2 * (n + 1) > s.length) {
+                int[] a = new int[s.length * 2];
+                System.arraycopy(s, 0, a, 0, 2 * n);
+                s = a;
+                spans[row] = s;
+            }
+            System.arraycopy(s, 2 * first, s, 2 * first + 2, 2 * (n - first));
+            s[2 * first] = from;
+            s[2 * first + 1] = to;
+            counts[row] = n + 1;
+            return to - from;
+        }
+
+        // Replace the overlapped spans with their union
+        int start = Math.min(from, s[2 * first]);
+        int end = Math.max(to, s[2 * last - 1]);
+        s[2 * first] = start;
+        s[2 * first + 1] = end;
+        int removed = last - first - 1;
+        if (removed > 0) {
+            System.arraycopy(s, 2 * last, s, 2 * first + 2, 2 * (n - last));
+            counts[row] = n - removed;
+        }
+        return end - start - covered;
+    }
+}
@@ -38,7 +38,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
 import java.awt.image.Raster;
 import java.io.*;
 import java.lang.management.ManagementFactory;
@@ -521,38 +520,15 @@ public class Utils implements RfbConstants {
     }
 
     /**
-     * Get pixels of an image rectangle.
+     * Get pixels of an image rectangle. Code reading images repeatedly should
+     * rather use {@link PixelAccess} with a reusable buffer.
      *
      * @param img an image.
      * @param r   rectangle to grab the pixels from.
      * @return integer array of pixels.
      */
     public static int[] getPixels(Image img, Rectangle r) {
-        int width = r.width;
-        int height = r.height;
-        int ai[] = null;
-
-        if (img instanceof BufferedImage) {
-            try {
-                BufferedImage bi = (BufferedImage) img;
-                width = Math.max(0, Math.min(width, bi.getWidth() - r.x));
-                height = Math.max(0, Math.min(height, bi.getHeight() - r.y));
-                ai = new int[width * height];
-                ai = ((BufferedImage) img).getRGB(r.x, r.y, width, height, ai, 0, width);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
-        } else {
-            ai = new int[width * height];
-            PixelGrabber pixelgrabber =
-                    new PixelGrabber(img, r.x, r.y, width, height, ai, 0, width);
-            try {
-                pixelgrabber.grabPixels();
-            } catch (InterruptedException interruptedexception) {
-                interruptedexception.printStackTrace();
-            }
-        }
-        return ai;
+        return PixelAccess.read(img, r, null);
     }
 
     public static boolean isWindowsLocalhost(String host, int port) {